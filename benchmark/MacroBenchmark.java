@@ -0,0 +1,324 @@
+/**
+ * End to end benchmark of the converter against a local MySQL server. For every mode, a schema is generated from scratch
+ * with latin1 tables : a configurable number of tables and rows, varchar and text columns, a composite unique key per table
+ * and chains of foreign keys between tables. Then the converter runs in its own JVM with the settings of that mode, and the
+ * total wall time, time of every phase, number of table copies and peak heap usage are recorded.
+ *
+ * Host, port, credentials and the target charset and collation are taken from application.properties. The benchmark database
+ * is dropped and created again for every mode, so never point it to a server with a database of the same name.
+ *
+ *   javac -cp "lib/*" -d out src/*.java benchmark/*.java
+ *   java -cp "out:lib/*:resources" MacroBenchmark [-modes serial,merged,parallel,online,shadow] [-output macro-benchmark-results.csv]
+ * System properties : benchmarkDatabase (charset_benchmark), tables (20), rowsPerTable (10000), varcharColumns (3), textColumns (2),
+ * foreignKeyChainLength (5), parallelWorkers (4).
+ */
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.*;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class MacroBenchmark {
+
+    private static final String RESULT_PREFIX = "MACRO_RESULT ";
+    private static final List<String> PHASES = Arrays.asList("collectIndexes", "convert", "verify");
+
+    private static String benchmarkDatabase = System.getProperty("benchmarkDatabase", "charset_benchmark");
+    private static int noOfTables = Integer.getInteger("tables", 20);
+    private static int rowsPerTable = Integer.getInteger("rowsPerTable", 10000);
+    private static int varcharColumns = Integer.getInteger("varcharColumns", 3);
+    private static int textColumns = Integer.getInteger("textColumns", 2);
+    private static int foreignKeyChainLength = Integer.getInteger("foreignKeyChainLength", 5);
+    private static int parallelWorkers = Integer.getInteger("parallelWorkers", 4);
+
+    private static Properties properties = new Properties();
+
+    //settings of every mode on top of application.properties
+    private static Map<String, String> getModeSettings(String mode) {
+        Map<String, String> settings = new LinkedHashMap<>();
+        settings.put("mergeAlterStatements", "true");
+        settings.put("workerConnections", "1");
+        settings.put("maxConcurrentRebuilds", "1");
+        settings.put("onlineMode", "false");
+        settings.put("shadowCopyThresholdBytes", "0");
+        //checksums cannot be verified in online and shadow modes, so no mode verifies them
+        settings.put("verifyChecksums", "false");
+        switch (mode) {
+            case "serial":
+                //one ALTER per index and column, as the converter originally worked
+                settings.put("mergeAlterStatements", "false");
+                break;
+            case "merged":
+                break;
+            case "parallel":
+                settings.put("workerConnections", String.valueOf(parallelWorkers));
+                settings.put("maxConcurrentRebuilds", String.valueOf(parallelWorkers));
+                break;
+            case "online":
+                settings.put("workerConnections", String.valueOf(parallelWorkers));
+                settings.put("maxConcurrentRebuilds", String.valueOf(parallelWorkers));
+                settings.put("onlineMode", "true");
+                break;
+            case "shadow":
+                //every table with a primary key is copied into a shadow table
+                settings.put("workerConnections", String.valueOf(parallelWorkers));
+                settings.put("maxConcurrentRebuilds", String.valueOf(parallelWorkers));
+                settings.put("shadowCopyThresholdBytes", "1");
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown mode " + mode);
+        }
+        return settings;
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> modes = Arrays.asList("serial", "merged", "parallel", "online", "shadow");
+        Path outputFile = Paths.get("macro-benchmark-results.csv");
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-modes":
+                    modes = Arrays.asList(args[i + 1].split(","));
+                    break;
+                case "-output":
+                    outputFile = Paths.get(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        try (InputStream inputStream = MacroBenchmark.class.getClassLoader().getResourceAsStream("application.properties")) {
+            if (inputStream == null) {
+                throw new FileNotFoundException("application.properties is not on the classpath");
+            }
+            properties.load(inputStream);
+        }
+
+        StringBuilder csv = new StringBuilder("mode,tables,rows_per_table,wall_millis");
+        for (String phase : PHASES) {
+            csv.append(',').append(phase).append("_millis");
+        }
+        csv.append(",table_copies,peak_heap_bytes,completed\n");
+
+        for (String mode : modes) {
+            System.out.println("Generating schema " + benchmarkDatabase + " for mode " + mode);
+            long generateStart = System.nanoTime();
+            generateSchema();
+            System.out.println("Generated " + noOfTables + " tables with " + rowsPerTable + " rows each in " + (System.nanoTime() - generateStart) / 1000000 + " ms");
+
+            Map<String, String> result = runConverter(mode);
+            csv.append(mode).append(',').append(noOfTables).append(',').append(rowsPerTable).append(',').append(result.getOrDefault("wallMillis", "-1"));
+            for (String phase : PHASES) {
+                csv.append(',').append(result.getOrDefault("phase." + phase, "-1"));
+            }
+            csv.append(',').append(result.getOrDefault("tableCopies", "-1")).append(',').append(result.getOrDefault("peakHeapBytes", "-1"))
+                    .append(',').append(result.getOrDefault("completed", "false")).append('\n');
+            System.out.println(mode + " : " + result);
+        }
+
+        Files.write(outputFile, csv.toString().getBytes(StandardCharsets.UTF_8));
+        System.out.println("Stored results in " + outputFile);
+    }
+
+    private static Connection getConnection(String databaseName) throws SQLException {
+        return DriverManager.getConnection("jdbc:mysql://" + properties.getProperty("host") + ":" + properties.getProperty("port") + "/" + databaseName
+                + "?rewriteBatchedStatements=true&useUnicode=true&characterEncoding=UTF-8", properties.getProperty("username"), properties.getProperty("password"));
+    }
+
+    public static void generateSchema() throws SQLException {
+        try (Connection connection = getConnection("");
+             Statement statement = connection.createStatement()) {
+            statement.execute("DROP DATABASE IF EXISTS " + benchmarkDatabase + ";");
+            statement.execute("CREATE DATABASE " + benchmarkDatabase + " CHARACTER SET latin1 COLLATE latin1_swedish_ci;");
+        }
+
+        Random random = new Random(42);
+        try (Connection connection = getConnection(benchmarkDatabase);
+             Statement statement = connection.createStatement()) {
+            for (int tableNo = 0; tableNo < noOfTables; tableNo++) {
+                //the first table of every chain has no parent
+                boolean hasParent = tableNo % foreignKeyChainLength != 0;
+                String tableName = "table_" + tableNo;
+
+                StringBuilder createTable = new StringBuilder("CREATE TABLE " + tableName + " (id INT NOT NULL AUTO_INCREMENT, parent_id INT NULL, code VARCHAR(64) NOT NULL, name VARCHAR(255) NOT NULL");
+                for (int columnNo = 0; columnNo < varcharColumns; columnNo++) {
+                    createTable.append(", varchar_").append(columnNo).append(" VARCHAR(255) NULL");
+                }
+                for (int columnNo = 0; columnNo < textColumns; columnNo++) {
+                    createTable.append(", text_").append(columnNo).append(" TEXT NULL");
+                }
+                createTable.append(", PRIMARY KEY (id), UNIQUE KEY uk_code_name (code, name)");
+                if (varcharColumns > 0) {
+                    createTable.append(", KEY idx_varchar_0 (varchar_0)");
+                }
+                if (hasParent) {
+                    createTable.append(", CONSTRAINT fk_").append(tableName).append("_parent FOREIGN KEY (parent_id) REFERENCES table_").append(tableNo - 1).append(" (id) ON DELETE CASCADE");
+                }
+                createTable.append(") ENGINE=InnoDB;");
+                statement.execute(createTable.toString());
+
+                insertRows(connection, tableName, hasParent, random);
+            }
+        }
+    }
+
+    private static void insertRows(Connection connection, String tableName, boolean hasParent, Random random) throws SQLException {
+        StringBuilder insert = new StringBuilder("INSERT INTO " + tableName + " (parent_id, code, name");
+        StringBuilder values = new StringBuilder("?, ?, ?");
+        for (int columnNo = 0; columnNo < varcharColumns; columnNo++) {
+            insert.append(", varchar_").append(columnNo);
+            values.append(", ?");
+        }
+        for (int columnNo = 0; columnNo < textColumns; columnNo++) {
+            insert.append(", text_").append(columnNo);
+            values.append(", ?");
+        }
+        insert.append(") VALUES (").append(values).append(");");
+
+        connection.setAutoCommit(false);
+        try (PreparedStatement preparedStatement = connection.prepareStatement(insert.toString())) {
+            for (int rowNo = 1; rowNo <= rowsPerTable; rowNo++) {
+                int parameterNo = 1;
+                if (hasParent) {
+                    preparedStatement.setInt(parameterNo++, 1 + random.nextInt(rowsPerTable));
+                } else {
+                    preparedStatement.setNull(parameterNo++, Types.INTEGER);
+                }
+                preparedStatement.setString(parameterNo++, "c" + rowNo);
+                preparedStatement.setString(parameterNo++, randomText(random, 10 + random.nextInt(60)));
+                for (int columnNo = 0; columnNo < varcharColumns; columnNo++) {
+                    preparedStatement.setString(parameterNo++, randomText(random, random.nextInt(200)));
+                }
+                for (int columnNo = 0; columnNo < textColumns; columnNo++) {
+                    preparedStatement.setString(parameterNo++, randomText(random, random.nextInt(2000)));
+                }
+                preparedStatement.addBatch();
+                if (rowNo % 1000 == 0) {
+                    preparedStatement.executeBatch();
+                    connection.commit();
+                }
+            }
+            preparedStatement.executeBatch();
+            connection.commit();
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    //mostly ascii with some latin1 characters, which change their byte length in utf8mb4
+    private static String randomText(Random random, int length) {
+        String characters = "abcdefghijklmnopqrstuvwxyz ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789\u00e9\u00e8\u00e7\u00e0\u00fc\u00f6\u00df";
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append(characters.charAt(random.nextInt(characters.length())));
+        }
+        return text.toString();
+    }
+
+    //runs the converter in a new JVM, with application.properties of this mode first on the classpath
+    private static Map<String, String> runConverter(String mode) throws IOException, InterruptedException {
+        Path workingDirectory = Files.createTempDirectory("macro-benchmark-" + mode);
+        Properties modeProperties = new Properties();
+        modeProperties.putAll(properties);
+        modeProperties.putAll(getModeSettings(mode));
+        modeProperties.setProperty("databaseName", benchmarkDatabase);
+        modeProperties.setProperty("planOnly", "false");
+        try (OutputStream outputStream = Files.newOutputStream(workingDirectory.resolve("application.properties"))) {
+            modeProperties.store(outputStream, "Macro benchmark mode " + mode);
+        }
+
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        String classpath = workingDirectory + File.pathSeparator + System.getProperty("java.class.path");
+        Process process = new ProcessBuilder(java, "-cp", classpath, "MacroBenchmark$Runner")
+                .directory(workingDirectory.toFile()).redirectErrorStream(true).start();
+
+        Map<String, String> result = new LinkedHashMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(RESULT_PREFIX)) {
+                    String[] keyValue = line.substring(RESULT_PREFIX.length()).split("=", 2);
+                    result.put(keyValue[0], keyValue[1]);
+                } else {
+                    System.out.println("  " + line);
+                }
+            }
+        }
+        int exitCode = process.waitFor();
+        if (exitCode != 0) {
+            System.out.println("Converter of mode " + mode + " exited with " + exitCode + ", files are in " + workingDirectory);
+        }
+        return result;
+    }
+
+    /**
+     * Runs the converter in the JVM started for one mode, and prints the results read from its run report.
+     */
+    public static class Runner {
+
+        private static final Pattern PHASE = Pattern.compile("\\{\"name\": \"(\\w+)\", \"millis\": (\\d+)\\}");
+        private static final Pattern SHADOW_TABLE = Pattern.compile("ALTER TABLE (\\S+\\.)?_\\S*_NEW ");
+        //last field of every line of the statements file, quoted with doubled quotes
+        private static final Pattern QUERY = Pattern.compile(",\"((?:[^\"]|\"\")*)\"\r?\n");
+
+        public static void main(String[] args) throws IOException {
+            Properties properties = new Properties();
+            try (InputStream inputStream = Runner.class.getClassLoader().getResourceAsStream("application.properties")) {
+                properties.load(inputStream);
+            }
+            String databaseName = properties.getProperty("databaseName");
+
+            long startNanos = System.nanoTime();
+            DatabaseConverter.main(args);
+            long wallMillis = (System.nanoTime() - startNanos) / 1000000;
+
+            long peakHeapBytes = 0;
+            for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (memoryPool.getType() == MemoryType.HEAP) {
+                    peakHeapBytes += memoryPool.getPeakUsage().getUsed();
+                }
+            }
+
+            System.out.println(RESULT_PREFIX + "wallMillis=" + wallMillis);
+            System.out.println(RESULT_PREFIX + "peakHeapBytes=" + peakHeapBytes);
+            System.out.println(RESULT_PREFIX + "completed=" + Files.exists(Paths.get(databaseName + "-checkpoint.journal.completed")));
+
+            Path report = Paths.get(databaseName + "-run-report.json");
+            if (Files.exists(report)) {
+                String json = new String(Files.readAllBytes(report), StandardCharsets.UTF_8);
+                Matcher phase = PHASE.matcher(json);
+                while (phase.find()) {
+                    System.out.println(RESULT_PREFIX + "phase." + phase.group(1) + "=" + phase.group(2));
+                }
+            }
+            Path statements = Paths.get(databaseName + "-run-statements.csv");
+            if (Files.exists(statements)) {
+                System.out.println(RESULT_PREFIX + "tableCopies=" + countTableCopies(new String(Files.readAllBytes(statements), StandardCharsets.UTF_8)));
+            }
+        }
+
+        //statements which copy all rows of a table : shadow tables, and ALTER TABLE converting columns or the table charset,
+        //a charset change cannot be done in place, and the ALTER TABLE of an empty shadow table copies nothing
+        private static int countTableCopies(String statements) {
+            int tableCopies = 0;
+            Matcher query = QUERY.matcher(statements);
+            while (query.find()) {
+                String statement = query.group(1).toUpperCase(Locale.ROOT);
+                if (statement.startsWith("CREATE TABLE") && statement.contains(" LIKE ")) {
+                    tableCopies++;
+                } else if (statement.startsWith("ALTER TABLE") && !SHADOW_TABLE.matcher(statement).lookingAt()
+                        && (statement.contains(" MODIFY ") || statement.contains("CHARACTER SET"))) {
+                    tableCopies++;
+                }
+            }
+            return tableCopies;
+        }
+    }
+}
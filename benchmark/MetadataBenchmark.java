@@ -0,0 +1,271 @@
+/**
+ * Micro benchmark of the metadata processing and plan generation : classification of the INFORMATION_SCHEMA rows into
+ * primary, unique, foreign and other indexes, grouping of index rows into index definitions, and generation of the ALTER TABLE
+ * statements of every table. Rows of synthetic schemas with 1k, 10k and 100k columns are generated in memory before measuring,
+ * so no database is needed and only the processing is measured.
+ *
+ * Every benchmark is warmed up and then measured for a number of iterations, reporting throughput and bytes allocated per operation.
+ * Results are written to a CSV file, and when a baseline CSV of an earlier run is given, any benchmark whose throughput dropped more
+ * than the threshold is reported and the exit code is 1.
+ *
+ * Compile with the sources of the converter and run with application.properties on the classpath :
+ *   javac -cp "lib/*" -d out src/*.java benchmark/*.java
+ *   java -cp "out:lib/*:resources" MetadataBenchmark [-columns 1000,10000,100000] [-output benchmark-results.csv] [-baseline old-results.csv]
+ * System properties : warmupIterations (3), iterations (5), iterationMillis (1000), regressionThreshold (0.10).
+ */
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.function.Supplier;
+
+public class MetadataBenchmark {
+
+    private static final String NEW_CHARSET = "utf8mb4";
+    private static final String NEW_COLLATION = "utf8mb4_unicode_ci";
+
+    //keeps results alive, so that the JIT cannot remove the measured work
+    private static volatile int sink;
+
+    private static final com.sun.management.ThreadMXBean THREAD_MX_BEAN = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static int warmupIterations = Integer.getInteger("warmupIterations", 3);
+    private static int iterations = Integer.getInteger("iterations", 5);
+    private static long iterationMillis = Long.getLong("iterationMillis", 1000);
+    private static double regressionThreshold = Double.parseDouble(System.getProperty("regressionThreshold", "0.10"));
+
+    /**
+     * Metadata rows of a schema with 10 columns per table, in the same shape as the rows of the INFORMATION_SCHEMA views :
+     * an int primary key, an int foreign key to the previous table, a composite unique key of two varchar columns,
+     * an index on a long varchar column with a prefix, and text columns without index.
+     */
+    private static class SyntheticSchema {
+        private List<String[]> statistics = new ArrayList<>();
+        private List<String[]> constraints = new ArrayList<>();
+        private List<String[]> foreignKeyRules = new ArrayList<>();
+        private List<String[]> keyUsages = new ArrayList<>();
+        //TABLE_NAME, COLUMN_NAME, COLLATION_NAME, CHARACTER_MAXIMUM_LENGTH, COLUMN_TYPE, IS_NULLABLE, COLUMN_DEFAULT
+        private List<String[]> columns = new ArrayList<>();
+        private List<String> tableNames = new ArrayList<>();
+
+        private SyntheticSchema(int noOfColumns) {
+            int noOfTables = Math.max(1, noOfColumns / 10);
+            for (int tableNo = 0; tableNo < noOfTables; tableNo++) {
+                String tableName = "table_" + tableNo;
+                tableNames.add(tableName);
+
+                column(tableName, "id", null, "0", "int(11)", "NO", null);
+                column(tableName, "parent_id", null, "0", "int(11)", "YES", null);
+                column(tableName, "code", "latin1_swedish_ci", "64", "varchar(64)", "NO", null);
+                column(tableName, "name", "latin1_swedish_ci", "255", "varchar(255)", "NO", "");
+                column(tableName, "email", "latin1_swedish_ci", "255", "varchar(255)", "YES", null);
+                for (int columnNo = 5; columnNo < 10; columnNo++) {
+                    column(tableName, "text_" + columnNo, "latin1_swedish_ci", "65535", "text", "YES", null);
+                }
+
+                constraints.add(new String[]{tableName, "PRIMARY", "PRIMARY KEY"});
+                statistics.add(new String[]{tableName, "id", "PRIMARY", "1", null});
+                keyUsages.add(new String[]{tableName, "id", "PRIMARY", null, null, "1"});
+
+                constraints.add(new String[]{tableName, "uk_code_name", "UNIQUE"});
+                statistics.add(new String[]{tableName, "code", "uk_code_name", "1", null});
+                statistics.add(new String[]{tableName, "name", "uk_code_name", "2", null});
+                keyUsages.add(new String[]{tableName, "code", "uk_code_name", null, null, "1"});
+                keyUsages.add(new String[]{tableName, "name", "uk_code_name", null, null, "2"});
+
+                statistics.add(new String[]{tableName, "email", "idx_email", "1", "191"});
+
+                if (tableNo > 0) {
+                    String foreignKeyName = "fk_" + tableName + "_parent";
+                    constraints.add(new String[]{tableName, foreignKeyName, "FOREIGN KEY"});
+                    foreignKeyRules.add(new String[]{tableName, foreignKeyName, "CASCADE", "RESTRICT"});
+                    statistics.add(new String[]{tableName, "parent_id", foreignKeyName, "1", null});
+                    keyUsages.add(new String[]{tableName, "parent_id", foreignKeyName, "table_" + (tableNo - 1), "id", "1"});
+                }
+            }
+        }
+
+        private void column(String tableName, String columnName, String collationName, String characterMaxLength, String columnType, String isNullable, String columnDefault) {
+            columns.add(new String[]{tableName, columnName, collationName, characterMaxLength, columnType, isNullable, columnDefault});
+        }
+
+        //same order as SchemaSnapshot.load
+        private SchemaSnapshot load() {
+            SchemaSnapshot.Builder builder = new SchemaSnapshot.Builder();
+            for (String[] row : statistics) {
+                builder.addIndexEntry(row[0], row[1], row[2], row[3], row[4]);
+            }
+            for (String[] row : constraints) {
+                builder.addConstraint(row[0], row[1], row[2]);
+            }
+            for (String[] row : foreignKeyRules) {
+                builder.addForeignKeyRule(row[0], row[1], row[2], row[3]);
+            }
+            for (String[] row : keyUsages) {
+                builder.addKeyUsage(row[0], row[1], row[2], row[3], row[4], row[5]);
+            }
+            for (String[] row : columns) {
+                builder.addColumn(row[0], row[1], row[2], Long.parseLong(row[3]));
+            }
+            return builder.build();
+        }
+
+        //same steps as DatabaseConverter.compileTablePlans, without the database
+        private List<String> generateStatements(SchemaSnapshot snapshot) {
+            Map<String, TableConversionPlan> tablePlans = DatabaseConverter.planIndexChanges(snapshot);
+            for (String[] row : columns) {
+                if (row[2] != null) {
+                    DatabaseConverter.planColumnChange(tablePlans, row[0], row[1], row[4], row[5], row[6], NEW_CHARSET, NEW_COLLATION);
+                }
+            }
+            for (String tableName : tableNames) {
+                tablePlans.computeIfAbsent(tableName, TableConversionPlan::new).changeTableCharset(NEW_CHARSET, NEW_COLLATION);
+            }
+            List<String> statements = new ArrayList<>();
+            for (TableConversionPlan tablePlan : tablePlans.values()) {
+                statements.add(tablePlan.getAlterStatement());
+                if (tablePlan.hasForeignKeys()) {
+                    statements.add(tablePlan.getForeignKeyStatement());
+                }
+            }
+            return statements;
+        }
+    }
+
+    private static class Result {
+        private String benchmark;
+        private int noOfColumns;
+        private double opsPerSecond;
+        private double bytesPerOp;
+
+        private Result(String benchmark, int noOfColumns, double opsPerSecond, double bytesPerOp) {
+            this.benchmark = benchmark;
+            this.noOfColumns = noOfColumns;
+            this.opsPerSecond = opsPerSecond;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        private String getKey() {
+            return benchmark + "," + noOfColumns;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<Integer> columnCounts = Arrays.asList(1000, 10000, 100000);
+        Path outputFile = Paths.get("benchmark-results.csv");
+        Path baselineFile = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-columns":
+                    columnCounts = new ArrayList<>();
+                    for (String columnCount : args[i + 1].split(",")) {
+                        columnCounts.add(Integer.parseInt(columnCount.trim()));
+                    }
+                    break;
+                case "-output":
+                    outputFile = Paths.get(args[i + 1]);
+                    break;
+                case "-baseline":
+                    baselineFile = Paths.get(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (!THREAD_MX_BEAN.isThreadAllocatedMemorySupported()) {
+            System.out.println("Allocation is not measured because this JVM does not support thread allocated memory.");
+        } else {
+            THREAD_MX_BEAN.setThreadAllocatedMemoryEnabled(true);
+        }
+
+        List<Result> results = new ArrayList<>();
+        for (int noOfColumns : columnCounts) {
+            SyntheticSchema schema = new SyntheticSchema(noOfColumns);
+            SchemaSnapshot snapshot = schema.load();
+
+            results.add(run("classify", noOfColumns, () -> schema.load().getOtherIndexes().size()));
+            results.add(run("group", noOfColumns, () -> IndexDefinition.group(snapshot.getUniqueKeyIndexes(), IndexDefinition.UNIQUE).size()
+                    + IndexDefinition.group(snapshot.getOtherIndexes(), IndexDefinition.KEY).size()));
+            results.add(run("alterStatements", noOfColumns, () -> schema.generateStatements(snapshot).size()));
+        }
+
+        StringBuilder csv = new StringBuilder("benchmark,columns,ops_per_second,bytes_per_op\n");
+        for (Result result : results) {
+            csv.append(result.getKey()).append(',').append(String.format(Locale.ROOT, "%.3f", result.opsPerSecond))
+                    .append(',').append(String.format(Locale.ROOT, "%.0f", result.bytesPerOp)).append('\n');
+        }
+        Files.write(outputFile, csv.toString().getBytes(StandardCharsets.UTF_8));
+        System.out.println("Stored results in " + outputFile);
+
+        if (baselineFile != null && compare(results, baselineFile)) {
+            System.exit(1);
+        }
+    }
+
+    //warms up, then measures iterations of at least iterationMillis each
+    private static Result run(String benchmark, int noOfColumns, Supplier<Integer> operation) {
+        for (int i = 0; i < warmupIterations; i++) {
+            measure(operation);
+        }
+        long totalOps = 0;
+        long totalNanos = 0;
+        long totalBytes = 0;
+        for (int i = 0; i < iterations; i++) {
+            long[] measurement = measure(operation);
+            totalOps += measurement[0];
+            totalNanos += measurement[1];
+            totalBytes += measurement[2];
+        }
+        Result result = new Result(benchmark, noOfColumns, totalOps / (totalNanos / 1e9), (double) totalBytes / totalOps);
+        System.out.println(String.format(Locale.ROOT, "%-16s %7d columns %12.3f ops/s %14.0f bytes/op", benchmark, noOfColumns, result.opsPerSecond, result.bytesPerOp));
+        return result;
+    }
+
+    //operations, nanoseconds and allocated bytes of one iteration
+    private static long[] measure(Supplier<Integer> operation) {
+        long threadId = Thread.currentThread().getId();
+        long startBytes = THREAD_MX_BEAN.getThreadAllocatedBytes(threadId);
+        long startNanos = System.nanoTime();
+        long endNanos = startNanos + iterationMillis * 1000000;
+        long ops = 0;
+        int result = 0;
+        long now;
+        do {
+            result += operation.get();
+            ops++;
+            now = System.nanoTime();
+        } while (now < endNanos);
+        long allocatedBytes = THREAD_MX_BEAN.getThreadAllocatedBytes(threadId) - startBytes;
+        sink += result;
+        return new long[]{ops, now - startNanos, Math.max(0, allocatedBytes)};
+    }
+
+    //true when a benchmark is slower than the baseline by more than the threshold
+    private static boolean compare(List<Result> results, Path baselineFile) throws IOException {
+        Map<String, Double> baseline = new HashMap<>();
+        List<String> lines = Files.readAllLines(baselineFile, StandardCharsets.UTF_8);
+        for (String line : lines.subList(1, lines.size())) {
+            String[] fields = line.split(",");
+            if (fields.length >= 3) {
+                baseline.put(fields[0] + "," + fields[1], Double.parseDouble(fields[2]));
+            }
+        }
+
+        boolean regressed = false;
+        for (Result result : results) {
+            Double baselineOpsPerSecond = baseline.get(result.getKey());
+            if (baselineOpsPerSecond == null || baselineOpsPerSecond == 0) {
+                continue;
+            }
+            double change = result.opsPerSecond / baselineOpsPerSecond - 1;
+            String status = change < -regressionThreshold ? "REGRESSION" : "ok";
+            regressed |= change < -regressionThreshold;
+            System.out.println(String.format(Locale.ROOT, "%-16s %7d columns %+8.1f%% %s", result.benchmark, result.noOfColumns, change * 100, status));
+        }
+        return regressed;
+    }
+}
@@ -0,0 +1,226 @@
+/**
+ * Persistent journal of a conversion, so that a failed run can be started again and resumes at the first incomplete step
+ * instead of starting from scratch.
+ * The index metadata collected before any index is dropped is stored first, because collecting it again after a failure
+ * would miss the indexes which were already dropped. Every completed step of every table is then appended and synced to disk.
+ *
+ * Every line is tab separated, null values are stored as \N :
+ * INDEX    category, tableName, columnName, constraintName, referencedTableName, referencedColumnName, ordinalPosition, characterMaxLength, prefixLength, hasCollation
+ * RULE     table.constraint, foreign key rule
+ * INDEX_NAME   table.index
+ * COLLATION    table.column, collation
+ * SNAPSHOT_SAVED
+ * DONE     tableName, step
+ */
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.*;
+
+public class CheckpointJournal {
+
+    private static final Logger LOGGER = Logger.getLogger(CheckpointJournal.class.getName());
+
+    //steps of a table, the merged ALTER TABLE completes the first four at once
+    public static final String INDEXES_DROPPED = "INDEXES_DROPPED";
+    public static final String COLUMNS_CONVERTED = "COLUMNS_CONVERTED";
+    public static final String TABLE_CONVERTED = "TABLE_CONVERTED";
+    public static final String INDEXES_RECREATED = "INDEXES_RECREATED";
+    public static final String FOREIGN_KEYS_DROPPED = "FOREIGN_KEYS_DROPPED";
+    public static final String FOREIGN_KEYS_CREATED = "FOREIGN_KEYS_CREATED";
+
+    //steps which are not specific to a table are recorded against this name
+    public static final String DATABASE = "*";
+
+    private static final String NULL = "\\N";
+
+    private Path journalFile;
+    private FileChannel fileChannel = null;
+    private Set<String> completedSteps = new HashSet<>();
+    private SchemaSnapshot snapshot = null;
+
+    public CheckpointJournal(Path journalFile) throws SQLException {
+        this.journalFile = journalFile;
+        if (Files.exists(journalFile)) {
+            load();
+        }
+    }
+
+    public Path getJournalFile() {
+        return journalFile;
+    }
+
+    //snapshot stored by a previous run, null when there is nothing to resume
+    public SchemaSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    public synchronized boolean isDone(String tableName, String step) {
+        return completedSteps.contains(tableName + "\t" + step);
+    }
+
+    //tables for which the step is recorded as done
+    public synchronized Set<String> getTablesDone(String step) {
+        Set<String> tableNames = new TreeSet<>();
+        for (String completedStep : completedSteps) {
+            if (completedStep.endsWith("\t" + step)) {
+                tableNames.add(completedStep.substring(0, completedStep.length() - step.length() - 1));
+            }
+        }
+        return tableNames;
+    }
+
+    public synchronized void markDone(String tableName, String step) throws SQLException {
+        if (completedSteps.add(tableName + "\t" + step)) {
+            append(Collections.singletonList("DONE\t" + tableName + "\t" + step));
+        }
+    }
+
+    public synchronized void saveSnapshot(SchemaSnapshot snapshot) throws SQLException {
+        List<String> lines = new ArrayList<>();
+        addIndexes(lines, "PRIMARY", snapshot.getPrimaryKeyIndexes());
+        addIndexes(lines, "UNIQUE", snapshot.getUniqueKeyIndexes());
+        addIndexes(lines, "FOREIGN", snapshot.getForeignKeyIndexes());
+        addIndexes(lines, "OTHER", snapshot.getOtherIndexes());
+        for (Map.Entry<String, String> rule : snapshot.getForeignKeyRules().entrySet()) {
+            lines.add("RULE\t" + rule.getKey() + "\t" + rule.getValue());
+        }
+        for (String indexName : snapshot.getIndexNames()) {
+            lines.add("INDEX_NAME\t" + indexName);
+        }
+        for (Map.Entry<String, String> collation : snapshot.getColumnCollations().entrySet()) {
+            lines.add("COLLATION\t" + collation.getKey() + "\t" + collation.getValue());
+        }
+        lines.add("SNAPSHOT_SAVED");
+        append(lines);
+        this.snapshot = snapshot;
+    }
+
+    //keeps the journal of a successful run next to the scripts, a new run starts from scratch
+    public synchronized void complete() throws SQLException {
+        try {
+            close();
+            Path completedFile = Paths.get(journalFile + ".completed");
+            Files.move(journalFile, completedFile, StandardCopyOption.REPLACE_EXISTING);
+            LOGGER.info("Conversion completed, journal moved to " + completedFile);
+        } catch (IOException e) {
+            throw new SQLException("Could not complete checkpoint journal " + journalFile, e);
+        }
+    }
+
+    public synchronized void close() throws SQLException {
+        if (fileChannel != null) {
+            try {
+                fileChannel.close();
+            } catch (IOException e) {
+                throw new SQLException("Could not close checkpoint journal " + journalFile, e);
+            }
+            fileChannel = null;
+        }
+    }
+
+    private void addIndexes(List<String> lines, String category, List<KeyDetail> indexes) {
+        for (KeyDetail index : indexes) {
+            lines.add("INDEX\t" + category + "\t" + String.join("\t", encode(index.getTableName()), encode(index.getColumnName()), encode(index.getConstraintName()),
+                    encode(index.getReferencedTableName()), encode(index.getReferencedColumnName()), String.valueOf(index.getOrdinalPosition()),
+                    String.valueOf(index.getCharacterMaxLength()), String.valueOf(index.getPrefixLength()), String.valueOf(index.isHasCollation())));
+        }
+    }
+
+    //every line is written and synced before the step is considered done
+    private void append(List<String> lines) throws SQLException {
+        try {
+            if (fileChannel == null) {
+                fileChannel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            StringBuilder data = new StringBuilder();
+            for (String line : lines) {
+                data.append(line).append("\n");
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(data.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                fileChannel.write(buffer);
+            }
+            fileChannel.force(false);
+        } catch (IOException e) {
+            throw new SQLException("Could not write checkpoint journal " + journalFile, e);
+        }
+    }
+
+    private void load() throws SQLException {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(journalFile, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new SQLException("Could not read checkpoint journal " + journalFile, e);
+        }
+
+        Map<String, List<KeyDetail>> indexes = new HashMap<>();
+        Map<String, String> foreignKeyRules = new HashMap<>();
+        Set<String> indexNames = new HashSet<>();
+        Map<String, String> columnCollations = new HashMap<>();
+        boolean snapshotSaved = false;
+        for (String line : lines) {
+            String[] fields = line.split("\t", -1);
+            try {
+                switch (fields[0]) {
+                    case "INDEX":
+                        indexes.computeIfAbsent(fields[1], key -> new ArrayList<>()).add(new KeyDetail(decode(fields[2]), decode(fields[3]), decode(fields[4]),
+                                decode(fields[5]), decode(fields[6]), Integer.parseInt(fields[7]), Long.parseLong(fields[8]), Integer.parseInt(fields[9]), Boolean.parseBoolean(fields[10])));
+                        break;
+                    case "RULE":
+                        foreignKeyRules.put(fields[1], fields[2]);
+                        break;
+                    case "INDEX_NAME":
+                        indexNames.add(fields[1]);
+                        break;
+                    case "COLLATION":
+                        columnCollations.put(fields[1], fields[2]);
+                        break;
+                    case "SNAPSHOT_SAVED":
+                        snapshotSaved = true;
+                        break;
+                    case "DONE":
+                        completedSteps.add(fields[1] + "\t" + fields[2]);
+                        break;
+                    default:
+                        LOGGER.warn("Ignoring line of checkpoint journal : " + line);
+                }
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                //a partially written last line of a crashed run
+                LOGGER.warn("Ignoring incomplete line of checkpoint journal : " + line);
+            }
+        }
+
+        //a snapshot without its end marker was interrupted while being written, nothing has been changed yet
+        if (snapshotSaved) {
+            snapshot = SchemaSnapshot.restore(indexes.getOrDefault("PRIMARY", new ArrayList<>()), indexes.getOrDefault("UNIQUE", new ArrayList<>()),
+                    indexes.getOrDefault("FOREIGN", new ArrayList<>()), indexes.getOrDefault("OTHER", new ArrayList<>()), foreignKeyRules, indexNames, columnCollations);
+        } else {
+            completedSteps.clear();
+            try {
+                Files.delete(journalFile);
+            } catch (IOException e) {
+                throw new SQLException("Could not delete incomplete checkpoint journal " + journalFile, e);
+            }
+        }
+    }
+
+    private static String encode(String value) {
+        return value == null ? NULL : value;
+    }
+
+    private static String decode(String value) {
+        return NULL.equals(value) ? null : value;
+    }
+}
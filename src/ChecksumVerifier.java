@@ -0,0 +1,310 @@
+/**
+ * Verifies that the conversion kept the data of every row. Before any DDL, the rows of every table with a column to convert are
+ * split into chunks and the server computes the number of rows and the BIT_XOR of the CRC32 of every row of each chunk, with every
+ * character column converted to the new charset first, so that a row which survived the conversion has the same checksum after it.
+ * After the conversion the same chunks are checksummed again and only the chunks whose row count or checksum differ are reported.
+ *
+ * Tables with an integer primary key are split into ranges of the key, each range read through the primary key by its own query.
+ * Ranges of character keys are not stable across collations, so other tables are split into buckets by a hash of the converted key,
+ * or of the whole row without a primary key, and all buckets of a table are computed by one GROUP BY. Chunks and tables are checksummed
+ * concurrently, and no row is sent to the client.
+ *
+ * Every write between both checksums makes its chunk differ, so the application must not write during the conversion.
+ * Online mode and shadow copies exist to keep it writing, so verifying checksums is rejected together with them.
+ *
+ * The checksums before the conversion are stored in <database>-checksums.tsv, so that a resumed run verifies against them :
+ * TABLE, tableName, number of buckets (0 for ranges of the primary key)
+ * CHUNK, tableName, range condition or bucket number, number of rows, checksum
+ */
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class ChecksumVerifier {
+
+    private static final Logger LOGGER = Logger.getLogger(ChecksumVerifier.class.getName());
+
+    private static final Set<String> INTEGER_TYPES = new HashSet<>(Arrays.asList("tinyint", "smallint", "mediumint", "int", "bigint"));
+
+    private DatabaseConverter converter;
+    private ConnectionPool connectionPool;
+    private String newCharset;
+    private int noOfWorkers;
+    private long chunkRows;
+    private Path checksumFile;
+
+    //tableName -> number of buckets, 0 for tables split into ranges of the primary key, in table order
+    private Map<String, Integer> tables = new TreeMap<>();
+
+    //tableName -> chunk -> "rows checksum" before the conversion, chunks in the order of the ranges
+    private Map<String, Map<String, String>> checksumsBefore = new TreeMap<>();
+
+    public ChecksumVerifier(DatabaseConverter converter, ConnectionPool connectionPool, String newCharset, int noOfWorkers, long chunkRows, Path checksumFile) {
+        this.converter = converter;
+        this.connectionPool = connectionPool;
+        this.newCharset = newCharset;
+        this.noOfWorkers = Math.max(1, noOfWorkers);
+        this.chunkRows = Math.max(1, chunkRows);
+        this.checksumFile = checksumFile;
+    }
+
+    //checksums of the given tables before any DDL, tableRows are the TABLE_ROWS estimates used for the number of chunks
+    public void computeBefore(Connection informationSchemaConnection, Collection<String> tableNames, Map<String, Long> tableRows) throws SQLException {
+        Map<String, List<String[]>> columns = getColumns(informationSchemaConnection);
+        Map<String, List<String>> rangeConditions = new HashMap<>();
+        for (String tableName : tableNames) {
+            List<String> primaryKeyColumns = converter.getPrimaryKeyColumns(tableName);
+            long noOfChunks = Math.max(1, (tableRows.getOrDefault(tableName, 0L) + chunkRows - 1) / chunkRows);
+            if (!primaryKeyColumns.isEmpty() && INTEGER_TYPES.contains(getDataType(columns.get(tableName), primaryKeyColumns.get(0)))) {
+                tables.put(tableName, 0);
+                rangeConditions.put(tableName, getRangeConditions(tableName, primaryKeyColumns.get(0), noOfChunks));
+            } else {
+                tables.put(tableName, (int) Math.min(noOfChunks, Integer.MAX_VALUE));
+            }
+        }
+        checksumsBefore = compute(columns, rangeConditions);
+        save();
+
+        long noOfChunks = 0;
+        for (Map<String, String> chunks : checksumsBefore.values()) {
+            noOfChunks += chunks.size();
+        }
+        LOGGER.info("Stored checksums of " + noOfChunks + " chunks of " + tables.size() + " tables in " + checksumFile);
+    }
+
+    //chunks whose rows differ from before the conversion, empty when all rows were kept
+    public List<String> verifyAfter(Connection informationSchemaConnection) throws SQLException {
+        if (checksumsBefore.isEmpty()) {
+            load();
+        }
+        Map<String, List<String>> rangeConditions = new HashMap<>();
+        for (Map.Entry<String, Integer> table : tables.entrySet()) {
+            if (table.getValue() == 0) {
+                rangeConditions.put(table.getKey(), new ArrayList<>(checksumsBefore.getOrDefault(table.getKey(), Collections.emptyMap()).keySet()));
+            }
+        }
+        Map<String, Map<String, String>> checksumsAfter = compute(getColumns(informationSchemaConnection), rangeConditions);
+
+        List<String> mismatches = new ArrayList<>();
+        for (String tableName : tables.keySet()) {
+            Map<String, String> before = checksumsBefore.getOrDefault(tableName, Collections.emptyMap());
+            Map<String, String> after = checksumsAfter.getOrDefault(tableName, Collections.emptyMap());
+            Set<String> chunks = new LinkedHashSet<>(before.keySet());
+            chunks.addAll(after.keySet());
+            for (String chunk : chunks) {
+                String beforeChecksum = before.getOrDefault(chunk, "0 0");
+                String afterChecksum = after.getOrDefault(chunk, "0 0");
+                if (!beforeChecksum.equals(afterChecksum)) {
+                    String[] beforeValues = beforeChecksum.split(" ");
+                    String[] afterValues = afterChecksum.split(" ");
+                    mismatches.add(tableName + (tables.get(tableName) == 0 ? " WHERE " + chunk : " bucket " + chunk + " of " + tables.get(tableName)) + " : "
+                            + beforeValues[0] + " rows with checksum " + beforeValues[1] + " before, " + afterValues[0] + " rows with checksum " + afterValues[1] + " after");
+                }
+            }
+        }
+        return mismatches;
+    }
+
+    //table.column -> name, data type and collation of every column, in column order
+    private Map<String, List<String[]>> getColumns(Connection informationSchemaConnection) throws SQLException {
+        PreparedStatement preparedStatement = StatementCache.prepareStatement(informationSchemaConnection, "SELECT TABLE_NAME, COLUMN_NAME, DATA_TYPE, COLLATION_NAME FROM COLUMNS WHERE TABLE_SCHEMA = ? ORDER BY TABLE_NAME, ORDINAL_POSITION;");
+        preparedStatement.setString(1, converter.getDatabaseName());
+        converter.appendToAllQueries(StatementCache.asSql(preparedStatement).replace("FROM COLUMNS", "FROM INFORMATION_SCHEMA.COLUMNS"));
+
+        Map<String, List<String[]>> columns = new HashMap<>();
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+            while (resultSet.next()) {
+                columns.computeIfAbsent(resultSet.getString("TABLE_NAME"), key -> new ArrayList<>())
+                        .add(new String[]{resultSet.getString("COLUMN_NAME"), resultSet.getString("DATA_TYPE"), resultSet.getString("COLLATION_NAME")});
+            }
+        }
+        return columns;
+    }
+
+    private static String getDataType(List<String[]> columns, String columnName) {
+        for (String[] column : columns) {
+            if (column[0].equals(columnName)) {
+                return column[1];
+            }
+        }
+        return null;
+    }
+
+    /*
+    id < 1000, id >= 1000 AND id < 2000, ..., id >= 9000
+    equal ranges between the smallest and the biggest key, open at both ends
+    */
+    private List<String> getRangeConditions(String tableName, String keyColumn, long noOfChunks) throws SQLException {
+        String query = "SELECT MIN(" + keyColumn + ") AS minKey, MAX(" + keyColumn + ") AS maxKey FROM " + tableName + ";";
+        String[] bounds = new String[2];
+        forEachRow(query, resultSet -> {
+            bounds[0] = resultSet.getString("minKey");
+            bounds[1] = resultSet.getString("maxKey");
+        });
+        if (bounds[0] == null || noOfChunks == 1) {
+            return Collections.singletonList(keyColumn + " IS NOT NULL");
+        }
+
+        BigInteger minKey = new BigInteger(bounds[0]);
+        BigInteger width = new BigInteger(bounds[1]).subtract(minKey).add(BigInteger.ONE).add(BigInteger.valueOf(noOfChunks - 1)).divide(BigInteger.valueOf(noOfChunks));
+        List<String> conditions = new ArrayList<>();
+        BigInteger lowerBound = null;
+        for (long chunkNo = 1; chunkNo < noOfChunks; chunkNo++) {
+            BigInteger upperBound = minKey.add(width.multiply(BigInteger.valueOf(chunkNo)));
+            conditions.add((lowerBound == null ? "" : keyColumn + " >= " + lowerBound + " AND ") + keyColumn + " < " + upperBound);
+            lowerBound = upperBound;
+        }
+        conditions.add(keyColumn + " >= " + lowerBound);
+        return conditions;
+    }
+
+    private Map<String, Map<String, String>> compute(Map<String, List<String[]>> columns, Map<String, List<String>> rangeConditions) throws SQLException {
+        Map<String, Map<String, String>> checksums = new ConcurrentHashMap<>();
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (Map.Entry<String, Integer> table : tables.entrySet()) {
+            String tableName = table.getKey();
+            Map<String, String> chunks = Collections.synchronizedMap(new LinkedHashMap<>());
+            checksums.put(tableName, chunks);
+            //missing columns are reported as a mismatch of every chunk rather than a failed query
+            String rowChecksum = getRowChecksum(columns.getOrDefault(tableName, Collections.emptyList()));
+
+            if (table.getValue() == 0) {
+                for (String condition : rangeConditions.get(tableName)) {
+                    chunks.put(condition, "0 0");
+                    tasks.add(() -> {
+                        forEachRow("SELECT COUNT(*) AS noOfRows, BIT_XOR(" + rowChecksum + ") AS checksum FROM " + tableName + " WHERE " + condition + ";",
+                                resultSet -> chunks.put(condition, resultSet.getLong("noOfRows") + " " + resultSet.getString("checksum")));
+                        return null;
+                    });
+                }
+            } else {
+                String bucket = "MOD(" + getBucketKey(tableName, columns.getOrDefault(tableName, Collections.emptyList()), rowChecksum) + ", " + table.getValue() + ")";
+                tasks.add(() -> {
+                    forEachRow("SELECT " + bucket + " AS chunk, COUNT(*) AS noOfRows, BIT_XOR(" + rowChecksum + ") AS checksum FROM " + tableName + " GROUP BY chunk;",
+                            resultSet -> chunks.put(resultSet.getString("chunk"), resultSet.getLong("noOfRows") + " " + resultSet.getString("checksum")));
+                    return null;
+                });
+            }
+        }
+
+        LOGGER.info("\nChecksumming " + tasks.size() + " chunks and tables with " + noOfWorkers + " workers\n");
+        ExecutorService executorService = Executors.newFixedThreadPool(noOfWorkers);
+        try {
+            for (Future<Void> future : executorService.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Checksums interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException("Checksums failed", e.getCause());
+        } finally {
+            executorService.shutdownNow();
+        }
+        return checksums;
+    }
+
+    /*
+    CRC32(CONCAT_WS(0x00, id, CONVERT(name USING utf8mb4), ..., CONCAT(ISNULL(id), ISNULL(name), ...)))
+    character columns are compared in the new charset, the null flags tell NULL from an empty value
+    */
+    private String getRowChecksum(List<String[]> columns) {
+        List<String> values = new ArrayList<>();
+        List<String> nullFlags = new ArrayList<>();
+        for (String[] column : columns) {
+            values.add(getValue(column));
+            nullFlags.add("ISNULL(" + column[0] + ")");
+        }
+        if (values.isEmpty()) {
+            return "0";
+        }
+        return "CRC32(CONCAT_WS(0x00, " + String.join(", ", values) + ", CONCAT(" + String.join(", ", nullFlags) + ")))";
+    }
+
+    private String getValue(String[] column) {
+        return column[2] != null ? "CONVERT(" + column[0] + " USING " + newCharset + ")" : column[0];
+    }
+
+    //hash of the converted primary key, or the row checksum without a primary key
+    private String getBucketKey(String tableName, List<String[]> columns, String rowChecksum) {
+        List<String> keyValues = new ArrayList<>();
+        for (String keyColumn : converter.getPrimaryKeyColumns(tableName)) {
+            for (String[] column : columns) {
+                if (column[0].equals(keyColumn)) {
+                    keyValues.add(getValue(column));
+                }
+            }
+        }
+        return keyValues.isEmpty() ? rowChecksum : "CRC32(CONCAT_WS(0x00, " + String.join(", ", keyValues) + "))";
+    }
+
+    private interface RowHandler {
+        void handle(ResultSet resultSet) throws SQLException;
+    }
+
+    private void forEachRow(String query, RowHandler rowHandler) throws SQLException {
+        Connection connection = connectionPool.borrow();
+        try (Statement statement = connection.createStatement()) {
+            converter.appendToAllQueries(query);
+            try (ResultSet resultSet = statement.executeQuery(query)) {
+                while (resultSet.next()) {
+                    rowHandler.handle(resultSet);
+                }
+            }
+        } finally {
+            connectionPool.release(connection);
+        }
+    }
+
+    //written to a temporary file first, so that a crash never leaves partial checksums
+    private void save() throws SQLException {
+        StringBuilder data = new StringBuilder();
+        for (Map.Entry<String, Integer> table : tables.entrySet()) {
+            data.append("TABLE\t").append(table.getKey()).append('\t').append(table.getValue()).append('\n');
+            for (Map.Entry<String, String> chunk : checksumsBefore.get(table.getKey()).entrySet()) {
+                data.append("CHUNK\t").append(table.getKey()).append('\t').append(chunk.getKey()).append('\t').append(chunk.getValue().replace(' ', '\t')).append('\n');
+            }
+        }
+        try {
+            Path temporaryFile = Paths.get(checksumFile + ".tmp");
+            Files.write(temporaryFile, data.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temporaryFile, checksumFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new SQLException("Could not write checksums " + checksumFile, e);
+        }
+    }
+
+    private void load() throws SQLException {
+        if (!Files.exists(checksumFile)) {
+            throw new SQLException("No checksums " + checksumFile + " from before the conversion");
+        }
+        try {
+            for (String line : Files.readAllLines(checksumFile, StandardCharsets.UTF_8)) {
+                String[] fields = line.split("\t");
+                if (fields.length == 3 && fields[0].equals("TABLE")) {
+                    tables.put(fields[1], Integer.parseInt(fields[2]));
+                    checksumsBefore.put(fields[1], new LinkedHashMap<>());
+                } else if (fields.length == 5 && fields[0].equals("CHUNK")) {
+                    checksumsBefore.computeIfAbsent(fields[1], key -> new LinkedHashMap<>()).put(fields[2], fields[3] + " " + fields[4]);
+                } else if (!line.isEmpty()) {
+                    LOGGER.warn("Ignoring line of checksums : " + line);
+                }
+            }
+        } catch (IOException e) {
+            throw new SQLException("Could not read checksums " + checksumFile, e);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/**
+ * Copies or re-encodes the rows of a table into another table with INSERT ... SELECT statements on primary key ranges.
+ * The chunk size grows and shrinks after every chunk to keep each chunk close to the target latency, and copying backs off
+ * while the server has too many running threads or the replica lags behind, so that the copy never causes long
+ * lock waits or replication spikes.
+ */
+
+import org.apache.log4j.Logger;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class ChunkCopier {
+
+    private static final Logger LOGGER = Logger.getLogger(ChunkCopier.class.getName());
+
+    //ER_LOCK_WAIT_TIMEOUT and ER_LOCK_DEADLOCK, the chunk is retried with a smaller size
+    private static final int LOCK_WAIT_TIMEOUT = 1205;
+    private static final int LOCK_DEADLOCK = 1213;
+    private static final int MAX_RETRIES = 10;
+
+    //maximum time to wait between two checks of the server load
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+
+    public interface ChunkListener {
+        void chunkCopied(List<Object> lastCopiedKey, long copiedRows) throws SQLException;
+    }
+
+    private Connection connection;
+    private Connection replicaConnection;
+
+    private int chunkSize;
+    private int minChunkSize;
+    private int maxChunkSize;
+    private long targetChunkMillis;
+    private long sleepMillis;
+    private int maxThreadsRunning;
+    private long maxReplicaLagSeconds;
+    private int lockWaitTimeoutSeconds;
+
+    public ChunkCopier(Connection connection, int chunkSize, int minChunkSize, int maxChunkSize, long targetChunkMillis, long sleepMillis) {
+        this.connection = connection;
+        this.minChunkSize = Math.max(1, minChunkSize);
+        this.maxChunkSize = Math.max(this.minChunkSize, maxChunkSize);
+        this.chunkSize = Math.min(Math.max(chunkSize, this.minChunkSize), this.maxChunkSize);
+        this.targetChunkMillis = targetChunkMillis;
+        this.sleepMillis = sleepMillis;
+    }
+
+    //Threads_running of the server above which copying backs off, 0 disables the check
+    public void setMaxThreadsRunning(int maxThreadsRunning) {
+        this.maxThreadsRunning = maxThreadsRunning;
+    }
+
+    //replica whose Seconds_Behind_Master is checked before every chunk, null disables the check
+    public void setReplica(Connection replicaConnection, long maxReplicaLagSeconds) {
+        this.replicaConnection = replicaConnection;
+        this.maxReplicaLagSeconds = maxReplicaLagSeconds;
+    }
+
+    //a chunk waiting longer than this for a metadata or row lock fails and is retried smaller, instead of queueing other sessions behind it
+    public void setLockWaitTimeoutSeconds(int lockWaitTimeoutSeconds) {
+        this.lockWaitTimeoutSeconds = lockWaitTimeoutSeconds;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /*
+    Copies all rows of sourceTable after lastCopiedKey (or from the start when it is null) into targetTable.
+    selectExpressions are selected for targetColumns, for example CONVERT(column USING utf8mb4) for re-encoding.
+    Rows already present in targetTable are kept, so rows written by triggers during the copy are not overwritten.
+    */
+    public long copy(String sourceTable, String targetTable, List<String> targetColumns, List<String> selectExpressions, List<String> primaryKeyColumns,
+                     List<Object> lastCopiedKey, ChunkListener chunkListener) throws SQLException {
+        if (lockWaitTimeoutSeconds <= 0) {
+            return copyChunks(sourceTable, targetTable, targetColumns, selectExpressions, primaryKeyColumns, lastCopiedKey, chunkListener);
+        }
+
+        //the connection is shared with other work, so its lock wait timeouts are restored after copying
+        Statement statement = connection.createStatement();
+        ResultSet resultSet = statement.executeQuery("SELECT @@SESSION.lock_wait_timeout, @@SESSION.innodb_lock_wait_timeout;");
+        resultSet.next();
+        long lockWaitTimeout = resultSet.getLong(1);
+        long innodbLockWaitTimeout = resultSet.getLong(2);
+        resultSet.close();
+        statement.execute("SET SESSION lock_wait_timeout = " + lockWaitTimeoutSeconds + ", SESSION innodb_lock_wait_timeout = " + lockWaitTimeoutSeconds + ";");
+        try {
+            return copyChunks(sourceTable, targetTable, targetColumns, selectExpressions, primaryKeyColumns, lastCopiedKey, chunkListener);
+        } finally {
+            statement.execute("SET SESSION lock_wait_timeout = " + lockWaitTimeout + ", SESSION innodb_lock_wait_timeout = " + innodbLockWaitTimeout + ";");
+            statement.close();
+        }
+    }
+
+    private long copyChunks(String sourceTable, String targetTable, List<String> targetColumns, List<String> selectExpressions, List<String> primaryKeyColumns,
+                            List<Object> lastCopiedKey, ChunkListener chunkListener) throws SQLException {
+        String keyColumns = String.join(", ", primaryKeyColumns);
+        String keyList = "(" + keyColumns + ")";
+        String keyPlaceholders = "(" + String.join(", ", Collections.nCopies(primaryKeyColumns.size(), "?")) + ")";
+        String insertPrefix = "INSERT IGNORE INTO " + targetTable + " (" + String.join(", ", targetColumns) + ") SELECT " + String.join(", ", selectExpressions) + " FROM " + sourceTable;
+
+        long copiedRows = 0;
+        int retries = 0;
+        while (true) {
+            throttle();
+
+            long startTime = System.currentTimeMillis();
+            List<Object> upperKey;
+            int insertedRows;
+            try {
+                //primary key of the last row of this chunk, null when the remaining rows fit in one chunk
+                //both statements are the same for every chunk of the table, so they are prepared once per connection
+                PreparedStatement preparedStatement = StatementCache.prepareStatement(connection, "SELECT " + keyColumns + " FROM " + sourceTable
+                        + (lastCopiedKey == null ? "" : " WHERE " + keyList + " > " + keyPlaceholders) + " ORDER BY " + keyColumns + " LIMIT ?, 1;");
+                int parameterIndex = setKey(preparedStatement, 1, lastCopiedKey);
+                preparedStatement.setInt(parameterIndex, chunkSize - 1);
+                upperKey = null;
+                ResultSet resultSet = preparedStatement.executeQuery();
+                if (resultSet.next()) {
+                    upperKey = new ArrayList<>();
+                    for (int i = 1; i <= primaryKeyColumns.size(); i++) {
+                        upperKey.add(getKeyValue(resultSet, i));
+                    }
+                }
+                resultSet.close();
+
+                List<String> conditions = new ArrayList<>();
+                if (lastCopiedKey != null) {
+                    conditions.add(keyList + " > " + keyPlaceholders);
+                }
+                if (upperKey != null) {
+                    conditions.add(keyList + " <= " + keyPlaceholders);
+                }
+                preparedStatement = StatementCache.prepareStatement(connection, insertPrefix + (conditions.isEmpty() ? "" : " WHERE " + String.join(" AND ", conditions)) + " LOCK IN SHARE MODE;");
+                parameterIndex = setKey(preparedStatement, 1, lastCopiedKey);
+                setKey(preparedStatement, parameterIndex, upperKey);
+                insertedRows = preparedStatement.executeUpdate();
+            } catch (SQLException e) {
+                if ((e.getErrorCode() != LOCK_WAIT_TIMEOUT && e.getErrorCode() != LOCK_DEADLOCK) || ++retries > MAX_RETRIES) {
+                    throw e;
+                }
+                chunkSize = Math.max(minChunkSize, chunkSize / 2);
+                LOGGER.warn("Chunk of table " + sourceTable + " failed with " + e.getMessage() + ", retrying with " + chunkSize + " rows");
+                sleep(Math.min(MAX_BACKOFF_MILLIS, 1000L * retries));
+                continue;
+            }
+            retries = 0;
+            copiedRows += insertedRows;
+
+            adjustChunkSize(System.currentTimeMillis() - startTime);
+
+            if (upperKey == null) {
+                break;
+            }
+            lastCopiedKey = upperKey;
+            if (chunkListener != null) {
+                chunkListener.chunkCopied(lastCopiedKey, copiedRows);
+            }
+            if (sleepMillis > 0) {
+                sleep(sleepMillis);
+            }
+        }
+        return copiedRows;
+    }
+
+    //scales the chunk size towards the target latency, by at most a factor of two per chunk so that a single slow chunk does not collapse it
+    public void adjustChunkSize(long chunkMillis) {
+        if (targetChunkMillis <= 0) {
+            return;
+        }
+        double factor = (double) targetChunkMillis / Math.max(1, chunkMillis);
+        factor = Math.max(0.5, Math.min(2.0, factor));
+        chunkSize = (int) Math.max(minChunkSize, Math.min(maxChunkSize, Math.round(chunkSize * factor)));
+    }
+
+    //waits while the server or the replica is overloaded, doubling the wait every time up to MAX_BACKOFF_MILLIS
+    public void throttle() throws SQLException {
+        long backoffMillis = 500;
+        while (true) {
+            String reason = null;
+            if (maxThreadsRunning > 0) {
+                long threadsRunning = getThreadsRunning();
+                if (threadsRunning > maxThreadsRunning) {
+                    reason = "Threads_running is " + threadsRunning;
+                }
+            }
+            if (reason == null && replicaConnection != null) {
+                Long replicaLag = getReplicaLag();
+                if (replicaLag == null) {
+                    reason = "replication is not running on the replica";
+                } else if (replicaLag > maxReplicaLagSeconds) {
+                    reason = "replica lag is " + replicaLag + " seconds";
+                }
+            }
+            if (reason == null) {
+                return;
+            }
+            LOGGER.info("Copying paused for " + backoffMillis + " ms because " + reason);
+            sleep(backoffMillis);
+            backoffMillis = Math.min(MAX_BACKOFF_MILLIS, backoffMillis * 2);
+        }
+    }
+
+    public long getThreadsRunning() throws SQLException {
+        ResultSet resultSet = StatementCache.prepareStatement(connection, "SHOW GLOBAL STATUS LIKE 'Threads_running';").executeQuery();
+        long threadsRunning = 0;
+        if (resultSet.next()) {
+            threadsRunning = resultSet.getLong("Value");
+        }
+        resultSet.close();
+        return threadsRunning;
+    }
+
+    //Seconds_Behind_Master of the replica, null when replication is not running
+    public Long getReplicaLag() throws SQLException {
+        Statement statement = replicaConnection.createStatement();
+        ResultSet resultSet = statement.executeQuery("SHOW SLAVE STATUS;");
+        Long replicaLag = null;
+        if (resultSet.next()) {
+            long secondsBehindMaster = resultSet.getLong("Seconds_Behind_Master");
+            if (!resultSet.wasNull()) {
+                replicaLag = secondsBehindMaster;
+            }
+        }
+        resultSet.close();
+        statement.close();
+        return replicaLag;
+    }
+
+    /*
+    BINARY and VARBINARY keys are kept as bytes, because a string would go through the charset of the connection and
+    no longer match the row. Every other key is kept as the string of its value, compared with the collation of the column.
+    */
+    private static Object getKeyValue(ResultSet resultSet, int columnIndex) throws SQLException {
+        Object value = resultSet.getObject(columnIndex);
+        return value instanceof byte[] ? value : resultSet.getString(columnIndex);
+    }
+
+    private int setKey(PreparedStatement preparedStatement, int parameterIndex, List<Object> key) throws SQLException {
+        if (key != null) {
+            for (Object value : key) {
+                preparedStatement.setObject(parameterIndex++, value);
+            }
+        }
+        return parameterIndex;
+    }
+
+    //key as logged, binary values in hex : [42, 0x1f8b...]
+    public static String formatKey(List<Object> key) {
+        List<String> values = new ArrayList<>();
+        for (Object value : key) {
+            values.add(value instanceof byte[] ? "0x" + toHex((byte[]) value) : String.valueOf(value));
+        }
+        return values.toString();
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    public static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private void sleep(long millis) throws SQLException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while copying rows", e);
+        }
+    }
+}
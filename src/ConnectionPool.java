@@ -0,0 +1,132 @@
+/**
+ * A small pool of connections to one database, shared by the main thread and the workers converting tables.
+ * Connections are opened on demand up to the maximum, a borrower waits while all of them are in use.
+ * Every new connection runs the init statements of the pool, for example to disable foreign key checks for the session.
+ * A borrowed connection is validated first, so a connection closed by the server (wait_timeout, failover) is replaced instead of failing the next task.
+ */
+
+import org.apache.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+public class ConnectionPool {
+
+    private static final Logger LOGGER = Logger.getLogger(ConnectionPool.class.getName());
+
+    //seconds to wait for the server to answer the validation of a borrowed connection
+    private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+
+    private String url;
+    private String username;
+    private String password;
+    private int maxConnections;
+    private List<String> initStatements;
+
+    private BlockingQueue<Connection> idleConnections = new LinkedBlockingQueue<>();
+    private List<Connection> allConnections = new ArrayList<>();
+    private boolean closed = false;
+
+    public ConnectionPool(String url, String username, String password, int maxConnections, List<String> initStatements) {
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.maxConnections = Math.max(1, maxConnections);
+        this.initStatements = initStatements;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    //an idle connection, a new one while the pool is not full, otherwise waits until a connection is released
+    public Connection borrow() throws SQLException {
+        Connection connection = idleConnections.poll();
+        if (connection == null) {
+            connection = openConnection();
+        }
+        if (connection == null) {
+            try {
+                connection = idleConnections.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a connection", e);
+            }
+        }
+        //a connection closed by the server is replaced, isValid pings the server
+        if (!connection.isValid(VALIDATION_TIMEOUT_SECONDS)) {
+            LOGGER.warn("Connection to " + url + " is not valid anymore, opening a new one");
+            discard(connection);
+            return borrow();
+        }
+        return connection;
+    }
+
+    public void release(Connection connection) {
+        if (connection != null) {
+            idleConnections.add(connection);
+        }
+    }
+
+    public synchronized void close() throws SQLException {
+        closed = true;
+        SQLException exception = null;
+        for (Connection connection : allConnections) {
+            StatementCache.close(connection);
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                exception = e;
+            }
+        }
+        allConnections.clear();
+        idleConnections.clear();
+        LOGGER.info("Connections to " + url + " closed!");
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    //null when the pool is full
+    private synchronized Connection openConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool of " + url + " is closed");
+        }
+        if (allConnections.size() >= maxConnections) {
+            return null;
+        }
+        try {
+            Class.forName("com.mysql.jdbc.Driver");
+        } catch (ClassNotFoundException e) {
+            throw new SQLException(e);
+        }
+        Connection connection = DriverManager.getConnection(url, username, password);
+        try (Statement statement = connection.createStatement()) {
+            for (String initStatement : initStatements) {
+                statement.execute(initStatement);
+            }
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        allConnections.add(connection);
+        LOGGER.info("Connection " + allConnections.size() + " to " + url + " is successful!");
+        return connection;
+    }
+
+    private synchronized void discard(Connection connection) {
+        StatementCache.close(connection);
+        allConnections.remove(connection);
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            //the connection is already broken
+        }
+    }
+}
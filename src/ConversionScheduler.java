@@ -0,0 +1,267 @@
+/**
+ * Runs the table conversion plans concurrently on a fixed number of workers, largest tables first.
+ * Every task borrows a connection from the pool for its duration.
+ * Foreign keys of a table are added back only once the table and all the tables it references have been converted.
+ * The number of tables being rebuilt at the same time is capped to protect disk I/O and the buffer pool.
+ */
+
+import org.apache.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class ConversionScheduler {
+
+    private static final Logger LOGGER = Logger.getLogger(ConversionScheduler.class.getName());
+
+    private DatabaseConverter converter;
+    private ConnectionPool connectionPool;
+    private int noOfRebuildSlots;
+    private Semaphore rebuildPermits;
+    private ExecutorService executorService;
+
+    private Map<String, TableConversionPlan> tablePlans;
+    private Set<String> convertedTables = ConcurrentHashMap.newKeySet();
+    private Set<String> scheduledForeignKeys = new HashSet<>();
+    private CountDownLatch remainingTasks;
+    private volatile Exception failure = null;
+
+    public ConversionScheduler(DatabaseConverter converter, ConnectionPool connectionPool, int noOfWorkers, int maxConcurrentRebuilds) {
+        this.converter = converter;
+        this.connectionPool = connectionPool;
+        noOfWorkers = Math.max(1, noOfWorkers);
+        this.noOfRebuildSlots = Math.max(1, Math.min(maxConcurrentRebuilds, noOfWorkers));
+        this.rebuildPermits = new Semaphore(noOfRebuildSlots);
+        this.executorService = Executors.newFixedThreadPool(noOfWorkers);
+    }
+
+    public void run(Map<String, TableConversionPlan> tablePlans) throws SQLException {
+        this.tablePlans = tablePlans;
+
+        int noOfTasks = 0;
+        for (TableConversionPlan tablePlan : tablePlans.values()) {
+            if (tablePlan.requiresRebuild()) {
+                noOfTasks++;
+            }
+            if (tablePlan.hasForeignKeys()) {
+                noOfTasks++;
+            }
+        }
+        remainingTasks = new CountDownLatch(noOfTasks);
+
+        //tables without any rebuild are already in their final state
+        for (TableConversionPlan tablePlan : tablePlans.values()) {
+            if (!tablePlan.requiresRebuild()) {
+                convertedTables.add(tablePlan.getTableName());
+            }
+        }
+
+        List<TableConversionPlan> orderedTables = orderTables(tablePlans);
+        long totalBytes = 0;
+        int noOfRebuilds = 0;
+        for (TableConversionPlan tablePlan : orderedTables) {
+            if (tablePlan.requiresRebuild()) {
+                totalBytes += tablePlan.getDataLength() + tablePlan.getIndexLength();
+                noOfRebuilds++;
+            }
+        }
+        LOGGER.info("\nRebuilding " + noOfRebuilds + " tables (" + (totalBytes / (1024 * 1024)) + " MB) with " + noOfRebuildSlots + " concurrent rebuilds, predicted duration : "
+                + DatabaseConverter.formatDuration(predictDuration(orderedTables)) + "\n");
+
+        for (TableConversionPlan tablePlan : orderedTables) {
+            if (tablePlan.requiresRebuild()) {
+                executorService.submit(() -> rebuildTable(tablePlan));
+            }
+        }
+        scheduleForeignKeys();
+
+        try {
+            remainingTasks.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = e;
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        if (failure instanceof SQLException) {
+            throw (SQLException) failure;
+        } else if (failure != null) {
+            throw new SQLException("Table conversion failed", failure);
+        }
+    }
+
+    /*
+    Orders the tables longest rebuild first (LPT), so that a huge table does not start last and stretch the whole run.
+    The foreign key graph (referencedTableName -> tableName) is respected by giving every referenced table at least the priority
+    of the tables referring to it, so it is rebuilt just before them and their foreign keys can be added back as early as possible.
+    Tables which are part of a cycle are appended longest first as well.
+    */
+    public static List<TableConversionPlan> orderTables(Map<String, TableConversionPlan> tablePlans) {
+        Map<String, Integer> noOfReferencedTables = new LinkedHashMap<>();
+        Map<String, List<String>> referringTables = new HashMap<>();
+        for (TableConversionPlan tablePlan : tablePlans.values()) {
+            int count = 0;
+            for (String referencedTableName : tablePlan.getReferencedTables()) {
+                if (!referencedTableName.equals(tablePlan.getTableName()) && tablePlans.containsKey(referencedTableName)) {
+                    referringTables.computeIfAbsent(referencedTableName, key -> new ArrayList<>()).add(tablePlan.getTableName());
+                    count++;
+                }
+            }
+            noOfReferencedTables.put(tablePlan.getTableName(), count);
+        }
+
+        Map<String, Double> priorities = new HashMap<>();
+        for (String tableName : tablePlans.keySet()) {
+            computePriority(tableName, tablePlans, referringTables, priorities, new HashSet<>());
+        }
+        Comparator<TableConversionPlan> longestFirst = Comparator.comparingDouble((TableConversionPlan tablePlan) -> priorities.get(tablePlan.getTableName()))
+                .thenComparingDouble(TableConversionPlan::getEstimatedRebuildSeconds).reversed();
+
+        List<TableConversionPlan> orderedTables = new ArrayList<>();
+        Set<String> orderedTableNames = new HashSet<>();
+        PriorityQueue<TableConversionPlan> readyTables = new PriorityQueue<>(longestFirst);
+        for (Map.Entry<String, Integer> entry : noOfReferencedTables.entrySet()) {
+            if (entry.getValue() == 0) {
+                readyTables.add(tablePlans.get(entry.getKey()));
+            }
+        }
+        while (!readyTables.isEmpty()) {
+            String tableName = readyTables.poll().getTableName();
+            orderedTables.add(tablePlans.get(tableName));
+            orderedTableNames.add(tableName);
+            for (String referringTableName : referringTables.getOrDefault(tableName, Collections.emptyList())) {
+                if (noOfReferencedTables.merge(referringTableName, -1, Integer::sum) == 0) {
+                    readyTables.add(tablePlans.get(referringTableName));
+                }
+            }
+        }
+        List<TableConversionPlan> cyclicTables = new ArrayList<>();
+        for (TableConversionPlan tablePlan : tablePlans.values()) {
+            if (!orderedTableNames.contains(tablePlan.getTableName())) {
+                cyclicTables.add(tablePlan);
+            }
+        }
+        cyclicTables.sort(longestFirst);
+        orderedTables.addAll(cyclicTables);
+        return orderedTables;
+    }
+
+    private static double computePriority(String tableName, Map<String, TableConversionPlan> tablePlans, Map<String, List<String>> referringTables, Map<String, Double> priorities, Set<String> visiting) {
+        Double priority = priorities.get(tableName);
+        if (priority != null) {
+            return priority;
+        }
+        priority = tablePlans.get(tableName).getEstimatedRebuildSeconds();
+        if (visiting.add(tableName)) {
+            for (String referringTableName : referringTables.getOrDefault(tableName, Collections.emptyList())) {
+                if (!visiting.contains(referringTableName)) {
+                    priority = Math.max(priority, computePriority(referringTableName, tablePlans, referringTables, priorities, visiting));
+                }
+            }
+            visiting.remove(tableName);
+        }
+        priorities.put(tableName, priority);
+        return priority;
+    }
+
+    public double predictDuration(List<TableConversionPlan> orderedTables) {
+        return predictDuration(orderedTables, noOfRebuildSlots);
+    }
+
+    //simulates the ordered rebuilds on the allowed number of concurrent rebuilds, each table going to the first free slot
+    public static double predictDuration(List<TableConversionPlan> orderedTables, int noOfRebuildSlots) {
+        PriorityQueue<Double> slotFinishTimes = new PriorityQueue<>();
+        for (int i = 0; i < noOfRebuildSlots; i++) {
+            slotFinishTimes.add(0.0);
+        }
+        double totalDuration = 0;
+        for (TableConversionPlan tablePlan : orderedTables) {
+            if (tablePlan.requiresRebuild()) {
+                double finishTime = slotFinishTimes.poll() + tablePlan.getEstimatedRebuildSeconds();
+                slotFinishTimes.add(finishTime);
+                totalDuration = Math.max(totalDuration, finishTime);
+            }
+        }
+        return totalDuration;
+    }
+
+    private void rebuildTable(TableConversionPlan tablePlan) {
+        try {
+            if (failure == null) {
+                rebuildPermits.acquire();
+                try {
+                    //in a fleet run the server is shared with the other databases on it
+                    converter.acquireHostRebuildPermit();
+                    try {
+                        Connection connection = connectionPool.borrow();
+                        try {
+                            LOGGER.info("Converting table " + tablePlan.getTableName() + " (" + tablePlan.getColumnCount() + " columns, " + tablePlan.getIndexCount() + " indexes)");
+                            converter.rebuildTable(connection, tablePlan);
+                        } finally {
+                            connectionPool.release(connection);
+                        }
+                    } finally {
+                        converter.releaseHostRebuildPermit();
+                    }
+                } finally {
+                    rebuildPermits.release();
+                }
+                convertedTables.add(tablePlan.getTableName());
+                scheduleForeignKeys();
+            }
+            remainingTasks.countDown();
+        } catch (Exception e) {
+            fail(tablePlan, e);
+        }
+    }
+
+    private void createForeignKeys(TableConversionPlan tablePlan) {
+        try {
+            if (failure == null) {
+                Connection connection = connectionPool.borrow();
+                try {
+                    converter.createForeignKeys(connection, tablePlan);
+                } finally {
+                    connectionPool.release(connection);
+                }
+            }
+            remainingTasks.countDown();
+        } catch (Exception e) {
+            fail(tablePlan, e);
+        }
+    }
+
+    //submits foreign keys of every table whose own rebuild and the rebuild of all its referenced tables are done
+    private synchronized void scheduleForeignKeys() {
+        for (TableConversionPlan tablePlan : tablePlans.values()) {
+            if (tablePlan.hasForeignKeys() && !scheduledForeignKeys.contains(tablePlan.getTableName()) && isReadyForForeignKeys(tablePlan)) {
+                scheduledForeignKeys.add(tablePlan.getTableName());
+                executorService.submit(() -> createForeignKeys(tablePlan));
+            }
+        }
+    }
+
+    private boolean isReadyForForeignKeys(TableConversionPlan tablePlan) {
+        if (!convertedTables.contains(tablePlan.getTableName())) {
+            return false;
+        }
+        for (String referencedTableName : tablePlan.getReferencedTables()) {
+            if (tablePlans.containsKey(referencedTableName) && !convertedTables.contains(referencedTableName)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void fail(TableConversionPlan tablePlan, Exception e) {
+        LOGGER.fatal("Exception " + e + " has occurred while converting table " + tablePlan.getTableName());
+        failure = e;
+        //release the caller, remaining tasks will not be executed
+        while (remainingTasks.getCount() > 0) {
+            remainingTasks.countDown();
+        }
+    }
+}
@@ -1,54 +1,136 @@
 /**
  * Created by Kajal Kukreja on 20-09-2017.
  * This code is used for converting charset and collation of database, table and column for making the application Universal compliant.
- * For exact database conversion, please run this program only once on a particular database.
- * If you get any error while program is running, kindly revert to old database and try again.
- * Do not run it again without reverting the corrupted database.
+ * Every completed step is recorded in a checkpoint journal. If you get any error while program is running, fix the cause and run it again,
+ * it resumes from the first incomplete step. Do not delete the journal before the conversion has completed.
  */
 
 import com.mysql.jdbc.JDBC4PreparedStatement;
-import com.mysql.jdbc.StringUtils;
 import org.apache.log4j.Logger;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.Semaphore;
 
 public class DatabaseConverter {
 
     private static final Logger LOGGER = Logger.getLogger(DatabaseConverter.class.getName());;
 
-    private static List<KeyDetail> primaryKeyIndexes = new ArrayList<>();
-    private static List<KeyDetail> uniqueKeyIndexes = new ArrayList<>();
-    private static List<KeyDetail> foreignKeyIndexes = new ArrayList<>();
-    private static List<KeyDetail> otherIndexes = new ArrayList<>();
+    private List<KeyDetail> primaryKeyIndexes = new ArrayList<>();
+    private List<KeyDetail> uniqueKeyIndexes = new ArrayList<>();
+    private List<KeyDetail> foreignKeyIndexes = new ArrayList<>();
+    private List<KeyDetail> otherIndexes = new ArrayList<>();
 
-    private static StringBuilder allQueries = new StringBuilder();
-    private static StringBuilder requiredQueries = new StringBuilder();
+    //table.constraint -> ON DELETE and ON UPDATE rules of foreign keys, so that they are recreated as they were
+    private Map<String, String> foreignKeyRules = new HashMap<>();
 
-    private static String databaseName = null;
-    private static String newCharset = null;
-    private static String newCollation = null;
+    private SchemaSnapshot schemaSnapshot = null;
+
+    //all indexes and columns before the conversion, null when resumed, and the tables this run converts, verified against it afterwards
+    private SchemaSnapshot originalSnapshot = null;
+    private Set<String> convertedTables = Collections.emptySet();
+
+    //tableName -> prefix length decision of every recreated index, empty when resumed
+    private Map<String, List<String>> indexPrefixDecisions = Collections.emptyMap();
+
+    //completed steps of this conversion, a failed run resumes from here
+    private CheckpointJournal checkpointJournal = null;
+
+    //every query is appended to the sql scripts as soon as it is executed
+    private SqlScriptWriter allQueries = null;
+    private SqlScriptWriter requiredQueries = null;
+
+    //when true, only the conversion plan is written to a script and no DDL is executed
+    private boolean planOnly = false;
+
+    //when true, sql scripts are gzip compressed and every query is logged with its start time and duration
+    private boolean gzipScripts = false;
+    private boolean scriptTimestamps = false;
+
+    //connections of the main thread and the workers, and the number of prepared metadata queries kept open per connection
+    private ConnectionPool informationSchemaPool = null;
+    private ConnectionPool databasePool = null;
+    private int statementCacheSize = 32;
+
+    //timings, affected rows and table sizes of this run, written to a run report at the end, and the interval of the progress line, 0 disables it
+    private RunMetrics runMetrics = null;
+    private int progressIntervalSeconds = 0;
+
+    //when true, primary and unique keys are scanned for collisions and text columns for overflows before any DDL is executed
+    private boolean preflightScan = false;
+    private int preflightWorkers = 4;
+
+    //when true, only tables changed since the schema manifest of the last successful run are converted, null drifted tables means all tables
+    private boolean incrementalMode = false;
+    private Set<String> driftedTables = null;
+
+    //when true, the rows of every converted table are checksummed in chunks before the conversion and verified after it
+    private boolean verifyChecksums = false;
+    private int checksumWorkers = 4;
+    private long checksumChunkRows = 1000000;
+
+    private String databaseName = null;
+    private String newCharset = null;
+    private String newCollation = null;
+
+    //when true, every table is converted with a single ALTER TABLE instead of one ALTER per index and column
+    private boolean mergeAlterStatements = true;
+
+    //number of connections used for converting tables concurrently and maximum number of tables rebuilt at the same time
+    private int workerConnections = 1;
+    private int maxConcurrentRebuilds = 1;
+
+    //throughput of a table rebuild on this server, used for estimating the conversion time of every table
+    private double rebuildBytesPerSecond = 20971520;
+    private double rebuildRowsPerSecond = 100000;
+
+    //when true, every ALTER TABLE uses the least blocking ALGORITHM and LOCK supported by the server
+    private boolean onlineMode = false;
+
+    //tables bigger than this are converted by copying their rows into a shadow table, 0 disables shadow copies
+    private long shadowCopyThresholdBytes = 0;
+    private int shadowCopyChunkSize = 1000;
+    private long shadowCopySleepMillis = 0;
+
+    //chunk size of row copies is adjusted to keep every chunk close to the target time, copying backs off when the server or replica is overloaded
+    private int minChunkSize = 100;
+    private int maxChunkSize = 50000;
+    private long targetChunkMillis = 500;
+    private int maxThreadsRunning = 25;
+    private long maxReplicaLagSeconds = 5;
+    private int chunkLockWaitTimeoutSeconds = 5;
+
+    //when true, tables are claimed from a work queue in the database shared with the other processes converting it under the same run id
+    private boolean distributedMode = false;
+    private String distributedRunId = null;
+    private int leaseSeconds = 60;
+    private long leasePollMillis = 1000;
+
+    //shared by the jobs of a fleet run on the same server, caps the tables rebuilt at the same time on that server, null outside a fleet run
+    private Semaphore hostRebuildPermits = null;
+
+    //directory of the scripts, journal, reports and manifest of this database, the working directory by default
+    private String outputDirectory = "";
+
+    //cause of a failed run, for the summary of a fleet run
+    private String failure = null;
+
+    //settings of this conversion
+    private Properties properties = null;
 
     //loading properties file
-    private static Properties properties = null;
+    private static Properties applicationProperties = null;
 
     static {
         try {
-            properties = new Properties();
+            applicationProperties = new Properties();
             String propertiesFile = "application.properties";
             InputStream inputStream = DatabaseConverter.class.getClassLoader().getResourceAsStream(propertiesFile);
-            properties.load(inputStream);
-
-            //initialize static variables
-            databaseName = properties.getProperty("databaseName");
-            newCharset =  properties.getProperty("newCharset");
-            newCollation =  properties.getProperty("newCollation");
-
+            applicationProperties.load(inputStream);
         } catch(Exception e) {
             LOGGER.fatal("Exception " + e + " has occurred while loading properties file!");
             e.printStackTrace();
@@ -56,115 +138,350 @@ public class DatabaseConverter {
         }
     }
 
+    public DatabaseConverter(Properties properties) {
+        this.properties = properties;
+
+        //initialize variables
+        databaseName = properties.getProperty("databaseName");
+        newCharset =  properties.getProperty("newCharset");
+        newCollation =  properties.getProperty("newCollation");
+        mergeAlterStatements = Boolean.parseBoolean(properties.getProperty("mergeAlterStatements", "true"));
+        workerConnections = Integer.parseInt(properties.getProperty("workerConnections", "1"));
+        maxConcurrentRebuilds = Integer.parseInt(properties.getProperty("maxConcurrentRebuilds", "1"));
+        rebuildBytesPerSecond = Double.parseDouble(properties.getProperty("rebuildBytesPerSecond", "20971520"));
+        rebuildRowsPerSecond = Double.parseDouble(properties.getProperty("rebuildRowsPerSecond", "100000"));
+        onlineMode = Boolean.parseBoolean(properties.getProperty("onlineMode", "false"));
+        shadowCopyThresholdBytes = Long.parseLong(properties.getProperty("shadowCopyThresholdBytes", "0"));
+        shadowCopyChunkSize = Integer.parseInt(properties.getProperty("shadowCopyChunkSize", "1000"));
+        shadowCopySleepMillis = Long.parseLong(properties.getProperty("shadowCopySleepMillis", "0"));
+        minChunkSize = Integer.parseInt(properties.getProperty("minChunkSize", "100"));
+        maxChunkSize = Integer.parseInt(properties.getProperty("maxChunkSize", "50000"));
+        targetChunkMillis = Long.parseLong(properties.getProperty("targetChunkMillis", "500"));
+        maxThreadsRunning = Integer.parseInt(properties.getProperty("maxThreadsRunning", "25"));
+        maxReplicaLagSeconds = Long.parseLong(properties.getProperty("maxReplicaLagSeconds", "5"));
+        chunkLockWaitTimeoutSeconds = Integer.parseInt(properties.getProperty("chunkLockWaitTimeoutSeconds", "5"));
+        statementCacheSize = Integer.parseInt(properties.getProperty("statementCacheSize", "32"));
+        StatementCache.setMaxStatements(statementCacheSize);
+        planOnly = Boolean.parseBoolean(properties.getProperty("planOnly", "false"));
+        gzipScripts = Boolean.parseBoolean(properties.getProperty("gzipScripts", "false"));
+        scriptTimestamps = Boolean.parseBoolean(properties.getProperty("scriptTimestamps", "false"));
+        progressIntervalSeconds = Integer.parseInt(properties.getProperty("progressIntervalSeconds", "0"));
+        preflightScan = Boolean.parseBoolean(properties.getProperty("preflightScan", "false"));
+        preflightWorkers = Integer.parseInt(properties.getProperty("preflightWorkers", "4"));
+        incrementalMode = Boolean.parseBoolean(properties.getProperty("incrementalMode", "false"));
+        verifyChecksums = Boolean.parseBoolean(properties.getProperty("verifyChecksums", "false"));
+        checksumWorkers = Integer.parseInt(properties.getProperty("checksumWorkers", "4"));
+        checksumChunkRows = Long.parseLong(properties.getProperty("checksumChunkRows", "1000000"));
+        outputDirectory = properties.getProperty("outputDirectory", "");
+        distributedMode = Boolean.parseBoolean(properties.getProperty("distributedMode", "false"));
+        distributedRunId = properties.getProperty("distributedRunId", "");
+        leaseSeconds = Integer.parseInt(properties.getProperty("leaseSeconds", "60"));
+        leasePollMillis = Long.parseLong(properties.getProperty("leasePollMillis", "1000"));
+
+        //shadow copies drop all foreign keys before any table is swapped, which cannot be shared between processes
+        if (distributedMode && shadowCopyThresholdBytes > 0) {
+            LOGGER.warn("Shadow copies are not supported in distributed mode, all tables are rebuilt in place.");
+            shadowCopyThresholdBytes = 0;
+        }
+    }
+
     public static void main(String[] args) {
+        //with an inventory every listed database is converted, otherwise only the configured one
+        String fleetInventory = applicationProperties.getProperty("fleetInventory", "");
+        if (!fleetInventory.isEmpty()) {
+            new FleetConverter(applicationProperties).run(Paths.get(fleetInventory));
+        } else {
+            new DatabaseConverter(applicationProperties).run();
+        }
+    }
+
+    //converts the database, false when the run failed or did not complete
+    public boolean run() {
 
         Connection informationSchemaConnection = null;
         Connection myDBConnection = null;
+        boolean completed = false;
+
+        runMetrics = new RunMetrics(databaseName);
 
         try {
-            informationSchemaConnection = getConnection("INFORMATION_SCHEMA");
+            try {
+                runMetrics.openStatementsFile(getOutputFile((planOnly ? "-plan" : "") + "-run-statements.csv"));
+            } catch (IOException e) {
+                throw new SQLException("Could not create statements file of the run report", e);
+            }
+            if (distributedMode && !planOnly && (distributedRunId.isEmpty() || !mergeAlterStatements)) {
+                throw new SQLException("Distributed mode needs mergeAlterStatements=true and a distributedRunId shared by all processes of this conversion");
+            }
+            //the step by step conversion runs one ALTER TABLE per index and column without ALGORITHM and LOCK clauses
+            if (onlineMode && !mergeAlterStatements) {
+                throw new SQLException("Online mode needs mergeAlterStatements=true");
+            }
+            //every write during the conversion changes a checksum, and the conversion is already committed when they are compared
+            if (verifyChecksums && !planOnly && (onlineMode || shadowCopyThresholdBytes > 0)) {
+                throw new SQLException("verifyChecksums needs a database which is not written during the conversion, it cannot be used with onlineMode or shadowCopyThresholdBytes");
+            }
 
-            myDBConnection = getConnection(databaseName);
+            //a plan does not change anything, so there is nothing to resume
+            checkpointJournal = planOnly ? null : new CheckpointJournal(getOutputFile("-checkpoint.journal"));
+            boolean resumed = checkpointJournal != null && checkpointJournal.getSnapshot() != null;
+
+            //storing all queries in sql files while they are executed, a resumed run continues the scripts of the failed run
+            //in plan mode the required queries are the plan, and the scripts of earlier runs are kept
+            String scriptExtension = gzipScripts ? ".sql.gz" : ".sql";
+            String scriptSuffix = planOnly ? "-plan" : "";
+            allQueries = new SqlScriptWriter(getOutputFile(scriptSuffix + "-all-queries" + scriptExtension), resumed, gzipScripts, scriptTimestamps && !planOnly);
+            requiredQueries = new SqlScriptWriter(getOutputFile((planOnly ? scriptSuffix : scriptSuffix + "-required-queries") + scriptExtension), resumed, gzipScripts, scriptTimestamps && !planOnly);
+
+            informationSchemaPool = createConnectionPool("INFORMATION_SCHEMA", 1, Collections.emptyList());
+            informationSchemaConnection = informationSchemaPool.borrow();
+
+            //the main thread keeps one connection, every worker borrows its own with foreign key checks disabled
+            databasePool = createConnectionPool(databaseName, workerConnections + 1, Collections.singletonList("SET foreign_key_checks = 0;"));
+            myDBConnection = databasePool.borrow();
 
             //disable foreign key checks because we have dropped foreign keys temporarily and if this check is enabled alter query will fail
             setForeignKeyChecks(myDBConnection, 0);
 
-            //find out all the indexes applied on this database
-            collectAllIndexes(informationSchemaConnection);
+            long phaseStart = System.nanoTime();
+            if (resumed) {
+                //indexes may already be dropped, so the indexes collected by the failed run are used
+                LOGGER.info("Resuming conversion from " + checkpointJournal.getJournalFile());
+                useSnapshot(checkpointJournal.getSnapshot());
+            } else {
+                //find out all the indexes applied on this database
+                collectAllIndexes(informationSchemaConnection);
+                originalSnapshot = schemaSnapshot;
+            }
             printIndexes();
+            runMetrics.recordTableSizes(getTableSizes(informationSchemaConnection), true);
+            runMetrics.recordPhase("collectIndexes", phaseStart);
 
-            //remove all the indexes on this database
-            dropAllIndexes(informationSchemaConnection, myDBConnection);
+            if (incrementalMode) {
+                findDriftedTables(informationSchemaConnection);
+            }
 
-            boolean changedDB = changeDatabaseCharsetAndCollation(informationSchemaConnection, newCharset, newCollation);
+            //only indexes involving a column whose collation changes are dropped and recreated, all other indexes are left alone,
+            //a resumed run uses the snapshot of the journal as saved, already filtered and with the prefix lengths planned
+            if (!resumed) {
+                useAffectedIndexes();
+                planIndexPrefixes(informationSchemaConnection, myDBConnection);
+                if (shadowCopyThresholdBytes > 0) {
+                    useShadowCopyForeignKeys(informationSchemaConnection);
+                }
+            }
+            if (!planOnly) {
+                convertedTables = getTablesToConvert(informationSchemaConnection);
+            }
 
-            if (changedDB) {
-                boolean changedColumns = changeColumnCharsetAndCollation(informationSchemaConnection, myDBConnection, newCharset, newCollation);
+            //the data is scanned before the snapshot is saved, so that a run failing the scan is scanned again instead of resumed
+            if (!resumed) {
+                if (preflightScan) {
+                    phaseStart = System.nanoTime();
+                    runPreflightScan(informationSchemaConnection);
+                    runMetrics.recordPhase("preflightScan", phaseStart);
+                }
+                if (verifyChecksums && !planOnly) {
+                    phaseStart = System.nanoTime();
+                    computeChecksums(informationSchemaConnection);
+                    runMetrics.recordPhase("checksumBefore", phaseStart);
+                }
+                if (checkpointJournal != null) {
+                    checkpointJournal.saveSnapshot(schemaSnapshot);
+                }
+            }
 
-                if (changedColumns) {
-                    boolean changedTables = changeTableCharsetAndCollation(informationSchemaConnection, myDBConnection, newCharset, newCollation);
+            if (planOnly) {
+                phaseStart = System.nanoTime();
+                writeConversionPlan(informationSchemaConnection, myDBConnection, newCharset, newCollation);
+                runMetrics.recordPhase("writePlan", phaseStart);
+                setForeignKeyChecks(myDBConnection, 1);
+                requiredQueries.close();
+                LOGGER.info("\nStored conversion plan in " + requiredQueries.getScriptFile() + " file, no table has been changed.");
+                return true;
+            }
 
-                    if (changedTables) {
+            phaseStart = System.nanoTime();
+            boolean changedTables;
+            if (mergeAlterStatements) {
+                //drop indexes, convert columns and table, and recreate indexes with a single ALTER TABLE per table
+                changedTables = changeDatabaseCharsetAndCollation(informationSchemaConnection, newCharset, newCollation)
+                        && convertTables(informationSchemaConnection, myDBConnection, newCharset, newCollation);
+            } else {
+                changedTables = convertTablesStepByStep(informationSchemaConnection, myDBConnection);
+            }
+            runMetrics.recordPhase("convert", phaseStart);
 
-                        //recreating all indexes on this database
-                        createAllIndexes(myDBConnection);
+            if (changedTables) {
 
-                        LOGGER.info("\n\nAll indexes have been recreated, please verify them as below -\n");
+                LOGGER.info("\n\nAll indexes have been recreated, please verify them as below -\n");
 
-                        //clearing all the existing indexes from all collections
-                        primaryKeyIndexes = new ArrayList<>();
-                        uniqueKeyIndexes = new ArrayList<>();
-                        foreignKeyIndexes = new ArrayList<>();
-                        otherIndexes = new ArrayList<>();
+                //only the converted tables are collected again and compared with the tables expected from the snapshot before the conversion
+                phaseStart = System.nanoTime();
+                verifySchema(informationSchemaConnection);
+                printIndexes();
+                runMetrics.recordTableSizes(getTableSizes(informationSchemaConnection), false);
+                runMetrics.recordPhase("verify", phaseStart);
 
-                        //again collect all indexes and verify them
-                        collectAllIndexes(informationSchemaConnection);
-                        printIndexes();
+                if (verifyChecksums) {
+                    phaseStart = System.nanoTime();
+                    verifyChecksums(informationSchemaConnection);
+                    runMetrics.recordPhase("checksumAfter", phaseStart);
+                }
 
-                        LOGGER.info("\nAll good!");
+                LOGGER.info("\nAll good!");
 
-                        //enable foreign key checks and strict mode
-                        setForeignKeyChecks(myDBConnection, 1);
+                //the next incremental run converts only what changes after this one
+                SchemaManifest.create(getManifestFile(), this, informationSchemaConnection, schemaSnapshot).save();
 
-                        //LOGGER.info("Printing all queries\n\n");
-                        //LOGGER.info(String.valueOf(allQueries));
+                //enable foreign key checks and strict mode
+                setForeignKeyChecks(myDBConnection, 1);
 
-                        //storing all queries in sql file
-                        String allQueriesFilename = databaseName + "-all-queries.sql";
-                        Path allQueriesFile = Paths.get(allQueriesFilename);
-                        byte allQueriesData[] = StringUtils.getBytes(String.valueOf(allQueries));
-                        Files.write(allQueriesFile, allQueriesData);
-                        LOGGER.info("\nStored all queries in " + allQueriesFilename + " file.");
+                //all queries are already stored in sql files
+                allQueries.close();
+                LOGGER.info("\nStored all queries in " + allQueries.getScriptFile() + " file.");
+                requiredQueries.close();
+                LOGGER.info("Stored all queries in " + requiredQueries.getScriptFile() + " file.");
 
-                        //storing all required queries in sql file
-                        String requiredQueriesFilename = databaseName + "-required-queries.sql";
-                        Path requiredQueriesFile = Paths.get(requiredQueriesFilename);
-                        byte requiredQueriesData[] = StringUtils.getBytes(String.valueOf(requiredQueries));
-                        Files.write(requiredQueriesFile, requiredQueriesData);
-                        LOGGER.info("Stored all queries in " + requiredQueriesFilename + " file.");
-                    }
-                }
+                checkpointJournal.complete();
+                completed = true;
             }
-        } catch (ClassNotFoundException | SQLException | IOException e) {
+        } catch (SQLException e) {
             LOGGER.fatal("Exception : " + e);
             e.printStackTrace();
+            failure = e.toString();
         } finally {
+            //the report of a failed run shows how far it got
+            if (runMetrics != null && allQueries != null) {
+                runMetrics.stopProgress();
+                //every query is logged in the script of all queries, the ones which are not recorded statements are metadata queries
+                runMetrics.setMetadataQueries(allQueries.getNoOfQueries() - runMetrics.getNoOfStatements());
+                String reportSuffix = planOnly ? "-plan" : "";
+                try {
+                    runMetrics.writeReports(getOutputFile(reportSuffix + "-run-report.json"), getOutputFile(reportSuffix + "-run-report.csv"));
+                } catch (IOException e) {
+                    LOGGER.error("Could not write run report : " + e);
+                }
+            }
             try {
-                //close the connections
-                if (informationSchemaConnection != null) {
-                    closeConnection(informationSchemaConnection);
+                if (checkpointJournal != null) {
+                    checkpointJournal.close();
+                }
+                //the scripts of a failed run contain every query up to the failure
+                if (allQueries != null) {
+                    allQueries.close();
+                }
+                if (requiredQueries != null) {
+                    requiredQueries.close();
+                }
+                //close the connections and their cached statements
+                if (informationSchemaPool != null) {
+                    informationSchemaPool.close();
                 }
-                if (myDBConnection != null) {
-                    closeConnection(myDBConnection);
+                if (databasePool != null) {
+                    databasePool.close();
                 }
             } catch (SQLException s) {
                 LOGGER.fatal("Exception : " + s);
                 s.printStackTrace();
             }
         }
+        return completed;
     }
 
-    public static Connection getConnection(String databaseName) throws ClassNotFoundException, SQLException {
-        Connection connection = null;
-        if (connection == null) {
-            String username = properties.getProperty("username");
-            String password = properties.getProperty("password");
-            String host = properties.getProperty("host");
-            String port = properties.getProperty("port");
+    public boolean convertTablesStepByStep(Connection informationSchemaConnection, Connection myDBConnection) throws SQLException {
+        //every step alters the tables one at a time, so the whole conversion takes a single rebuild slot of the server
+        acquireHostRebuildPermit();
+        try {
+            //remove all the indexes on this database
+            if (!isStepDone(CheckpointJournal.DATABASE, CheckpointJournal.INDEXES_DROPPED)) {
+                dropAllIndexes(informationSchemaConnection, myDBConnection);
+                markStepDone(CheckpointJournal.DATABASE, CheckpointJournal.INDEXES_DROPPED);
+            }
 
-            Class.forName("com.mysql.jdbc.Driver");
-            connection = DriverManager.getConnection("jdbc:mysql://" + host + ":" + port + "/" + databaseName, username, password);
-            LOGGER.info("Connection to database " + databaseName + " is successful!");
+            boolean changedDB = changeDatabaseCharsetAndCollation(informationSchemaConnection, newCharset, newCollation);
+
+            if (changedDB) {
+                boolean changedColumns = changeColumnCharsetAndCollation(informationSchemaConnection, myDBConnection, newCharset, newCollation);
+
+                if (changedColumns) {
+                    boolean changedTables = changeTableCharsetAndCollation(informationSchemaConnection, myDBConnection, newCharset, newCollation);
+
+                    if (changedTables) {
+                        //recreating all indexes on this database
+                        createAllIndexes(myDBConnection);
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } finally {
+            releaseHostRebuildPermit();
         }
-        return connection;
     }
 
-    public static void closeConnection(Connection connection) throws SQLException {
+    public void setHostRebuildPermits(Semaphore hostRebuildPermits) {
+        this.hostRebuildPermits = hostRebuildPermits;
+    }
+
+    void acquireHostRebuildPermit() throws SQLException {
+        if (hostRebuildPermits != null) {
+            try {
+                hostRebuildPermits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a rebuild slot of the server", e);
+            }
+        }
+    }
+
+    void releaseHostRebuildPermit() {
+        if (hostRebuildPermits != null) {
+            hostRebuildPermits.release();
+        }
+    }
+
+    //threads used at the same time by this conversion : the main thread, the workers with the heartbeat of distributed mode, and the pre-flight scanner and checksums before and after them
+    public int getNoOfThreads() {
+        return 1 + Math.max(Math.max(mergeAlterStatements ? workerConnections + (distributedMode ? 1 : 0) : 0, preflightScan ? preflightWorkers : 0),
+                verifyChecksums ? checksumWorkers : 0);
+    }
+
+    public String getDatabaseName() {
+        return databaseName;
+    }
+
+    public String getNewCharset() {
+        return newCharset;
+    }
+
+    public String getNewCollation() {
+        return newCollation;
+    }
+
+    public RunMetrics getRunMetrics() {
+        return runMetrics;
+    }
+
+    public String getFailure() {
+        return failure;
+    }
+
+    public ConnectionPool createConnectionPool(String databaseName, int maxConnections, List<String> initStatements) {
+        String username = properties.getProperty("username");
+        String password = properties.getProperty("password");
+        String host = properties.getProperty("host");
+        String port = properties.getProperty("port");
+
+        return new ConnectionPool("jdbc:mysql://" + host + ":" + port + "/" + databaseName, username, password, maxConnections, initStatements);
+    }
+
+    public void closeConnection(Connection connection) throws SQLException {
         connection.close();
         LOGGER.info("Connection closed!");
     }
 
-    public static void setForeignKeyChecks(Connection myDBConnection, int checkValue) throws SQLException {
+    public void setForeignKeyChecks(Connection myDBConnection, int checkValue) throws SQLException {
         PreparedStatement preparedStatement = myDBConnection.prepareStatement("SET foreign_key_checks = ?;");
         preparedStatement.setInt(1, checkValue);
 
@@ -172,6 +489,8 @@ public class DatabaseConverter {
         requiredQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql() + "\n");
 
         preparedStatement.execute();
+        queryCompleted(null, 0);
+        preparedStatement.close();
         if (checkValue == 0) {
             LOGGER.info("Foreign key check disabled for database " + databaseName + "!");
         }
@@ -180,32 +499,199 @@ public class DatabaseConverter {
         }
     }
 
-    public static ResultSet getTables(Connection informationSchemaConnection) throws SQLException {
-        PreparedStatement preparedStatement = informationSchemaConnection.prepareStatement("SELECT TABLE_NAME FROM TABLES WHERE TABLE_SCHEMA = ? AND TABLE_TYPE = 'BASE TABLE';");
+    public ResultSet getTables(Connection informationSchemaConnection) throws SQLException {
+        PreparedStatement preparedStatement = StatementCache.prepareStatement(informationSchemaConnection, "SELECT TABLE_NAME, TABLE_COLLATION, DATA_LENGTH, INDEX_LENGTH, TABLE_ROWS FROM TABLES WHERE TABLE_SCHEMA = ? AND TABLE_TYPE = 'BASE TABLE';");
         preparedStatement.setString(1, databaseName);
 
-        allQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql().replace("FROM TABLES", "FROM INFORMATION_SCHEMA.TABLES") + "\n");
-        //requiredQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql().replace("FROM TABLES", "FROM INFORMATION_SCHEMA.TABLES") + "\n");
+        allQueries.append(StatementCache.asSql(preparedStatement).replace("FROM TABLES", "FROM INFORMATION_SCHEMA.TABLES") + "\n");
+        //requiredQueries.append(StatementCache.asSql(preparedStatement).replace("FROM TABLES", "FROM INFORMATION_SCHEMA.TABLES") + "\n");
 
         return preparedStatement.executeQuery();
     }
 
-    public static ResultSet getDefaultCharsetAndCollation(Connection informationSchemaConnection) throws SQLException {
-        PreparedStatement preparedStatement = informationSchemaConnection.prepareStatement("SELECT DEFAULT_CHARACTER_SET_NAME, DEFAULT_COLLATION_NAME FROM SCHEMATA WHERE SCHEMA_NAME = ?;");
+    //table name -> DATA_LENGTH + INDEX_LENGTH
+    public Map<String, Long> getTableSizes(Connection informationSchemaConnection) throws SQLException {
+        Map<String, Long> tableSizes = new HashMap<>();
+        try (ResultSet resultSet = getTables(informationSchemaConnection)) {
+            while (resultSet.next()) {
+                tableSizes.put(resultSet.getString("TABLE_NAME"), resultSet.getLong("DATA_LENGTH") + resultSet.getLong("INDEX_LENGTH"));
+            }
+        }
+        return tableSizes;
+    }
+
+    //table.column -> maximum length in bytes of every TINYTEXT, TEXT and MEDIUMTEXT column
+    public Map<String, Long> getTextColumnBytes(Connection informationSchemaConnection) throws SQLException {
+        PreparedStatement preparedStatement = StatementCache.prepareStatement(informationSchemaConnection, "SELECT TABLE_NAME, COLUMN_NAME, CHARACTER_OCTET_LENGTH FROM COLUMNS WHERE TABLE_SCHEMA = ? AND DATA_TYPE IN ('tinytext', 'text', 'mediumtext');");
+        preparedStatement.setString(1, databaseName);
+
+        allQueries.append(StatementCache.asSql(preparedStatement).replace("FROM COLUMNS", "FROM INFORMATION_SCHEMA.COLUMNS") + "\n");
+
+        Map<String, Long> textColumnBytes = new HashMap<>();
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+            while (resultSet.next()) {
+                textColumnBytes.put(resultSet.getString("TABLE_NAME") + "." + resultSet.getString("COLUMN_NAME"), resultSet.getLong("CHARACTER_OCTET_LENGTH"));
+            }
+        }
+        return textColumnBytes;
+    }
+
+    //fails before any DDL when the data of the database cannot be converted
+    public void runPreflightScan(Connection informationSchemaConnection) throws SQLException {
+        //server side cursors need server prepared statements, which cannot be logged with asSql(), so the scanner has its own connections
+        ConnectionPool scannerPool = createConnectionPool(databaseName + "?useCursorFetch=true", preflightWorkers, Collections.emptyList());
+        try {
+            List<KeyDetail> keyIndexes = new ArrayList<>();
+            for (KeyDetail index : primaryKeyIndexes) {
+                if (driftedTables == null || driftedTables.contains(index.getTableName())) {
+                    keyIndexes.add(index);
+                }
+            }
+            for (KeyDetail index : uniqueKeyIndexes) {
+                if (driftedTables == null || driftedTables.contains(index.getTableName())) {
+                    keyIndexes.add(index);
+                }
+            }
+            List<PreflightScanner.Problem> problems = new PreflightScanner(this, scannerPool, newCharset, newCollation, preflightWorkers)
+                    .scan(keyIndexes, getTableSizes(informationSchemaConnection), getTextColumnBytes(informationSchemaConnection));
+
+            if (!problems.isEmpty()) {
+                LOGGER.error("\nPre-flight scan found " + problems.size() + " problems :");
+                for (PreflightScanner.Problem problem : problems) {
+                    LOGGER.error(problem);
+                }
+                throw new SQLException("Pre-flight scan found " + problems.size() + " problems, fix the data before converting the database");
+            }
+            LOGGER.info("Pre-flight scan found no problems!");
+        } finally {
+            scannerPool.close();
+        }
+    }
+
+    public Path getManifestFile() {
+        return getOutputFile("-schema.manifest");
+    }
+
+    private ChecksumVerifier createChecksumVerifier(ConnectionPool checksumPool) {
+        return new ChecksumVerifier(this, checksumPool, newCharset, checksumWorkers, checksumChunkRows, getOutputFile("-checksums.tsv"));
+    }
+
+    //base tables with a character column which does not have the new collation yet, and tables with an index to recreate
+    public Set<String> getTablesToConvert(Connection informationSchemaConnection) throws SQLException {
+        Set<String> baseTables = new HashSet<>();
+        try (ResultSet resultSet = getTables(informationSchemaConnection)) {
+            while (resultSet.next()) {
+                baseTables.add(resultSet.getString("TABLE_NAME"));
+            }
+        }
+
+        PreparedStatement preparedStatement = StatementCache.prepareStatement(informationSchemaConnection, "SELECT DISTINCT TABLE_NAME FROM COLUMNS WHERE TABLE_SCHEMA = ? AND COLLATION_NAME IS NOT NULL AND COLLATION_NAME <> ?;");
         preparedStatement.setString(1, databaseName);
+        preparedStatement.setString(2, newCollation);
+        allQueries.append(StatementCache.asSql(preparedStatement).replace("FROM COLUMNS", "FROM INFORMATION_SCHEMA.COLUMNS") + "\n");
+
+        Set<String> tableNames = new TreeSet<>();
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+            while (resultSet.next()) {
+                tableNames.add(resultSet.getString("TABLE_NAME"));
+            }
+        }
+        for (List<KeyDetail> indexes : Arrays.asList(uniqueKeyIndexes, foreignKeyIndexes, otherIndexes)) {
+            for (KeyDetail index : indexes) {
+                tableNames.add(index.getTableName());
+            }
+        }
+        //columns of views are not converted
+        tableNames.retainAll(baseTables);
+        if (driftedTables != null) {
+            tableNames.retainAll(getIncrementalTables());
+        }
+        return tableNames;
+    }
 
-        allQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql().replace("FROM SCHEMATA", "FROM INFORMATION_SCHEMA.SCHEMATA") + "\n");
-        //requiredQueries.append(((JDBC4PreparedStatement) preparedStatement).asSql().replace("FROM SCHEMATA", "FROM INFORMATION_SCHEMA.SCHEMATA") + "\n");
+    //tables converted by an incremental run : the drifted tables, and the tables whose foreign keys reference one of them and are dropped with it
+    private Set<String> getIncrementalTables() {
+        Set<String> tableNames = new HashSet<>(driftedTables);
+        for (KeyDetail index : foreignKeyIndexes) {
+            if (driftedTables.contains(index.getReferencedTableName())) {
+                tableNames.add(index.getTableName());
+            }
+        }
+        return tableNames;
+    }
+
+    //checksums of every converted table, stored before any DDL so that a resumed run verifies against them
+    public void computeChecksums(Connection informationSchemaConnection) throws SQLException {
+        Map<String, Long> tableRows = new HashMap<>();
+        try (ResultSet resultSet = getTables(informationSchemaConnection)) {
+            while (resultSet.next()) {
+                tableRows.put(resultSet.getString("TABLE_NAME"), resultSet.getLong("TABLE_ROWS"));
+            }
+        }
+
+        ConnectionPool checksumPool = createConnectionPool(databaseName, checksumWorkers, Collections.emptyList());
+        try {
+            createChecksumVerifier(checksumPool).computeBefore(informationSchemaConnection, convertedTables, tableRows);
+        } finally {
+            checksumPool.close();
+        }
+    }
+
+    //fails when any chunk of rows differs from before the conversion
+    public void verifyChecksums(Connection informationSchemaConnection) throws SQLException {
+        ConnectionPool checksumPool = createConnectionPool(databaseName, checksumWorkers, Collections.emptyList());
+        try {
+            List<String> mismatches = createChecksumVerifier(checksumPool).verifyAfter(informationSchemaConnection);
+            if (!mismatches.isEmpty()) {
+                LOGGER.error("\nChecksums of " + mismatches.size() + " chunks differ from before the conversion :");
+                for (String mismatch : mismatches) {
+                    LOGGER.error(mismatch);
+                }
+                throw new SQLException("Checksums of " + mismatches.size() + " chunks differ from before the conversion, compare the rows with a backup");
+            }
+            LOGGER.info("Checksums of all rows match the checksums before the conversion!");
+        } finally {
+            checksumPool.close();
+        }
+    }
+
+    //file of this database in the output directory, named after the database
+    public Path getOutputFile(String suffix) {
+        return Paths.get(outputDirectory, databaseName + suffix);
+    }
+
+    //compares the tables with the manifest of the last successful run, without a manifest every table is converted
+    public void findDriftedTables(Connection informationSchemaConnection) throws SQLException {
+        if (!mergeAlterStatements) {
+            LOGGER.warn("Incremental mode needs mergeAlterStatements=true, converting all tables.");
+            return;
+        }
+        SchemaManifest manifest = SchemaManifest.load(getManifestFile());
+        if (manifest == null) {
+            LOGGER.info("No schema manifest " + getManifestFile() + " yet, converting all tables.");
+            return;
+        }
+        driftedTables = manifest.getDriftedTables(SchemaManifest.create(getManifestFile(), this, informationSchemaConnection, schemaSnapshot));
+        LOGGER.info("\n" + driftedTables.size() + " tables changed since the last conversion : " + driftedTables + "\n");
+    }
+
+    public ResultSet getDefaultCharsetAndCollation(Connection informationSchemaConnection) throws SQLException {
+        PreparedStatement preparedStatement = StatementCache.prepareStatement(informationSchemaConnection, "SELECT DEFAULT_CHARACTER_SET_NAME, DEFAULT_COLLATION_NAME FROM SCHEMATA WHERE SCHEMA_NAME = ?;");
+        preparedStatement.setString(1, databaseName);
+
+        allQueries.append(StatementCache.asSql(preparedStatement).replace("FROM SCHEMATA", "FROM INFORMATION_SCHEMA.SCHEMATA") + "\n");
+        //requiredQueries.append(StatementCache.asSql(preparedStatement).replace("FROM SCHEMATA", "FROM INFORMATION_SCHEMA.SCHEMATA") + "\n");
 
         return preparedStatement.executeQuery();
     }
 
-    public static boolean changeDatabaseCharsetAndCollation(Connection informationSchemaConnection, String newCharset, String newCollation) throws SQLException {
+    public boolean changeDatabaseCharsetAndCollation(Connection informationSchemaConnection, String newCharset, String newCollation) throws SQLException {
 
         ResultSet resultSet = getDefaultCharsetAndCollation(informationSchemaConnection);
         if (resultSet.next()) {
             String defaultCharset = resultSet.getString("DEFAULT_CHARACTER_SET_NAME");
             String defaultCollation = resultSet.getString("DEFAULT_COLLATION_NAME");
+            resultSet.close();
             if (defaultCharset.equals(newCharset) && defaultCollation.equals(newCollation)) {
                 LOGGER.info("\nDefault Charset of database : " + defaultCharset);
                 LOGGER.info("Default Collation of database : " + defaultCollation + "\n");
@@ -224,6 +710,8 @@ public class DatabaseConverter {
                 requiredQueries.append(((JDBC4PreparedStatement) preparedStatement).asSql() + "\n");
 
                 int result = preparedStatement.executeUpdate();
+                queryCompleted(null, result);
+                preparedStatement.close();
                 if (result > 0) {
                     LOGGER.info("Database charset and collation modified!");
 
@@ -234,22 +722,24 @@ public class DatabaseConverter {
                         LOGGER.info("\nDefault Charset of database : " + newCharset);
                         LOGGER.info("Default Collation of database : " + newCollation + "\n");
                     }
+                    newResultSet.close();
                     return true;
                 } else {
                     LOGGER.info("Failed to modify database charset and collation!");
                 }
             }
         }
+        resultSet.close();
         return false;
     }
 
 
-    public static boolean changeTableCharsetAndCollation(Connection informationSchemaConnection, Connection myDBConnection, String newCharset, String newCollation) throws SQLException {
-        PreparedStatement preparedStatement = informationSchemaConnection.prepareStatement("SELECT TABLE_NAME FROM TABLES WHERE TABLE_SCHEMA = ? AND TABLE_TYPE = 'BASE TABLE' AND (TABLE_COLLATION IS NULL || TABLE_COLLATION != ?);");
+    public boolean changeTableCharsetAndCollation(Connection informationSchemaConnection, Connection myDBConnection, String newCharset, String newCollation) throws SQLException {
+        PreparedStatement preparedStatement = StatementCache.prepareStatement(informationSchemaConnection, "SELECT TABLE_NAME FROM TABLES WHERE TABLE_SCHEMA = ? AND TABLE_TYPE = 'BASE TABLE' AND (TABLE_COLLATION IS NULL || TABLE_COLLATION != ?);");
         preparedStatement.setString(1, databaseName);
         preparedStatement.setString(2, newCollation);
 
-        allQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql().replace("FROM TABLES", "FROM INFORMATION_SCHEMA.TABLES") + "\n");
+        allQueries.append(StatementCache.asSql(preparedStatement).replace("FROM TABLES", "FROM INFORMATION_SCHEMA.TABLES") + "\n");
         //requiredQueries.append(((JDBC4PreparedStatement) preparedStatement).asSql().replace("FROM TABLES", "FROM INFORMATION_SCHEMA.TABLES") + "\n");
 
         ResultSet resultSet =  preparedStatement.executeQuery();
@@ -269,7 +759,8 @@ public class DatabaseConverter {
             allQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql().replace("ALTER TABLE " + tableName, "ALTER TABLE " + databaseName + "." + tableName) + "\n");
             requiredQueries.append(((JDBC4PreparedStatement) preparedStatement).asSql().replace("ALTER TABLE " + tableName, "ALTER TABLE " + databaseName + "." + tableName) + "\n");
 
-            preparedStatement.executeUpdate();
+            queryCompleted(tableName, preparedStatement.executeUpdate());
+            preparedStatement.close();
 
             //Now, change default charset and collation of table
             preparedStatement = myDBConnection.prepareStatement("ALTER TABLE " + tableName + " CHARACTER SET ? COLLATE ?;");
@@ -279,8 +770,11 @@ public class DatabaseConverter {
             allQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql().replace("ALTER TABLE " + tableName, "ALTER TABLE " + databaseName + "." + tableName)  + "\n");
             requiredQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql().replace("ALTER TABLE " + tableName, "ALTER TABLE " + databaseName + "." + tableName) + "\n");
 
-            preparedStatement.executeUpdate();
+            queryCompleted(tableName, preparedStatement.executeUpdate());
+            preparedStatement.close();
+            markStepDone(tableName, CheckpointJournal.TABLE_CONVERTED);
         }
+        resultSet.close();
 
         int noOfTablesWithOtherCharsetAndEncoding = getNoOfTablesWithOtherCharsetAndEncoding(informationSchemaConnection, newCollation);
 
@@ -291,22 +785,24 @@ public class DatabaseConverter {
         return false;
     }
 
-    public static int getNoOfTablesWithOtherCharsetAndEncoding(Connection informationSchemaConnection, String newCollation) throws SQLException {
-        PreparedStatement preparedStatement = informationSchemaConnection.prepareStatement("SELECT COUNT(*) FROM TABLES WHERE TABLE_SCHEMA = ? AND TABLE_TYPE = 'BASE TABLE' AND TABLE_COLLATION IS NOT NULL AND TABLE_COLLATION != ?;");
+    public int getNoOfTablesWithOtherCharsetAndEncoding(Connection informationSchemaConnection, String newCollation) throws SQLException {
+        PreparedStatement preparedStatement = StatementCache.prepareStatement(informationSchemaConnection, "SELECT COUNT(*) FROM TABLES WHERE TABLE_SCHEMA = ? AND TABLE_TYPE = 'BASE TABLE' AND TABLE_COLLATION IS NOT NULL AND TABLE_COLLATION != ?;");
         preparedStatement.setString(1, databaseName);
         preparedStatement.setString(2, newCollation);
 
-        allQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql().replace("FROM TABLES", "FROM INFORMATION_SCHEMA.TABLES") + "\n");
-        //requiredQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql().replace("FROM TABLES", "FROM INFORMATION_SCHEMA.TABLES") + "\n");
+        allQueries.append(StatementCache.asSql(preparedStatement).replace("FROM TABLES", "FROM INFORMATION_SCHEMA.TABLES") + "\n");
+        //requiredQueries.append(StatementCache.asSql(preparedStatement).replace("FROM TABLES", "FROM INFORMATION_SCHEMA.TABLES") + "\n");
 
-        ResultSet resultSet = preparedStatement.executeQuery();
-        if (resultSet.next()) {
-            return resultSet.getInt(1);
+        int count = 0;
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+            if (resultSet.next()) {
+                count = resultSet.getInt(1);
+            }
         }
-        return 0;
+        return count;
     }
 
-    public static boolean changeColumnCharsetAndCollation(Connection informationSchemaConnection, Connection myDBConnection, String newCharset, String newCollation) throws SQLException {
+    public boolean changeColumnCharsetAndCollation(Connection informationSchemaConnection, Connection myDBConnection, String newCharset, String newCollation) throws SQLException {
         //views don't have any collation but columns under view do have collation so we need to consider that scenario also
         ResultSet resultSet = getTables(informationSchemaConnection);
 
@@ -314,13 +810,13 @@ public class DatabaseConverter {
             String tableName = resultSet.getString("TABLE_NAME");
 
             // Fetching all columns who have some collation_name
-            PreparedStatement preparedStatement = informationSchemaConnection.prepareStatement("SELECT COLUMN_NAME, DATA_TYPE, COLUMN_TYPE, IS_NULLABLE, COLUMN_DEFAULT FROM COLUMNS WHERE TABLE_SCHEMA = ? AND TABLE_NAME = ? AND COLLATION_NAME IS NOT NULL AND COLLATION_NAME != ?;");
+            PreparedStatement preparedStatement = StatementCache.prepareStatement(informationSchemaConnection, "SELECT COLUMN_NAME, DATA_TYPE, COLUMN_TYPE, IS_NULLABLE, COLUMN_DEFAULT FROM COLUMNS WHERE TABLE_SCHEMA = ? AND TABLE_NAME = ? AND COLLATION_NAME IS NOT NULL AND COLLATION_NAME != ?;");
             preparedStatement.setString(1, databaseName);
             preparedStatement.setString(2, tableName);
             preparedStatement.setString(3, newCollation);
 
-            allQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql().replace("FROM COLUMNS", "FROM INFORMATION_SCHEMA.COLUMNS") + "\n");
-            //requiredQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql().replace("FROM COLUMNS", "FROM INFORMATION_SCHEMA.COLUMNS") + "\n");
+            allQueries.append(StatementCache.asSql(preparedStatement).replace("FROM COLUMNS", "FROM INFORMATION_SCHEMA.COLUMNS") + "\n");
+            //requiredQueries.append(StatementCache.asSql(preparedStatement).replace("FROM COLUMNS", "FROM INFORMATION_SCHEMA.COLUMNS") + "\n");
 
             ResultSet columnResultSet = preparedStatement.executeQuery();
             while (columnResultSet.next()) {
@@ -356,9 +852,13 @@ public class DatabaseConverter {
                 allQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql().replace("ALTER TABLE " + tableName, "ALTER TABLE " + databaseName + "." + tableName) + "\n");
                 requiredQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql().replace("ALTER TABLE " + tableName, "ALTER TABLE " + databaseName + "." + tableName) + "\n");
 
-                preparedStatement.executeUpdate();
+                queryCompleted(tableName, preparedStatement.executeUpdate());
+                preparedStatement.close();
             }
+            columnResultSet.close();
+            markStepDone(tableName, CheckpointJournal.COLUMNS_CONVERTED);
         }
+        resultSet.close();
 
         int noOfColumnsWithOtherCharsetAndEncoding = getNoOfColumnsWithOtherCharsetAndEncoding(informationSchemaConnection, newCollation);
 
@@ -369,107 +869,148 @@ public class DatabaseConverter {
         return false;
     }
 
-    public static int getNoOfColumnsWithOtherCharsetAndEncoding(Connection informationSchemaConnection, String newCollation) throws SQLException {
-        PreparedStatement preparedStatement = informationSchemaConnection.prepareStatement("SELECT COUNT(COLUMN_NAME) FROM COLUMNS WHERE TABLE_SCHEMA = ? AND COLLATION_NAME IS NOT NULL AND COLLATION_NAME != ?;");
+    public int getNoOfColumnsWithOtherCharsetAndEncoding(Connection informationSchemaConnection, String newCollation) throws SQLException {
+        PreparedStatement preparedStatement = StatementCache.prepareStatement(informationSchemaConnection, "SELECT COUNT(COLUMN_NAME) FROM COLUMNS WHERE TABLE_SCHEMA = ? AND COLLATION_NAME IS NOT NULL AND COLLATION_NAME != ?;");
         preparedStatement.setString(1, databaseName);
         preparedStatement.setString(2, newCollation);
 
-        allQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql().replace("FROM COLUMNS", "FROM INFORMATION_SCHEMA.COLUMNS") + "\n");
-        //requiredQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql().replace("FROM COLUMNS", "FROM INFORMATION_SCHEMA.COLUMNS") + "\n");
+        allQueries.append(StatementCache.asSql(preparedStatement).replace("FROM COLUMNS", "FROM INFORMATION_SCHEMA.COLUMNS") + "\n");
+        //requiredQueries.append(StatementCache.asSql(preparedStatement).replace("FROM COLUMNS", "FROM INFORMATION_SCHEMA.COLUMNS") + "\n");
 
-        ResultSet resultSet = preparedStatement.executeQuery();
-        if (resultSet.next()) {
-            return resultSet.getInt(1);
+        int count = 0;
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+            if (resultSet.next()) {
+                count = resultSet.getInt(1);
+            }
         }
-        return 0;
+        return count;
     }
 
-    public static void collectAllIndexes(Connection informationSchemaConnection) throws SQLException {
-        PreparedStatement preparedStatement = informationSchemaConnection.prepareStatement("SELECT TABLE_NAME, COLUMN_NAME, COLUMN_KEY, COLLATION_NAME, CHARACTER_MAXIMUM_LENGTH FROM COLUMNS WHERE TABLE_SCHEMA = ?;");
-        preparedStatement.setString(1, databaseName);
+    public void collectAllIndexes(Connection informationSchemaConnection) throws SQLException {
+        //one query per INFORMATION_SCHEMA view instead of SHOW INDEX and KEY_COLUMN_USAGE lookups for every column
+        useSnapshot(SchemaSnapshot.load(this, informationSchemaConnection));
+    }
 
-        allQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql().replace("FROM COLUMNS", "FROM INFORMATION_SCHEMA.COLUMNS") + "\n");
-        //requiredQueries.append(((JDBC4PreparedStatement) preparedStatement).asSql().replace("FROM COLUMNS", "FROM INFORMATION_SCHEMA.COLUMNS") + "\n");
+    public void useSnapshot(SchemaSnapshot snapshot) {
+        schemaSnapshot = snapshot;
 
-        ResultSet resultSet = preparedStatement.executeQuery();
-        while (resultSet.next()) {
-            String tableName = resultSet.getString("TABLE_NAME");
-            String columnName = resultSet.getString("COLUMN_NAME");
-            String columnKey = resultSet.getString("COLUMN_KEY");
-            String collationName = resultSet.getString("COLLATION_NAME");
-            boolean hasCollation = false;
-            if (collationName != null && !collationName.isEmpty()) {
-                hasCollation = true;
-            }
+        primaryKeyIndexes.addAll(snapshot.getPrimaryKeyIndexes());
+        uniqueKeyIndexes.addAll(snapshot.getUniqueKeyIndexes());
+        foreignKeyIndexes.addAll(snapshot.getForeignKeyIndexes());
+        otherIndexes.addAll(snapshot.getOtherIndexes());
+        foreignKeyRules.putAll(snapshot.getForeignKeyRules());
+    }
 
-            String characterMaxLength = resultSet.getString("CHARACTER_MAXIMUM_LENGTH");
+    //fails when any index or column of the converted tables differs from what the conversion should have left
+    public void verifySchema(Connection informationSchemaConnection) throws SQLException {
+        SchemaSnapshot snapshotBefore = originalSnapshot != null ? originalSnapshot : schemaSnapshot;
+        SchemaSnapshot expectedSnapshot = snapshotBefore.getExpectedTarget(schemaSnapshot, convertedTables, newCollation);
+        SchemaSnapshot convertedSnapshot = SchemaSnapshot.load(this, informationSchemaConnection, convertedTables);
+
+        List<String> differences = expectedSnapshot.diff(convertedSnapshot, convertedTables);
+        if (!differences.isEmpty()) {
+            LOGGER.error("\n" + differences.size() + " differences from the expected schema :");
+            for (String difference : differences) {
+                LOGGER.error(difference);
+            }
+            throw new SQLException(differences.size() + " indexes or columns of converted tables differ from the expected schema");
+        }
+        LOGGER.info("Indexes and columns of " + convertedTables.size() + " converted tables match the expected schema!");
 
-            /*
-            Store all the indexes of this column in otherIndexes and then remove the index from otherIndex if it is primary key, unique key or foreign key
-            and add it to respective list
-            */
-            preparedStatement = informationSchemaConnection.prepareStatement("SHOW INDEX FROM " + databaseName + "." + tableName + " WHERE COLUMN_NAME = ?;");
-            preparedStatement.setString(1, columnName);
+        //the tables which were not converted are unchanged, a resumed run has no snapshot of them and collects them again
+        replaceSnapshot(originalSnapshot != null ? originalSnapshot.withTables(convertedSnapshot, convertedTables) : SchemaSnapshot.load(this, informationSchemaConnection));
+    }
 
-            allQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql() + "\n");
-            //requiredQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql() + "\n");
+    //the prefix length of every recreated index from the key limit of the server, checked against the data unless only planning
+    public void planIndexPrefixes(Connection informationSchemaConnection, Connection myDBConnection) throws SQLException {
+        IndexPrefixPlanner planner = new IndexPrefixPlanner(this, myDBConnection, newCharset, newCollation, !planOnly, driftedTables);
+        SchemaSnapshot plannedIndexes = planner.plan(informationSchemaConnection, schemaSnapshot);
+        indexPrefixDecisions = planner.getDecisions();
+        replaceSnapshot(plannedIndexes);
+    }
 
-            ResultSet indexResultSet = preparedStatement.executeQuery();
-            while (indexResultSet.next()) {
-                String keyName = indexResultSet.getString("KEY_NAME");
-                otherIndexes.add(new KeyDetail(tableName, columnName, keyName, null, null, indexResultSet.getString("SEQ_IN_INDEX"), characterMaxLength, hasCollation));
+    //foreign keys on or referencing a shadow copy are dropped and added back whatever their columns, the journal keeps them for a resumed run
+    public void useShadowCopyForeignKeys(Connection informationSchemaConnection) throws SQLException {
+        Set<String> shadowTables = new TreeSet<>();
+        for (TableConversionPlan tablePlan : compileTablePlans(informationSchemaConnection, newCharset, newCollation).values()) {
+            if (tablePlan.isShadowCopy()) {
+                shadowTables.add(tablePlan.getTableName());
             }
+        }
+        if (shadowTables.isEmpty()) {
+            return;
+        }
+        int noOfForeignKeyIndexes = foreignKeyIndexes.size();
+        replaceSnapshot(schemaSnapshot.withForeignKeysOf(originalSnapshot, shadowTables));
+        LOGGER.info("\n" + (foreignKeyIndexes.size() - noOfForeignKeyIndexes) + " more foreign key columns on or referencing the shadow copies of " + shadowTables + " are dropped and added back.\n");
+    }
 
+    private void replaceSnapshot(SchemaSnapshot snapshot) {
+        primaryKeyIndexes = new ArrayList<>();
+        uniqueKeyIndexes = new ArrayList<>();
+        foreignKeyIndexes = new ArrayList<>();
+        otherIndexes = new ArrayList<>();
+        foreignKeyRules = new HashMap<>();
+        useSnapshot(snapshot);
+    }
 
-            //now search for unique keys, primary keys and foreign keys
-            preparedStatement = informationSchemaConnection.prepareStatement("SELECT CONSTRAINT_NAME, REFERENCED_TABLE_NAME, REFERENCED_COLUMN_NAME, ORDINAL_POSITION FROM KEY_COLUMN_USAGE WHERE TABLE_SCHEMA = ? AND TABLE_NAME = ? AND COLUMN_NAME = ?;");
-            preparedStatement.setString(1, databaseName);
-            preparedStatement.setString(2, tableName);
-            preparedStatement.setString(3, columnName);
+    public void useAffectedIndexes() {
+        SchemaSnapshot affectedIndexes = schemaSnapshot.getAffectedIndexes(newCollation);
+        int noOfIndexes = uniqueKeyIndexes.size() + foreignKeyIndexes.size() + otherIndexes.size();
+        replaceSnapshot(affectedIndexes);
 
-            allQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql().replace("FROM KEY_COLUMN_USAGE", "FROM INFORMATION_SCHEMA.KEY_COLUMN_USAGE") + "\n");
-            //requiredQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql().replace("FROM KEY_COLUMN_USAGE", "FROM INFORMATION_SCHEMA.KEY_COLUMN_USAGE") + "\n");
+        int noOfAffectedIndexes = uniqueKeyIndexes.size() + foreignKeyIndexes.size() + otherIndexes.size();
+        LOGGER.info("\n" + noOfAffectedIndexes + " of " + noOfIndexes + " unique, foreign and other index columns involve a column whose collation changes, only their indexes are dropped and recreated.\n");
+    }
 
-            ResultSet keyUsageResultSet = preparedStatement.executeQuery();
-            while (keyUsageResultSet.next()) {
-                String constraintName = keyUsageResultSet.getString("CONSTRAINT_NAME");
-                String referencedTableName = keyUsageResultSet.getString("REFERENCED_TABLE_NAME");
-                String referencedColumnName = keyUsageResultSet.getString("REFERENCED_COLUMN_NAME");
-                String ordinalPosition = keyUsageResultSet.getString("ORDINAL_POSITION");
+    private boolean isStepDone(String tableName, String step) {
+        return checkpointJournal != null && checkpointJournal.isDone(tableName, step);
+    }
 
-                if (columnKey.equals("PRI")) {
-                    primaryKeyIndexes.add(new KeyDetail(tableName, columnName, constraintName, referencedTableName, referencedColumnName, ordinalPosition, characterMaxLength, hasCollation));
-                    otherIndexes.remove(new KeyDetail(tableName, columnName, constraintName, null, null, ordinalPosition, characterMaxLength, hasCollation));
-                }
-                //there are scenarios where unique key is also a composite key
-                //mul means it can be foreign key or composite unique key, for composite key, 1 col has mul n another one doesn't have it
-                else if (columnKey.equals("UNI") || columnKey.equals("MUL")) {
-                    if (referencedTableName != null) {
-                        foreignKeyIndexes.add(new KeyDetail(tableName, columnName, constraintName, referencedTableName, referencedColumnName, ordinalPosition, characterMaxLength, hasCollation));
-                        otherIndexes.remove(new KeyDetail(tableName, columnName, constraintName, null, null, ordinalPosition, characterMaxLength, hasCollation));
-                    } else {
-                        uniqueKeyIndexes.add(new KeyDetail(tableName, columnName, constraintName, referencedTableName, referencedColumnName, ordinalPosition, characterMaxLength, hasCollation));
-                        otherIndexes.remove(new KeyDetail(tableName, columnName, constraintName, null, null, ordinalPosition, characterMaxLength, hasCollation));
-                    }
-                } else {
-                    preparedStatement = informationSchemaConnection.prepareStatement("SHOW INDEX FROM " + databaseName + "." + tableName + " WHERE KEY_NAME = ? AND COLUMN_NAME = ?;");
-                    preparedStatement.setString(1, constraintName);
-                    preparedStatement.setString(2, columnName);
+    private void markStepDone(String tableName, String step) throws SQLException {
+        //the scripts are synced first, so they contain every query of a step recorded as done
+        allQueries.checkpoint();
+        requiredQueries.checkpoint();
+        if (checkpointJournal != null) {
+            checkpointJournal.markDone(tableName, step);
+        }
+    }
 
-                    allQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql() + "\n");
-                    //requiredQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql() + "\n");
+    void appendToAllQueries(String query) throws SQLException {
+        allQueries.append(query + "\n");
+    }
 
-                    ResultSet uniqueIndexResultSet = preparedStatement.executeQuery();
-                    while (uniqueIndexResultSet.next()) {
-                        uniqueKeyIndexes.add(new KeyDetail(tableName, columnName, constraintName, referencedTableName, referencedColumnName, ordinalPosition, characterMaxLength, hasCollation));
-                        otherIndexes.remove(new KeyDetail(tableName, columnName, constraintName, null, null, ordinalPosition, characterMaxLength, hasCollation));
-                    }
-                }
+    void appendToRequiredQueries(String query) throws SQLException {
+        requiredQueries.append(query + "\n");
+    }
+
+    //logs the duration of the last query of this thread in both scripts and records it in the run metrics, tableName is null for queries on the database
+    void queryCompleted(String tableName, long rowsAffected) throws SQLException {
+        SqlScriptWriter.RunningQuery query = allQueries.completed();
+        requiredQueries.completed();
+        if (runMetrics != null && query != null) {
+            runMetrics.recordStatement(tableName, query.getQuery(), query.getMillis(), rowsAffected);
+        }
+    }
+
+    //primary key columns of the table in the order of the key
+    public List<String> getPrimaryKeyColumns(String tableName) {
+        List<KeyDetail> primaryKey = new ArrayList<>();
+        for (KeyDetail index : primaryKeyIndexes) {
+            if (index.getTableName().equals(tableName)) {
+                primaryKey.add(index);
             }
         }
+        primaryKey.sort(Comparator.comparingInt(KeyDetail::getOrdinalPosition));
+
+        List<String> primaryKeyColumns = new ArrayList<>();
+        for (KeyDetail index : primaryKey) {
+            primaryKeyColumns.add(index.getColumnName());
+        }
+        return primaryKeyColumns;
     }
 
-    public static void printIndexes() {
+    public void printIndexes() {
         int totalIndexes = primaryKeyIndexes.size() + uniqueKeyIndexes.size() + foreignKeyIndexes.size() + otherIndexes.size();
 
         //for composite keys, count is incremented based on number of columns involved in creating key
@@ -510,31 +1051,29 @@ public class DatabaseConverter {
         }
     }
 
-    public static boolean indexExists(Connection informationSchemaConnection, String tableName, String constraintName) throws SQLException {
-        PreparedStatement preparedStatement = informationSchemaConnection.prepareStatement("SELECT CONSTRAINT_NAME FROM KEY_COLUMN_USAGE WHERE TABLE_SCHEMA = ? AND TABLE_NAME = ? AND CONSTRAINT_NAME = ?;");
+    public boolean indexExists(Connection informationSchemaConnection, String tableName, String constraintName) throws SQLException {
+        PreparedStatement preparedStatement = StatementCache.prepareStatement(informationSchemaConnection, "SELECT CONSTRAINT_NAME FROM KEY_COLUMN_USAGE WHERE TABLE_SCHEMA = ? AND TABLE_NAME = ? AND CONSTRAINT_NAME = ?;");
         preparedStatement.setString(1, databaseName);
         preparedStatement.setString(2, tableName);
         preparedStatement.setString(3, constraintName);
 
-        allQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql().replace("FROM KEY_COLUMN_USAGE", "FROM INFORMATION_SCHEMA.KEY_COLUMN_USAGE") + "\n");
-        //requiredQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql().replace("FROM KEY_COLUMN_USAGE", "FROM INFORMATION_SCHEMA.KEY_COLUMN_USAGE") + "\n");
+        allQueries.append(StatementCache.asSql(preparedStatement).replace("FROM KEY_COLUMN_USAGE", "FROM INFORMATION_SCHEMA.KEY_COLUMN_USAGE") + "\n");
+        //requiredQueries.append(StatementCache.asSql(preparedStatement).replace("FROM KEY_COLUMN_USAGE", "FROM INFORMATION_SCHEMA.KEY_COLUMN_USAGE") + "\n");
 
-        ResultSet resultSet = preparedStatement.executeQuery();
-        if (resultSet.next()) {
-            return true;
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+            return resultSet.next();
         }
-        return false;
     }
 
-    public static void dropAllIndexes(Connection informationSchemaConnection, Connection myDBConnection) throws SQLException {
-        //problem is only for indexes whose collation is to be changed ie. varchar, text, collation
+    public void dropAllIndexes(Connection informationSchemaConnection, Connection myDBConnection) throws SQLException {
+        //problem is only for indexes whose collation is to be changed ie. varchar, text, collation, the lists contain only those indexes
         dropForeignKeyIndexes(informationSchemaConnection, myDBConnection);
         dropPrimaryIndexes(myDBConnection);
         dropUniqueIndexes(informationSchemaConnection, myDBConnection);
         dropOtherIndexes(myDBConnection);
     }
 
-    public static void dropForeignKeyIndexes(Connection informationSchemaConnection, Connection myDBConnection) throws SQLException {
+    public void dropForeignKeyIndexes(Connection informationSchemaConnection, Connection myDBConnection) throws SQLException {
         if (foreignKeyIndexes.size() > 0) {
             LOGGER.info("\nDropping all foreign key indexes\n");
         }
@@ -549,7 +1088,8 @@ public class DatabaseConverter {
                 allQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql().replace("ALTER TABLE " + index.getTableName(), "ALTER TABLE " + databaseName + "." + index.getTableName()) + "\n");
                 requiredQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql().replace("ALTER TABLE " + index.getTableName(), "ALTER TABLE " + databaseName + "." + index.getTableName()) + "\n");
 
-                preparedStatement.executeUpdate();
+                queryCompleted(index.getTableName(), preparedStatement.executeUpdate());
+                preparedStatement.close();
                 LOGGER.info("Dropped foreign key " + index.getConstraintName());
             }
 
@@ -561,24 +1101,28 @@ public class DatabaseConverter {
             //requiredQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql() + "\n");
 
             ResultSet foreignKeyIndexResultSet = preparedStatement.executeQuery();
+            boolean foreignKeyIndexExists = foreignKeyIndexResultSet.next();
+            foreignKeyIndexResultSet.close();
+            preparedStatement.close();
 
-            if (foreignKeyIndexResultSet.next()) {
+            if (foreignKeyIndexExists) {
                 preparedStatement = myDBConnection.prepareStatement("DROP INDEX " + index.getConstraintName() + " ON " + index.getTableName() + ";");
 
                 allQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql().replace("ON " + index.getTableName(), "ON " + databaseName + "." + index.getTableName()) + "\n");
                 requiredQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql().replace("ON " + index.getTableName(), "ON " + databaseName + "." + index.getTableName()) + "\n");
 
-                preparedStatement.executeUpdate();
+                queryCompleted(index.getTableName(), preparedStatement.executeUpdate());
+                preparedStatement.close();
                 LOGGER.info("Dropped foreign key index " + index.getConstraintName());
             }
         }
     }
 
-    public static void dropPrimaryIndexes(Connection myDBConnection) throws SQLException {
+    public void dropPrimaryIndexes(Connection myDBConnection) throws SQLException {
 
     }
 
-    public static void dropUniqueIndexes(Connection informationSchemaConnection, Connection myDBConnection) throws SQLException {
+    public void dropUniqueIndexes(Connection informationSchemaConnection, Connection myDBConnection) throws SQLException {
         if (uniqueKeyIndexes.size() > 0) {
             LOGGER.info("\nDropping all unique indexes\n");
         }
@@ -592,56 +1136,58 @@ public class DatabaseConverter {
                 allQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql().replace("ALTER TABLE " + index.getTableName(), "ALTER TABLE " + databaseName + "." + index.getTableName()) + "\n");
                 requiredQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql().replace("ALTER TABLE " + index.getTableName(), "ALTER TABLE " + databaseName + "." + index.getTableName()) + "\n");
 
-                preparedStatement.executeUpdate();
+                queryCompleted(index.getTableName(), preparedStatement.executeUpdate());
+                preparedStatement.close();
                 LOGGER.info("Dropped unique key " + index.getConstraintName());
             }
         }
     }
 
-    public static void dropOtherIndexes(Connection myDBConnection) throws SQLException {
+    public void dropOtherIndexes(Connection myDBConnection) throws SQLException {
         if (otherIndexes.size() > 0) {
             LOGGER.info("\nDropping all other indexes\n");
         }
         Iterator<KeyDetail> iterator = otherIndexes.iterator();
         while (iterator.hasNext()) {
             KeyDetail index = iterator.next();
+            //composite indexes have one entry per column and indexes dropped by a failed run are already gone
+            if (isStepDone(index.getTableName(), CheckpointJournal.INDEXES_DROPPED + " " + index.getConstraintName())) {
+                continue;
+            }
             //drop index indexname on tablename;
             PreparedStatement preparedStatement = myDBConnection.prepareStatement("ALTER TABLE " + index.getTableName() + " DROP INDEX " + index.getConstraintName() + ";");
 
             allQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql().replace("ALTER TABLE " + index.getTableName(), "ALTER TABLE " + databaseName + "." + index.getTableName()) + "\n");
             requiredQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql().replace("ALTER TABLE " + index.getTableName(), "ALTER TABLE " + databaseName + "." + index.getTableName()) + "\n");
 
-            preparedStatement.executeUpdate();
+            queryCompleted(index.getTableName(), preparedStatement.executeUpdate());
+            preparedStatement.close();
+            markStepDone(index.getTableName(), CheckpointJournal.INDEXES_DROPPED + " " + index.getConstraintName());
             LOGGER.info("Dropped other index " + index.getConstraintName());
         }
     }
 
-    public static void createAllIndexes(Connection myDBConnection) throws SQLException {
+    public void createAllIndexes(Connection myDBConnection) throws SQLException {
         createPrimaryIndexes(myDBConnection);
         createUniqueIndexes(myDBConnection);
         createOtherIndexes(myDBConnection);
         createForeignKeyIndexes(myDBConnection);
     }
 
-    public static void createPrimaryIndexes(Connection myDBConnection) throws SQLException {
+    public void createPrimaryIndexes(Connection myDBConnection) throws SQLException {
 
     }
 
-    public static void createUniqueIndexes(Connection myDBConnection) throws SQLException {
+    public void createUniqueIndexes(Connection myDBConnection) throws SQLException {
         if (uniqueKeyIndexes.size() > 0) {
             LOGGER.info("\nCreating all unique key indexes\n");
         }
-        HashMap<HashMap<String, String>, String> uniqueKeyColumns = getAllPairs(uniqueKeyIndexes);
-
-        for (Map.Entry<HashMap<String, String>, String> entry : uniqueKeyColumns.entrySet()) {
-            String tableName = "";
-            String constraintName = "";
-            HashMap<String, String> entryKey = entry.getKey();
-            String columns = entry.getValue().replace("[", "").replace("]", "");
-
-            for (Map.Entry<String, String> key : entryKey.entrySet()) {
-                tableName = key.getKey();
-                constraintName = key.getValue();
+        for (IndexDefinition index : IndexDefinition.group(uniqueKeyIndexes, IndexDefinition.UNIQUE)) {
+            String tableName = index.getTableName();
+            String constraintName = index.getIndexName();
+            String columns = index.getColumnList();
+            if (isStepDone(tableName, CheckpointJournal.INDEXES_RECREATED + " " + constraintName)) {
+                continue;
             }
             //LOGGER.info("TableName : " + tableName + "\tConstraintName : " + constraintName + "\tColumns : " + columns);
             //ALTER TABLE gtldtest.application_status ADD UNIQUE pbapplictinstts_pplicatinid(id);
@@ -650,26 +1196,23 @@ public class DatabaseConverter {
             allQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql().replace("ALTER TABLE " + tableName, "ALTER TABLE " + databaseName + "." + tableName) + "\n");
             requiredQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql().replace("ALTER TABLE " + tableName, "ALTER TABLE " + databaseName + "." + tableName) + "\n");
 
-            preparedStatement.executeUpdate();
+            queryCompleted(tableName, preparedStatement.executeUpdate());
+            preparedStatement.close();
+            markStepDone(tableName, CheckpointJournal.INDEXES_RECREATED + " " + constraintName);
             LOGGER.info("Created unique key index " + constraintName);
         }
     }
 
-    public static void createOtherIndexes(Connection myDBConnection) throws SQLException {
+    public void createOtherIndexes(Connection myDBConnection) throws SQLException {
         if (otherIndexes.size() > 0) {
             LOGGER.info("\nCreating all other indexes\n");
         }
-        HashMap<HashMap<String, String>, String> otherIndexColumns = getAllPairs(otherIndexes);
-
-        for (Map.Entry<HashMap<String, String>, String> entry : otherIndexColumns.entrySet()) {
-            String tableName = "";
-            String constraintName = "";
-            HashMap<String, String> entryKey = entry.getKey();
-            String columns = entry.getValue().replace("[", "").replace("]", "");
-
-            for (Map.Entry<String, String> key : entryKey.entrySet()) {
-                tableName = key.getKey();
-                constraintName = key.getValue();
+        for (IndexDefinition index : IndexDefinition.group(otherIndexes, IndexDefinition.KEY)) {
+            String tableName = index.getTableName();
+            String constraintName = index.getIndexName();
+            String columns = index.getColumnList();
+            if (isStepDone(tableName, CheckpointJournal.INDEXES_RECREATED + " " + constraintName)) {
+                continue;
             }
             //LOGGER.info("TableName : " + tableName + "\tConstraintName : " + constraintName + "\tColumns : " + columns);
             //ALTER TABLE gtldtest.application_status ADD KEY pbapplictinstts_pplicatinid(id);
@@ -678,90 +1221,416 @@ public class DatabaseConverter {
             allQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql().replace("ALTER TABLE " + tableName, "ALTER TABLE " + databaseName + "." + tableName) + "\n");
             requiredQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql().replace("ALTER TABLE " + tableName, "ALTER TABLE " + databaseName + "." + tableName) + "\n");
 
-            preparedStatement.executeUpdate();
+            queryCompleted(tableName, preparedStatement.executeUpdate());
+            preparedStatement.close();
+            markStepDone(tableName, CheckpointJournal.INDEXES_RECREATED + " " + constraintName);
             LOGGER.info("Created other index " + constraintName);
         }
     }
 
-    public static void createForeignKeyIndexes(Connection myDBConnection) throws SQLException {
+    public void createForeignKeyIndexes(Connection myDBConnection) throws SQLException {
         if (foreignKeyIndexes.size() > 0) {
             LOGGER.info("\nCreating all foreign key indexes\n");
         }
         Iterator<KeyDetail> iterator = foreignKeyIndexes.iterator();
         while (iterator.hasNext()) {
             KeyDetail index = iterator.next();
-            if (index.isHasCollation() && Integer.parseInt(index.getCharacterMaxLength()) >= 191) {
-                index.setColumnName(index.getColumnName() + "(191)");
+            if (isStepDone(index.getTableName(), CheckpointJournal.FOREIGN_KEYS_CREATED + " " + index.getConstraintName())) {
+                iterator.remove();
+                continue;
+            }
+            String foreignKeyRule = foreignKeyRules.get(index.getTableName() + "." + index.getConstraintName());
+            if (foreignKeyRule == null) {
+                foreignKeyRule = " ON DELETE CASCADE";
             }
             //ALTER TABLE gtldtest.application_change_log ADD CONSTRAINT FK_log_from_attachment_id FOREIGN KEY (from_attachment_id) REFERENCES gtldtest.gtld_application_attachment(id) ON DELETE CASCADE;
-            PreparedStatement preparedStatement = myDBConnection.prepareStatement("ALTER TABLE " + index.getTableName() +" ADD CONSTRAINT " + index.getConstraintName() + " FOREIGN KEY (" + index.getColumnName() + ") REFERENCES " + index.getReferencedTableName() + "(" + index.getReferencedColumnName() + ") ON DELETE CASCADE;");
+            PreparedStatement preparedStatement = myDBConnection.prepareStatement("ALTER TABLE " + index.getTableName() +" ADD CONSTRAINT " + index.getConstraintName() + " FOREIGN KEY (" + index.getIndexedColumn() + ") REFERENCES " + index.getReferencedTableName() + "(" + index.getReferencedColumnName() + ")" + foreignKeyRule + ";");
 
             allQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql().replace("ALTER TABLE " + index.getTableName(), "ALTER TABLE " + databaseName + "." + index.getTableName()) + "\n");
             requiredQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql().replace("ALTER TABLE " + index.getTableName(), "ALTER TABLE " + databaseName + "." + index.getTableName()) + "\n");
 
-            preparedStatement.executeUpdate();
+            queryCompleted(index.getTableName(), preparedStatement.executeUpdate());
+            preparedStatement.close();
+            markStepDone(index.getTableName(), CheckpointJournal.FOREIGN_KEYS_CREATED + " " + index.getConstraintName());
             LOGGER.info("Created foreign key index " + index.getConstraintName());
             iterator.remove();
         }
     }
 
-    public static HashMap<HashMap<String, String>, String> getAllPairs(List<KeyDetail> indexes) {
+    public boolean convertTables(Connection informationSchemaConnection, Connection myDBConnection, String newCharset, String newCollation) throws SQLException {
+        Map<String, TableConversionPlan> tablePlans = compileTablePlans(informationSchemaConnection, newCharset, newCollation);
 
-        HashMap<HashMap<String, String>, String> allColumns = new HashMap<>();
-        Iterator<KeyDetail> indexesIterator = indexes.iterator();
+        //skip everything a failed run has already completed
+        for (TableConversionPlan tablePlan : tablePlans.values()) {
+            tablePlan.setRebuildDone(isStepDone(tablePlan.getTableName(), CheckpointJournal.TABLE_CONVERTED));
+            tablePlan.setForeignKeysDropped(isStepDone(tablePlan.getTableName(), CheckpointJournal.FOREIGN_KEYS_DROPPED));
+            tablePlan.setForeignKeysCreated(isStepDone(tablePlan.getTableName(), CheckpointJournal.FOREIGN_KEYS_CREATED));
+        }
+        checkDroppedForeignKeys(tablePlans);
+
+        //shadow tables are renamed, so foreign keys are dropped before any table is swapped, otherwise they would follow the old table,
+        //the plans contain every foreign key on or referencing a shadow copy since useShadowCopyForeignKeys
+        for (TableConversionPlan tablePlan : tablePlans.values()) {
+            if (tablePlan.isShadowCopy()) {
+                dropAllForeignKeys(myDBConnection, tablePlans);
+                break;
+            }
+        }
 
-        while (indexesIterator.hasNext()) {
+        if (onlineMode) {
+            //find out which tables can be converted without blocking and which ones have to be copied
+            new OnlineAlterProbe(myDBConnection).probe(tablePlans);
+        }
 
-            KeyDetail key1 = indexesIterator.next();
-            //LOGGER.info("\n\nKey1 : " + key1);
+        int noOfRebuilds = 0;
+        double estimatedSeconds = 0;
+        for (TableConversionPlan tablePlan : tablePlans.values()) {
+            if (tablePlan.requiresRebuild()) {
+                noOfRebuilds++;
+                estimatedSeconds += tablePlan.getEstimatedRebuildSeconds();
+            }
+        }
+        runMetrics.startProgress(noOfRebuilds, estimatedSeconds, progressIntervalSeconds);
 
-            List<KeyDetail> allIndexesMatchingConstraintName = new ArrayList<>();
-            Iterator<KeyDetail> iterator2 = indexes.iterator();
+        //foreign keys are added only after the table and its referenced tables are converted, so that referenced columns already have the new charset
+        ConnectionPool queuePool = null;
+        try {
+            if (distributedMode) {
+                //other processes convert tables of the same plan, this one converts the tables it claims first
+                queuePool = createConnectionPool(databaseName, workerConnections + 1, Collections.emptyList());
+                new LeaseWorkQueue(this, databasePool, queuePool, distributedRunId, workerConnections, maxConcurrentRebuilds, leaseSeconds, leasePollMillis).run(tablePlans);
+            } else {
+                new ConversionScheduler(this, databasePool, workerConnections, maxConcurrentRebuilds).run(tablePlans);
+            }
+        } finally {
+            runMetrics.stopProgress();
+            if (queuePool != null) {
+                queuePool.close();
+            }
+        }
 
-            while (iterator2.hasNext()) {
+        int noOfColumnsWithOtherCharsetAndEncoding = getNoOfColumnsWithOtherCharsetAndEncoding(informationSchemaConnection, newCollation);
+        int noOfTablesWithOtherCharsetAndEncoding = getNoOfTablesWithOtherCharsetAndEncoding(informationSchemaConnection, newCollation);
 
-                KeyDetail key2 = iterator2.next();
-                //LOGGER.info("Comparing with " + key2);
+        if (noOfColumnsWithOtherCharsetAndEncoding == 0 && noOfTablesWithOtherCharsetAndEncoding == 0) {
+            LOGGER.info("All tables and columns have been converted successfully!");
+            return true;
+        }
+        return false;
+    }
 
-                if (key1 != null && key2 != null && key1.getTableName().equals(key2.getTableName()) && key1.getConstraintName().equals(key2.getConstraintName())) {
-                    allIndexesMatchingConstraintName.add(key2);
-                    //iterator2.remove();
+    public void rebuildTable(Connection myDBConnection, TableConversionPlan tablePlan) throws SQLException {
+        long rebuildStart = System.nanoTime();
+        if (tablePlan.isShadowCopy()) {
+            Connection replicaConnection = getReplicaConnection();
+            try {
+                ChunkCopier chunkCopier = createChunkCopier(myDBConnection, replicaConnection);
+                new ShadowTableCopier(this, myDBConnection, chunkCopier).convert(tablePlan, getPrimaryKeyColumns(tablePlan.getTableName()));
+            } finally {
+                if (replicaConnection != null) {
+                    closeConnection(replicaConnection);
                 }
             }
+        } else {
+            executeAlterTable(myDBConnection, tablePlan.getTableName(), tablePlan.getAlterStatement());
+        }
+        //the merged ALTER TABLE drops indexes, converts columns and table, and recreates indexes at once
+        markStepDone(tablePlan.getTableName(), CheckpointJournal.TABLE_CONVERTED);
+        runMetrics.recordTableRebuild(tablePlan.getTableName(), rebuildStart);
+        runMetrics.tableCompleted(tablePlan.getEstimatedRebuildSeconds());
+    }
 
-            allIndexesMatchingConstraintName.add(key1);
+    public void createForeignKeys(Connection myDBConnection, TableConversionPlan tablePlan) throws SQLException {
+        createForeignKeys(myDBConnection, tablePlan.getTableName(), tablePlan.getForeignKeyStatement());
+    }
 
-            String[] allColumnsArray = new String[allIndexesMatchingConstraintName.size() - 1];
+    public void createForeignKeys(Connection myDBConnection, String tableName, String foreignKeyStatement) throws SQLException {
+        executeAlterTable(myDBConnection, tableName, foreignKeyStatement);
+        markStepDone(tableName, CheckpointJournal.FOREIGN_KEYS_CREATED);
+        LOGGER.info("Created foreign keys of table " + tableName);
+    }
 
-            Iterator<KeyDetail> allIndexesIterator =  allIndexesMatchingConstraintName.iterator();
-            while (allIndexesIterator.hasNext()) {
-                KeyDetail index = allIndexesIterator.next();
-                String columnName = index.getColumnName();
+    public ChunkCopier createChunkCopier(Connection connection, Connection replicaConnection) {
+        ChunkCopier chunkCopier = new ChunkCopier(connection, shadowCopyChunkSize, minChunkSize, maxChunkSize, targetChunkMillis, shadowCopySleepMillis);
+        chunkCopier.setMaxThreadsRunning(maxThreadsRunning);
+        chunkCopier.setReplica(replicaConnection, maxReplicaLagSeconds);
+        chunkCopier.setLockWaitTimeoutSeconds(chunkLockWaitTimeoutSeconds);
+        return chunkCopier;
+    }
 
-                /*
-                If the column has some collation only then we need to append column name with length 191 otherwise this column cannot be indexed.
-                The prefix length 191 represents that utf8mb4 collation will be used for indexing of such columns.
-                If there is no collation for column for example for int, date, timestamp such columns then index cannot take prefix 191 and
-                exception will be thrown. So, no need to set 191 index length for them.
-
-                We need to check characterMaxLength because only 255 characters are allowed to be indexed.
-                After that limit, index cannot store values.
-                For utf8mb4, we need to index only 191 characters so indexing won't be done without prefix 191.
-                */
-                if (index.isHasCollation() && Integer.parseInt(index.getCharacterMaxLength()) >= 191) {
-                    columnName += "(191)";
+    //connection to the replica whose lag throttles row copies, null when no replicaHost is configured
+    public Connection getReplicaConnection() throws SQLException {
+        String replicaHost = properties.getProperty("replicaHost");
+        if (replicaHost == null || replicaHost.isEmpty()) {
+            return null;
+        }
+        String replicaPort = properties.getProperty("replicaPort", properties.getProperty("port"));
+        try {
+            Class.forName("com.mysql.jdbc.Driver");
+        } catch (ClassNotFoundException e) {
+            throw new SQLException(e);
+        }
+        Connection connection = DriverManager.getConnection("jdbc:mysql://" + replicaHost + ":" + replicaPort + "/" + databaseName, properties.getProperty("username"), properties.getProperty("password"));
+        LOGGER.info("Connection to replica " + replicaHost + ":" + replicaPort + " is successful!");
+        return connection;
+    }
+
+    //a resumed run fails when the failed run dropped foreign keys of a table which this run would not add back
+    private void checkDroppedForeignKeys(Map<String, TableConversionPlan> tablePlans) throws SQLException {
+        if (checkpointJournal == null) {
+            return;
+        }
+        for (String tableName : checkpointJournal.getTablesDone(CheckpointJournal.FOREIGN_KEYS_DROPPED)) {
+            TableConversionPlan tablePlan = tablePlans.get(tableName);
+            if (!isStepDone(tableName, CheckpointJournal.FOREIGN_KEYS_CREATED) && (tablePlan == null || !tablePlan.hasForeignKeys())) {
+                throw new SQLException("Foreign keys of table " + tableName + " were dropped by the failed run but are not in the snapshot of " + checkpointJournal.getJournalFile());
+            }
+        }
+    }
+
+    //dropping foreign keys only changes metadata when foreign key checks are disabled
+    public void dropAllForeignKeys(Connection myDBConnection, Map<String, TableConversionPlan> tablePlans) throws SQLException {
+        if (foreignKeyIndexes.size() > 0) {
+            LOGGER.info("\nDropping all foreign keys\n");
+        }
+        for (TableConversionPlan tablePlan : tablePlans.values()) {
+            if (tablePlan.hasForeignKeyDrops()) {
+                executeAlterTable(myDBConnection, tablePlan.getTableName(), tablePlan.getDropForeignKeysStatement());
+                markStepDone(tablePlan.getTableName(), CheckpointJournal.FOREIGN_KEYS_DROPPED);
+                tablePlan.setForeignKeysDropped(true);
+                LOGGER.info("Dropped foreign keys of table " + tablePlan.getTableName());
+            }
+        }
+    }
+
+    public void executeAlterTable(Connection myDBConnection, String tableName, String query) throws SQLException {
+        PreparedStatement preparedStatement = myDBConnection.prepareStatement(query);
+
+        allQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql().replace("ALTER TABLE " + tableName, "ALTER TABLE " + databaseName + "." + tableName) + "\n");
+        requiredQueries.append(((JDBC4PreparedStatement)preparedStatement).asSql().replace("ALTER TABLE " + tableName, "ALTER TABLE " + databaseName + "." + tableName) + "\n");
+
+        queryCompleted(tableName, preparedStatement.executeUpdate());
+        preparedStatement.close();
+    }
+
+    /*
+    Writes every statement of the conversion in execution order without executing any of them : the database charset,
+    one ALTER TABLE per table longest rebuild first, and the foreign keys.
+    Every table is preceded by its size and estimated rebuild time, so the script can be reviewed and split into maintenance windows.
+    When ALTER statements are not merged the plan has one ALTER TABLE per table and step, which only approximates the conversion :
+    it drops every foreign key with its index and runs one ALTER TABLE per foreign key, index and column.
+    */
+    public void writeConversionPlan(Connection informationSchemaConnection, Connection myDBConnection, String newCharset, String newCollation) throws SQLException {
+        ResultSet resultSet = getDefaultCharsetAndCollation(informationSchemaConnection);
+        if (resultSet.next() && !(newCharset.equals(resultSet.getString("DEFAULT_CHARACTER_SET_NAME")) && newCollation.equals(resultSet.getString("DEFAULT_COLLATION_NAME")))) {
+            appendToRequiredQueries("ALTER DATABASE " + databaseName + " CHARACTER SET = '" + newCharset + "' COLLATE = '" + newCollation + "';");
+        }
+        resultSet.close();
+
+        Map<String, TableConversionPlan> tablePlans = compileTablePlans(informationSchemaConnection, newCharset, newCollation);
+        if (onlineMode) {
+            //the probe only alters empty _probe_ copies, so the plan has the ALGORITHM and LOCK clauses a conversion would use
+            new OnlineAlterProbe(myDBConnection).probe(tablePlans);
+        }
+        List<TableConversionPlan> orderedTables = ConversionScheduler.orderTables(tablePlans);
+
+        long totalBytes = 0;
+        int noOfRebuilds = 0;
+        for (TableConversionPlan tablePlan : orderedTables) {
+            if (tablePlan.requiresRebuild()) {
+                totalBytes += tablePlan.getDataLength() + tablePlan.getIndexLength();
+                noOfRebuilds++;
+            }
+        }
+        appendToRequiredQueries("\n-- Conversion plan of database " + databaseName + " to " + newCharset + " / " + newCollation + " : " + noOfRebuilds + " tables (" + (totalBytes / (1024 * 1024))
+                + " MB), predicted duration " + formatDuration(ConversionScheduler.predictDuration(orderedTables, Math.max(1, Math.min(maxConcurrentRebuilds, workerConnections))))
+                + " with " + maxConcurrentRebuilds + " concurrent rebuilds\n");
+
+        if (mergeAlterStatements) {
+            for (TableConversionPlan tablePlan : orderedTables) {
+                if (tablePlan.requiresRebuild()) {
+                    appendTablePlanComment(tablePlan);
+                    appendToRequiredQueries(qualifyTableName(tablePlan.getAlterStatement(), tablePlan.getTableName()) + "\n");
                 }
-                allColumnsArray[Integer.parseInt(index.getOrdinalPosition()) - 1] = columnName;
-                allIndexesIterator.remove();
             }
+        } else {
+            //the same order as the step by step conversion, every step on all tables before the next step
+            appendToRequiredQueries("-- mergeAlterStatements=false : the conversion runs one ALTER TABLE per foreign key, index and column and drops every foreign key with its index,"
+                    + " the statements below merge every step of a table and only approximate it\n");
+            for (TableConversionPlan tablePlan : orderedTables) {
+                if (tablePlan.requiresRebuild()) {
+                    appendTablePlanComment(tablePlan);
+                }
+            }
+            for (int step = 0; step < 4; step++) {
+                appendToRequiredQueries("");
+                for (TableConversionPlan tablePlan : orderedTables) {
+                    String statement = tablePlan.getStepStatements().get(step);
+                    if (statement != null) {
+                        appendToRequiredQueries(qualifyTableName(statement, tablePlan.getTableName()));
+                    }
+                }
+            }
+        }
 
-            HashMap<String, String> hashMapKey = new HashMap<>();
-            hashMapKey.put(key1.getTableName(), key1.getConstraintName());
-            allColumns.put(hashMapKey, Arrays.toString(allColumnsArray));
+        appendToRequiredQueries("\n-- Foreign keys, after all tables are converted\n");
+        for (TableConversionPlan tablePlan : orderedTables) {
+            if (tablePlan.hasForeignKeys()) {
+                appendToRequiredQueries(qualifyTableName(tablePlan.getForeignKeyStatement(), tablePlan.getTableName()));
+            }
+        }
+        appendToRequiredQueries("");
+        LOGGER.info("\nPlanned conversion of " + noOfRebuilds + " tables (" + (totalBytes / (1024 * 1024)) + " MB)");
+    }
 
-            //indexesIterator.remove();
+    private void appendTablePlanComment(TableConversionPlan tablePlan) throws SQLException {
+        appendToRequiredQueries("-- " + tablePlan.getTableName() + " : " + (tablePlan.getDataLength() / (1024 * 1024)) + " MB data, " + (tablePlan.getIndexLength() / (1024 * 1024)) + " MB indexes, "
+                + tablePlan.getTableRows() + " rows, estimated rebuild " + formatDuration(tablePlan.getEstimatedRebuildSeconds())
+                + (tablePlan.isShadowCopy() ? ", converted with a shadow table copy when not run from this script" : "")
+                + (onlineMode && !tablePlan.isShadowCopy() ? ", " + OnlineAlterProbe.describe(tablePlan) : ""));
+        for (String indexDecision : tablePlan.getIndexDecisions()) {
+            appendToRequiredQueries("--   " + indexDecision);
         }
+    }
 
-        return allColumns;
+    private String qualifyTableName(String query, String tableName) {
+        return query.replace("ALTER TABLE " + tableName, "ALTER TABLE " + databaseName + "." + tableName);
+    }
+
+    public static String formatDuration(double seconds) {
+        long roundedSeconds = Math.round(seconds);
+        return String.format("%02d:%02d:%02d", roundedSeconds / 3600, (roundedSeconds % 3600) / 60, roundedSeconds % 60);
+    }
+
+    /*
+    A rebuild copies all the rows and then sorts and builds every index again,
+    so index bytes are weighted twice and every row adds a fixed cost on top of its size.
+    */
+    public double estimateRebuildSeconds(long dataLength, long indexLength, long tableRows) {
+        return (dataLength + 2.0 * indexLength) / rebuildBytesPerSecond + (double) tableRows / rebuildRowsPerSecond;
+    }
+
+    public Map<String, TableConversionPlan> compileTablePlans(Connection informationSchemaConnection, String newCharset, String newCollation) throws SQLException {
+        Map<String, TableConversionPlan> tablePlans = planIndexChanges(schemaSnapshot);
+        for (TableConversionPlan tablePlan : tablePlans.values()) {
+            tablePlan.setIndexDecisions(indexPrefixDecisions.getOrDefault(tablePlan.getTableName(), Collections.emptyList()));
+        }
+
+        //views don't have any collation but columns under view do have collation, so only columns of base tables are considered
+        PreparedStatement preparedStatement = StatementCache.prepareStatement(informationSchemaConnection, "SELECT C.TABLE_NAME, C.COLUMN_NAME, C.COLUMN_TYPE, C.IS_NULLABLE, C.COLUMN_DEFAULT FROM COLUMNS C JOIN TABLES T ON T.TABLE_SCHEMA = C.TABLE_SCHEMA AND T.TABLE_NAME = C.TABLE_NAME WHERE C.TABLE_SCHEMA = ? AND T.TABLE_TYPE = 'BASE TABLE' AND C.COLLATION_NAME IS NOT NULL AND C.COLLATION_NAME != ? ORDER BY C.TABLE_NAME, C.ORDINAL_POSITION;");
+        preparedStatement.setString(1, databaseName);
+        preparedStatement.setString(2, newCollation);
+
+        allQueries.append(StatementCache.asSql(preparedStatement).replace("FROM COLUMNS", "FROM INFORMATION_SCHEMA.COLUMNS").replace("JOIN TABLES", "JOIN INFORMATION_SCHEMA.TABLES") + "\n");
+
+        ResultSet columnResultSet = preparedStatement.executeQuery();
+        while (columnResultSet.next()) {
+            planColumnChange(tablePlans, columnResultSet.getString("TABLE_NAME"), columnResultSet.getString("COLUMN_NAME"), columnResultSet.getString("COLUMN_TYPE"),
+                    columnResultSet.getString("IS_NULLABLE"), columnResultSet.getString("COLUMN_DEFAULT"), newCharset, newCollation);
+        }
+        columnResultSet.close();
+
+        //table collation and size are read together, size is used for estimating rebuild time and scheduling largest tables first
+        ResultSet tableResultSet = getTables(informationSchemaConnection);
+        while (tableResultSet.next()) {
+            String tableName = tableResultSet.getString("TABLE_NAME");
+            String tableCollation = tableResultSet.getString("TABLE_COLLATION");
+            if (tableCollation == null || !tableCollation.equals(newCollation)) {
+                tablePlans.computeIfAbsent(tableName, TableConversionPlan::new).changeTableCharset(newCharset, newCollation);
+            }
+
+            TableConversionPlan tablePlan = tablePlans.get(tableName);
+            if (tablePlan != null) {
+                long dataLength = tableResultSet.getLong("DATA_LENGTH");
+                long indexLength = tableResultSet.getLong("INDEX_LENGTH");
+                long tableRows = tableResultSet.getLong("TABLE_ROWS");
+                tablePlan.setTableSize(dataLength, indexLength, tableRows);
+                if (tablePlan.requiresRebuild()) {
+                    tablePlan.setEstimatedRebuildSeconds(estimateRebuildSeconds(dataLength, indexLength, tableRows));
+                }
+                //rows are copied in primary key order, so tables without primary key are always rebuilt in place,
+                //and tables which only drop foreign keys or indexes do not copy rows
+                if (shadowCopyThresholdBytes > 0 && dataLength + indexLength >= shadowCopyThresholdBytes && (tablePlan.hasColumnChanges() || tablePlan.hasTableCharsetChange())
+                        && !getPrimaryKeyColumns(tableName).isEmpty()) {
+                    tablePlan.setShadowCopy(true);
+                }
+            }
+        }
+        tableResultSet.close();
+
+        //tables unchanged since the last successful run are left alone, including their indexes, unless they reference a changed table
+        if (driftedTables != null) {
+            tablePlans.keySet().retainAll(getIncrementalTables());
+        }
+
+        return tablePlans;
+    }
+
+    //drops and recreates every foreign key, unique key and other index of the snapshot
+    public static Map<String, TableConversionPlan> planIndexChanges(SchemaSnapshot snapshot) {
+        Map<String, TableConversionPlan> tablePlans = new LinkedHashMap<>();
+
+        //composite foreign keys have one entry per column, so group them by table and constraint first
+        Map<String, List<KeyDetail>> foreignKeys = new LinkedHashMap<>();
+        for (KeyDetail index : snapshot.getForeignKeyIndexes()) {
+            foreignKeys.computeIfAbsent(index.getTableName() + "." + index.getConstraintName(), key -> new ArrayList<>()).add(index);
+        }
+        for (List<KeyDetail> foreignKey : foreignKeys.values()) {
+            foreignKey.sort(Comparator.comparingInt(KeyDetail::getOrdinalPosition));
+            KeyDetail firstIndex = foreignKey.get(0);
+            String tableName = firstIndex.getTableName();
+            String constraintName = firstIndex.getConstraintName();
+
+            TableConversionPlan tablePlan = tablePlans.computeIfAbsent(tableName, TableConversionPlan::new);
+            tablePlan.dropForeignKey(constraintName);
+            //the index of a foreign key without character columns does not change, the foreign key added back uses it again
+            boolean hasCharacterColumn = false;
+            for (KeyDetail index : foreignKey) {
+                hasCharacterColumn |= index.isHasCollation();
+            }
+            if (hasCharacterColumn && snapshot.hasIndex(tableName, constraintName)) {
+                tablePlan.dropIndex(constraintName);
+            }
+
+            List<String> columns = new ArrayList<>();
+            List<String> referencedColumns = new ArrayList<>();
+            for (KeyDetail index : foreignKey) {
+                columns.add(index.getIndexedColumn());
+                referencedColumns.add(index.getReferencedColumnName());
+            }
+            String foreignKeyRule = snapshot.getForeignKeyRule(tableName, constraintName);
+            if (foreignKeyRule == null) {
+                foreignKeyRule = " ON DELETE CASCADE";
+            }
+            tablePlan.addForeignKey(constraintName, String.join(", ", columns), firstIndex.getReferencedTableName(), String.join(", ", referencedColumns), foreignKeyRule);
+        }
+
+        for (IndexDefinition index : IndexDefinition.group(snapshot.getUniqueKeyIndexes(), IndexDefinition.UNIQUE)) {
+            TableConversionPlan tablePlan = tablePlans.computeIfAbsent(index.getTableName(), TableConversionPlan::new);
+            tablePlan.dropIndex(index.getIndexName());
+            tablePlan.addUniqueIndex(index.getIndexName(), index.getColumnList());
+        }
+
+        for (IndexDefinition index : IndexDefinition.group(snapshot.getOtherIndexes(), IndexDefinition.KEY)) {
+            TableConversionPlan tablePlan = tablePlans.computeIfAbsent(index.getTableName(), TableConversionPlan::new);
+            tablePlan.dropIndex(index.getIndexName());
+            tablePlan.addIndex(index.getIndexName(), index.getColumnList());
+        }
+
+        return tablePlans;
+    }
+
+    //column which does not have the new collation yet
+    public static void planColumnChange(Map<String, TableConversionPlan> tablePlans, String tableName, String columnName, String columnType, String isNullable, String columnDefault,
+                                        String newCharset, String newCollation) {
+        String notNull = "";
+        String defaultValue = "";
+        if (isNullable.equals("NO")) {
+            notNull = " NOT NULL";
+        }
+        if (columnDefault != null) {
+            defaultValue = " DEFAULT '" + columnDefault + "'";
+        }
+        tablePlans.computeIfAbsent(tableName, TableConversionPlan::new).modifyColumn(columnName, columnType, newCharset, newCollation, notNull, defaultValue);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,247 @@
+/**
+ * Converts many databases on many servers in one run. The inventory lists one database per line as host:port/database,
+ * the port defaults to the configured one, and empty lines and lines starting with # are ignored.
+ *
+ * Every database is converted by its own DatabaseConverter with the settings of application.properties : its own index lists,
+ * connections, scripts, journal, manifest and reports, the files in a directory per server. Databases are started in inventory
+ * order as soon as the threads they need fit in fleetMaxThreads, and the databases of one server share fleetMaxRebuildsPerHost
+ * table rebuilds, so that a server hosting many databases is not overloaded. The progress of the whole fleet is logged periodically,
+ * and fleet-summary.csv with the result of every database is written at the end.
+ */
+
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class FleetConverter {
+
+    private static final Logger LOGGER = Logger.getLogger(FleetConverter.class.getName());
+
+    private static final String PENDING = "PENDING";
+    private static final String RUNNING = "RUNNING";
+    private static final String DONE = "DONE";
+    private static final String FAILED = "FAILED";
+
+    private static class Job {
+        private String host;
+        private String port;
+        private String databaseName;
+        private DatabaseConverter converter;
+        private volatile String status = PENDING;
+        private long millis = 0;
+        private String failure = null;
+
+        private String getServer() {
+            return host + ":" + port;
+        }
+
+        private String getName() {
+            return getServer() + "/" + databaseName;
+        }
+    }
+
+    private Properties properties;
+    private int maxThreads;
+    private int maxRebuildsPerHost;
+    private int progressIntervalSeconds;
+    private String outputDirectory;
+
+    private List<Job> jobs = new ArrayList<>();
+
+    //threads of the running conversions, and the rebuild slots of every server (host:port)
+    private Semaphore threadPermits;
+    private Map<String, Semaphore> hostRebuildPermits = new HashMap<>();
+    private long startNanos;
+
+    public FleetConverter(Properties properties) {
+        this.properties = properties;
+        maxThreads = Math.max(1, Integer.parseInt(properties.getProperty("fleetMaxThreads", "16")));
+        maxRebuildsPerHost = Math.max(1, Integer.parseInt(properties.getProperty("fleetMaxRebuildsPerHost", "2")));
+        progressIntervalSeconds = Integer.parseInt(properties.getProperty("progressIntervalSeconds", "0"));
+        outputDirectory = properties.getProperty("fleetOutputDirectory", "fleet");
+        threadPermits = new Semaphore(maxThreads);
+    }
+
+    //converts every database of the inventory, false when any of them failed
+    public boolean run(Path inventoryFile) {
+        try {
+            readInventory(inventoryFile);
+            for (Job job : jobs) {
+                job.converter = new DatabaseConverter(getJobProperties(job));
+                job.converter.setHostRebuildPermits(hostRebuildPermits.computeIfAbsent(job.getServer(), key -> new Semaphore(maxRebuildsPerHost)));
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            LOGGER.fatal("Exception " + e + " has occurred while reading fleet inventory " + inventoryFile);
+            return false;
+        }
+        LOGGER.info("\nConverting " + jobs.size() + " databases on " + hostRebuildPermits.size() + " servers with up to " + maxThreads + " threads and "
+                + maxRebuildsPerHost + " concurrent rebuilds per server\n");
+
+        startNanos = System.nanoTime();
+        ScheduledExecutorService progressExecutor = null;
+        if (progressIntervalSeconds > 0) {
+            progressExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "fleet-progress");
+                thread.setDaemon(true);
+                return thread;
+            });
+            progressExecutor.scheduleAtFixedRate(() -> LOGGER.info(getProgress()), progressIntervalSeconds, progressIntervalSeconds, TimeUnit.SECONDS);
+        }
+
+        //a conversion starts only when all its threads are available, so the job threads never exceed the cap either
+        ExecutorService executorService = Executors.newCachedThreadPool();
+        try {
+            for (Job job : jobs) {
+                int noOfThreads = Math.min(job.converter.getNoOfThreads(), maxThreads);
+                threadPermits.acquire(noOfThreads);
+                job.status = RUNNING;
+                executorService.submit(() -> runJob(job, noOfThreads));
+            }
+            executorService.shutdown();
+            executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.fatal("Fleet conversion interrupted");
+            executorService.shutdownNow();
+        } finally {
+            if (progressExecutor != null) {
+                progressExecutor.shutdownNow();
+            }
+        }
+
+        LOGGER.info("\n" + getProgress());
+        writeSummary();
+        for (Job job : jobs) {
+            if (!job.status.equals(DONE)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void readInventory(Path inventoryFile) throws IOException {
+        Set<String> names = new HashSet<>();
+        for (String line : Files.readAllLines(inventoryFile, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            int slash = line.indexOf('/');
+            if (slash <= 0 || slash == line.length() - 1) {
+                throw new IllegalArgumentException("Expected host:port/database instead of " + line);
+            }
+            Job job = new Job();
+            String server = line.substring(0, slash);
+            int colon = server.lastIndexOf(':');
+            job.host = colon < 0 ? server : server.substring(0, colon);
+            job.port = colon < 0 ? properties.getProperty("port") : server.substring(colon + 1);
+            job.databaseName = line.substring(slash + 1);
+            //the same database twice would share its journal and scripts
+            if (!names.add(job.getName())) {
+                LOGGER.warn("Ignoring duplicate database " + job.getName() + " of fleet inventory");
+                continue;
+            }
+            jobs.add(job);
+        }
+    }
+
+    //settings of application.properties for this database, the files of every server in their own directory
+    private Properties getJobProperties(Job job) throws IOException {
+        Path jobDirectory = Paths.get(outputDirectory, job.host + "_" + job.port);
+        Files.createDirectories(jobDirectory);
+
+        Properties jobProperties = new Properties();
+        jobProperties.putAll(properties);
+        jobProperties.setProperty("host", job.host);
+        jobProperties.setProperty("port", job.port);
+        jobProperties.setProperty("databaseName", job.databaseName);
+        jobProperties.setProperty("outputDirectory", jobDirectory.toString());
+        //the fleet logs one progress line for all databases
+        jobProperties.setProperty("progressIntervalSeconds", "0");
+        return jobProperties;
+    }
+
+    private void runJob(Job job, int noOfThreads) {
+        //every log line of this database and of its workers starts with its name
+        MDC.put("job", job.getName() + " : ");
+        long jobStart = System.nanoTime();
+        try {
+            if (job.converter.run()) {
+                job.status = DONE;
+            } else {
+                job.failure = job.converter.getFailure() != null ? job.converter.getFailure().replaceAll("\\s+", " ") : "conversion did not complete";
+                job.status = FAILED;
+            }
+        } catch (RuntimeException e) {
+            LOGGER.fatal("Exception " + e + " has occurred while converting database " + job.getName());
+            e.printStackTrace();
+            job.failure = e.toString().replaceAll("\\s+", " ");
+            job.status = FAILED;
+        } finally {
+            job.millis = (System.nanoTime() - jobStart) / 1000000;
+            threadPermits.release(noOfThreads);
+            LOGGER.info("Database " + job.getName() + " " + job.status + " after " + DatabaseConverter.formatDuration(job.millis / 1000.0));
+            MDC.remove("job");
+        }
+    }
+
+    //Fleet : 3/10 databases finished (1 failed), 2 running, 37/120 tables rebuilt, elapsed 00:10:02
+    private String getProgress() {
+        int noOfFinished = 0;
+        int noOfFailed = 0;
+        int noOfRunning = 0;
+        int noOfTables = 0;
+        int noOfCompletedTables = 0;
+        for (Job job : jobs) {
+            String status = job.status;
+            if (status.equals(DONE) || status.equals(FAILED)) {
+                noOfFinished++;
+            }
+            if (status.equals(FAILED)) {
+                noOfFailed++;
+            }
+            if (status.equals(RUNNING)) {
+                noOfRunning++;
+            }
+            RunMetrics runMetrics = job.converter.getRunMetrics();
+            if (runMetrics != null) {
+                noOfTables += runMetrics.getNoOfTables();
+                noOfCompletedTables += runMetrics.getNoOfCompletedTables();
+            }
+        }
+        return "Fleet : " + noOfFinished + "/" + jobs.size() + " databases finished (" + noOfFailed + " failed), " + noOfRunning + " running, "
+                + noOfCompletedTables + "/" + noOfTables + " tables rebuilt, elapsed " + DatabaseConverter.formatDuration((System.nanoTime() - startNanos) / 1e9);
+    }
+
+    private void writeSummary() {
+        StringBuilder csv = new StringBuilder("host,port,database,status,millis,tables,rebuilt_tables,failure\n");
+        LOGGER.info("\n============= FLEET SUMMARY ===================\n");
+        for (Job job : jobs) {
+            RunMetrics runMetrics = job.converter.getRunMetrics();
+            int noOfTables = runMetrics != null ? runMetrics.getNoOfTables() : 0;
+            int noOfCompletedTables = runMetrics != null ? runMetrics.getNoOfCompletedTables() : 0;
+            csv.append(job.host).append(',').append(job.port).append(',').append(job.databaseName).append(',').append(job.status).append(',').append(job.millis)
+                    .append(',').append(noOfTables).append(',').append(noOfCompletedTables).append(',').append(job.failure == null ? "" : quote(job.failure)).append('\n');
+            LOGGER.info(job.getName() + " : " + job.status + ", " + noOfCompletedTables + "/" + noOfTables + " tables rebuilt in " + DatabaseConverter.formatDuration(job.millis / 1000.0)
+                    + (job.failure == null ? "" : ", " + job.failure));
+        }
+        Path summaryFile = Paths.get(outputDirectory, "fleet-summary.csv");
+        try {
+            Files.write(summaryFile, csv.toString().getBytes(StandardCharsets.UTF_8));
+            LOGGER.info("\nStored fleet summary in " + summaryFile + " file.");
+        } catch (IOException e) {
+            LOGGER.error("Could not write fleet summary : " + e);
+        }
+    }
+
+    private static String quote(String value) {
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+}
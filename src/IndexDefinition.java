@@ -0,0 +1,103 @@
+/**
+ * A complete index of a table : its name, type and columns in the order of the index, with the prefix length of every column.
+ * KeyDetail holds one row per indexed column, IndexDefinition groups these rows back into the index they belong to.
+ */
+
+import java.util.*;
+
+public class IndexDefinition {
+
+    public static final String UNIQUE = "UNIQUE";
+    public static final String KEY = "KEY";
+
+    private String tableName;
+    private String indexName;
+    private String indexType;
+    private List<IndexColumn> columns = new ArrayList<>();
+
+    private static class IndexColumn {
+        private int ordinalPosition;
+        private String columnName;
+        private int prefixLength;
+
+        private IndexColumn(int ordinalPosition, String columnName, int prefixLength) {
+            this.ordinalPosition = ordinalPosition;
+            this.columnName = columnName;
+            this.prefixLength = prefixLength;
+        }
+    }
+
+    public IndexDefinition(String tableName, String indexName, String indexType) {
+        this.tableName = tableName;
+        this.indexName = indexName;
+        this.indexType = indexType;
+    }
+
+    //groups the rows of every index in a single pass, indexes keep the order of their first row and the prefix length of every row
+    public static List<IndexDefinition> group(List<KeyDetail> indexes, String indexType) {
+        Map<String, IndexDefinition> indexDefinitions = new LinkedHashMap<>();
+        for (KeyDetail index : indexes) {
+            IndexDefinition indexDefinition = indexDefinitions.computeIfAbsent(index.getTableName() + "." + index.getConstraintName(),
+                    key -> new IndexDefinition(index.getTableName(), index.getConstraintName(), indexType));
+            indexDefinition.addColumn(index.getOrdinalPosition(), index.getColumnName(), index.getPrefixLength());
+        }
+        for (IndexDefinition indexDefinition : indexDefinitions.values()) {
+            indexDefinition.columns.sort(Comparator.comparingInt(column -> column.ordinalPosition));
+        }
+        return new ArrayList<>(indexDefinitions.values());
+    }
+
+    //prefixLength 0 indexes the whole column
+    public void addColumn(int ordinalPosition, String columnName, int prefixLength) {
+        columns.add(new IndexColumn(ordinalPosition, columnName, prefixLength));
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    public String getIndexName() {
+        return indexName;
+    }
+
+    public String getIndexType() {
+        return indexType;
+    }
+
+    public List<String> getColumnNames() {
+        List<String> columnNames = new ArrayList<>();
+        for (IndexColumn column : columns) {
+            columnNames.add(column.columnName);
+        }
+        return columnNames;
+    }
+
+    public int getPrefixLength(int columnNo) {
+        return columns.get(columnNo).prefixLength;
+    }
+
+    //column_1(191), column_2
+    public String getColumnList() {
+        StringBuilder columnList = new StringBuilder();
+        for (IndexColumn column : columns) {
+            if (columnList.length() > 0) {
+                columnList.append(", ");
+            }
+            columnList.append(column.columnName);
+            if (column.prefixLength > 0) {
+                columnList.append("(").append(column.prefixLength).append(")");
+            }
+        }
+        return columnList.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "IndexDefinition{" +
+                "tableName='" + tableName + '\'' +
+                ", indexName='" + indexName + '\'' +
+                ", indexType='" + indexType + '\'' +
+                ", columns='" + getColumnList() + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,377 @@
+/**
+ * Decides the prefix length of every recreated index from the index key limit of the server and the data, instead of cutting
+ * every long character column to 191 characters. An index which fits the key limit with the new charset is recreated whole,
+ * so that it still covers queries and sorts. Otherwise the character columns share the bytes left by the other columns of the
+ * index, each column taking at most what it needs. Prefixes chosen by the user before the conversion are kept when they fit.
+ *
+ * The data of the tables with cut columns is read once per table : the longest value of every cut column, and for every unique key
+ * with a cut column the number of distinct keys under the new collation and prefix, so that a prefix which would make the current
+ * rows collide fails the run before any DDL. The data is not read for a plan, nor of the tables an incremental run does not convert.
+ *
+ * The key limit is 3072 bytes per column with large prefixes (MySQL 5.7.7 and later with the DYNAMIC or COMPRESSED row format),
+ * 767 bytes per column otherwise, and 3072 bytes per index with 16KB pages, less with smaller pages.
+ */
+
+import org.apache.log4j.Logger;
+
+import java.sql.*;
+import java.util.*;
+
+public class IndexPrefixPlanner {
+
+    private static final Logger LOGGER = Logger.getLogger(IndexPrefixPlanner.class.getName());
+
+    private static final int SMALL_PREFIX_BYTES = 767;
+    private static final int LARGE_PREFIX_BYTES = 3072;
+
+    //bytes of a column of an unknown type
+    private static final int OTHER_COLUMN_BYTES = 8;
+
+    //bytes of 0 to 9 leftover digits of a DECIMAL
+    private static final int[] DECIMAL_DIGIT_BYTES = {0, 1, 1, 2, 2, 3, 3, 4, 4, 4};
+
+    private static class PlannedIndex {
+        private String indexType;
+        private List<KeyDetail> columns = new ArrayList<>();
+        private List<KeyDetail> cutColumns = new ArrayList<>();
+        private long keyBytes;
+    }
+
+    private DatabaseConverter converter;
+    private Connection myDBConnection;
+    private String newCharset;
+    private String newCollation;
+    private boolean readData;
+    private Set<String> convertedTables;
+
+    private boolean largePrefix = true;
+    private int maxKeyBytes = LARGE_PREFIX_BYTES;
+    private int bytesPerCharacter = 4;
+
+    //tableName -> ROW_FORMAT
+    private Map<String, String> rowFormats = new HashMap<>();
+
+    //table.column -> bytes in an index key of every column which is not a character column
+    private Map<String, Long> columnBytes = new HashMap<>();
+
+    //tableName -> decision of every index of the table, in index order
+    private Map<String, List<String>> decisions = new TreeMap<>();
+
+    //readData is false for a plan, which does not read the data of the tables, convertedTables are the only tables read, all when null
+    public IndexPrefixPlanner(DatabaseConverter converter, Connection myDBConnection, String newCharset, String newCollation, boolean readData, Set<String> convertedTables) {
+        this.converter = converter;
+        this.myDBConnection = myDBConnection;
+        this.newCharset = newCharset;
+        this.newCollation = newCollation;
+        this.readData = readData;
+        this.convertedTables = convertedTables;
+    }
+
+    //same snapshot with the prefix length of every entry of the unique, foreign and other indexes decided
+    public SchemaSnapshot plan(Connection informationSchemaConnection, SchemaSnapshot affectedIndexes) throws SQLException {
+        readKeyLimits(informationSchemaConnection);
+        readColumnBytes(informationSchemaConnection);
+
+        List<PlannedIndex> plannedIndexes = new ArrayList<>();
+        for (List<KeyDetail> index : groupIndexes(affectedIndexes.getUniqueKeyIndexes())) {
+            plannedIndexes.add(planIndex(index, "unique key"));
+        }
+        for (List<KeyDetail> index : groupIndexes(affectedIndexes.getOtherIndexes())) {
+            plannedIndexes.add(planIndex(index, "index"));
+        }
+
+        //tableName -> indexes with a cut column, every table is read once for all of them
+        Map<String, List<PlannedIndex>> cutIndexes = new TreeMap<>();
+        for (PlannedIndex index : plannedIndexes) {
+            if (!index.cutColumns.isEmpty()) {
+                cutIndexes.computeIfAbsent(index.columns.get(0).getTableName(), key -> new ArrayList<>()).add(index);
+            }
+        }
+        List<String> collidingKeys = new ArrayList<>();
+        Map<PlannedIndex, String> notes = new HashMap<>();
+        for (Map.Entry<String, List<PlannedIndex>> table : cutIndexes.entrySet()) {
+            if (!readData) {
+                for (PlannedIndex index : table.getValue()) {
+                    notes.put(index, "values not read for the plan");
+                }
+            } else if (convertedTables != null && !convertedTables.contains(table.getKey())) {
+                for (PlannedIndex index : table.getValue()) {
+                    notes.put(index, "values not read, the table is not converted");
+                }
+            } else {
+                readData(table.getKey(), table.getValue(), notes, collidingKeys);
+            }
+        }
+
+        List<KeyDetail> uniqueKeyIndexes = new ArrayList<>();
+        List<KeyDetail> foreignKeyIndexes = new ArrayList<>();
+        List<KeyDetail> otherIndexes = new ArrayList<>();
+        for (PlannedIndex index : plannedIndexes) {
+            (index.indexType.equals("unique key") ? uniqueKeyIndexes : otherIndexes).addAll(index.columns);
+            List<String> indexedColumns = new ArrayList<>();
+            for (KeyDetail column : index.columns) {
+                indexedColumns.add(column.getIndexedColumn());
+            }
+            addDecision(index.columns.get(0), index.indexType + " (" + String.join(", ", indexedColumns) + ") " + (index.cutColumns.isEmpty() ? "kept whole" : "with a prefix")
+                    + ", " + index.keyBytes + " of " + maxKeyBytes + " key bytes" + (notes.containsKey(index) ? ", " + notes.get(index) : ""));
+        }
+        //the server creates the index of a foreign key itself, on the whole columns
+        for (List<KeyDetail> index : groupIndexes(affectedIndexes.getForeignKeyIndexes())) {
+            List<String> columns = new ArrayList<>();
+            for (KeyDetail column : index) {
+                foreignKeyIndexes.add(column.withPrefixLength(0));
+                columns.add(column.getColumnName());
+            }
+            addDecision(index.get(0), "foreign key (" + String.join(", ", columns) + ") indexed whole by the server");
+        }
+
+        for (Map.Entry<String, List<String>> table : decisions.entrySet()) {
+            for (String decision : table.getValue()) {
+                LOGGER.info("Index " + table.getKey() + "." + decision);
+            }
+        }
+        if (!collidingKeys.isEmpty()) {
+            throw new SQLException("Rows of unique keys " + collidingKeys + " collide within the largest prefix which fits the index key limit, shorten the values before converting the database");
+        }
+        return affectedIndexes.withIndexes(uniqueKeyIndexes, foreignKeyIndexes, otherIndexes);
+    }
+
+    public Map<String, List<String>> getDecisions() {
+        return decisions;
+    }
+
+    private void readKeyLimits(Connection informationSchemaConnection) throws SQLException {
+        Map<String, String> variables = new HashMap<>();
+        String query = "SHOW VARIABLES WHERE Variable_name IN ('innodb_large_prefix', 'innodb_file_format', 'innodb_page_size');";
+        converter.appendToAllQueries(query);
+        try (Statement statement = myDBConnection.createStatement(); ResultSet resultSet = statement.executeQuery(query)) {
+            while (resultSet.next()) {
+                variables.put(resultSet.getString(1), resultSet.getString(2));
+            }
+        }
+        //both variables are removed in MySQL 8.0 and MariaDB 10.3, where large prefixes are always enabled
+        String largePrefixValue = variables.getOrDefault("innodb_large_prefix", "ON");
+        largePrefix = ("ON".equalsIgnoreCase(largePrefixValue) || "1".equals(largePrefixValue)) && "Barracuda".equalsIgnoreCase(variables.getOrDefault("innodb_file_format", "Barracuda"));
+        //a key takes at most 3/16 of a page, 3072 bytes with the default 16KB pages
+        long pageSize = Long.parseLong(variables.getOrDefault("innodb_page_size", "16384"));
+        maxKeyBytes = (int) Math.min(LARGE_PREFIX_BYTES, pageSize * 3 / 16);
+
+        PreparedStatement preparedStatement = StatementCache.prepareStatement(informationSchemaConnection, "SELECT MAXLEN FROM CHARACTER_SETS WHERE CHARACTER_SET_NAME = ?;");
+        preparedStatement.setString(1, newCharset);
+        converter.appendToAllQueries(StatementCache.asSql(preparedStatement).replace("FROM CHARACTER_SETS", "FROM INFORMATION_SCHEMA.CHARACTER_SETS"));
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+            if (resultSet.next()) {
+                bytesPerCharacter = resultSet.getInt("MAXLEN");
+            }
+        }
+
+        preparedStatement = StatementCache.prepareStatement(informationSchemaConnection, "SELECT TABLE_NAME, ROW_FORMAT FROM TABLES WHERE TABLE_SCHEMA = ? AND TABLE_TYPE = 'BASE TABLE';");
+        preparedStatement.setString(1, converter.getDatabaseName());
+        converter.appendToAllQueries(StatementCache.asSql(preparedStatement).replace("FROM TABLES", "FROM INFORMATION_SCHEMA.TABLES"));
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+            while (resultSet.next()) {
+                rowFormats.put(resultSet.getString("TABLE_NAME"), resultSet.getString("ROW_FORMAT"));
+            }
+        }
+        LOGGER.info("\nIndex key limit : " + maxKeyBytes + " bytes per index, large prefixes " + (largePrefix ? "enabled" : "disabled") + ", " + bytesPerCharacter + " bytes per " + newCharset + " character\n");
+    }
+
+    //key bytes of the columns which are not character columns : binary strings by their length, numbers and dates by their storage size
+    private void readColumnBytes(Connection informationSchemaConnection) throws SQLException {
+        PreparedStatement preparedStatement = StatementCache.prepareStatement(informationSchemaConnection, "SELECT TABLE_NAME, COLUMN_NAME, DATA_TYPE, CHARACTER_OCTET_LENGTH, NUMERIC_PRECISION, NUMERIC_SCALE, DATETIME_PRECISION FROM COLUMNS WHERE TABLE_SCHEMA = ? AND COLLATION_NAME IS NULL;");
+        preparedStatement.setString(1, converter.getDatabaseName());
+        converter.appendToAllQueries(StatementCache.asSql(preparedStatement).replace("FROM COLUMNS", "FROM INFORMATION_SCHEMA.COLUMNS"));
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+            while (resultSet.next()) {
+                columnBytes.put(resultSet.getString("TABLE_NAME") + "." + resultSet.getString("COLUMN_NAME"), getColumnBytes(resultSet.getString("DATA_TYPE"),
+                        resultSet.getLong("CHARACTER_OCTET_LENGTH"), resultSet.getInt("NUMERIC_PRECISION"), resultSet.getInt("NUMERIC_SCALE"), resultSet.getInt("DATETIME_PRECISION")));
+            }
+        }
+    }
+
+    private static long getColumnBytes(String dataType, long octetLength, int precision, int scale, int fractionalPrecision) {
+        switch (dataType.toLowerCase()) {
+            case "tinyint":
+            case "year":
+                return 1;
+            case "smallint":
+            case "enum":
+                return 2;
+            case "mediumint":
+            case "date":
+                return 3;
+            case "int":
+            case "float":
+                return 4;
+            case "bigint":
+            case "double":
+            case "set":
+                return 8;
+            case "bit":
+                return (precision + 7) / 8;
+            case "decimal":
+                int integerDigits = precision - scale;
+                return integerDigits / 9 * 4 + DECIMAL_DIGIT_BYTES[integerDigits % 9] + scale / 9 * 4 + DECIMAL_DIGIT_BYTES[scale % 9];
+            case "time":
+                return 3 + (fractionalPrecision + 1) / 2;
+            case "datetime":
+                return 5 + (fractionalPrecision + 1) / 2;
+            case "timestamp":
+                return 4 + (fractionalPrecision + 1) / 2;
+            case "binary":
+            case "varbinary":
+            case "tinyblob":
+            case "blob":
+            case "mediumblob":
+            case "longblob":
+                return octetLength;
+            default:
+                return OTHER_COLUMN_BYTES;
+        }
+    }
+
+    //767 bytes per column for the COMPACT and REDUNDANT row formats or without large prefixes
+    private int getMaxColumnBytes(String tableName) {
+        String rowFormat = rowFormats.getOrDefault(tableName, "Dynamic");
+        boolean largePrefixRowFormat = "Dynamic".equalsIgnoreCase(rowFormat) || "Compressed".equalsIgnoreCase(rowFormat);
+        return Math.min(maxKeyBytes, largePrefix && largePrefixRowFormat ? LARGE_PREFIX_BYTES : SMALL_PREFIX_BYTES);
+    }
+
+    private static Collection<List<KeyDetail>> groupIndexes(List<KeyDetail> indexes) {
+        Map<String, List<KeyDetail>> groupedIndexes = new LinkedHashMap<>();
+        for (KeyDetail index : indexes) {
+            groupedIndexes.computeIfAbsent(index.getTableName() + "." + index.getConstraintName(), key -> new ArrayList<>()).add(index);
+        }
+        for (List<KeyDetail> index : groupedIndexes.values()) {
+            index.sort(Comparator.comparingInt(KeyDetail::getOrdinalPosition));
+        }
+        return groupedIndexes.values();
+    }
+
+    /*
+    The whole index when every column fits, otherwise the bytes left by the other columns are shared by the character columns :
+    the shortest columns first, every column taking at most its length and at most an equal share of the bytes still left.
+    Binary columns keep their prefix, which counts in bytes.
+    */
+    private PlannedIndex planIndex(List<KeyDetail> index, String indexType) throws SQLException {
+        String tableName = index.get(0).getTableName();
+        int maxColumnCharacters = getMaxColumnBytes(tableName) / bytesPerCharacter;
+
+        //characters wanted by every character column, the prefix chosen by the user when there was one
+        Map<KeyDetail, Long> wantedCharacters = new LinkedHashMap<>();
+        long otherBytes = 0;
+        for (KeyDetail column : index) {
+            if (column.isHasCollation()) {
+                long length = column.getPrefixLength() > 0 ? Math.min(column.getPrefixLength(), column.getCharacterMaxLength()) : column.getCharacterMaxLength();
+                wantedCharacters.put(column, Math.max(1, length));
+            } else {
+                long bytes = columnBytes.getOrDefault(tableName + "." + column.getColumnName(), (long) OTHER_COLUMN_BYTES);
+                otherBytes += column.getPrefixLength() > 0 ? Math.min(column.getPrefixLength(), bytes) : bytes;
+            }
+        }
+        if (otherBytes + (long) wantedCharacters.size() * bytesPerCharacter > maxKeyBytes) {
+            throw new SQLException("Index " + tableName + "." + index.get(0).getConstraintName() + " needs " + otherBytes + " bytes for its columns which are not character columns,"
+                    + " its character columns do not fit in the index key limit of " + maxKeyBytes + " bytes");
+        }
+
+        List<KeyDetail> columns = new ArrayList<>(wantedCharacters.keySet());
+        columns.sort(Comparator.comparingLong(wantedCharacters::get));
+        Map<KeyDetail, Long> prefixCharacters = new HashMap<>();
+        long bytesLeft = maxKeyBytes - otherBytes;
+        for (int columnNo = 0; columnNo < columns.size(); columnNo++) {
+            KeyDetail column = columns.get(columnNo);
+            long share = bytesLeft / (columns.size() - columnNo) / bytesPerCharacter;
+            long characters = Math.max(1, Math.min(wantedCharacters.get(column), Math.min(share, maxColumnCharacters)));
+            prefixCharacters.put(column, characters);
+            bytesLeft -= characters * bytesPerCharacter;
+        }
+
+        PlannedIndex plannedIndex = new PlannedIndex();
+        plannedIndex.indexType = indexType;
+        plannedIndex.keyBytes = otherBytes;
+        for (KeyDetail column : index) {
+            KeyDetail plannedColumn = column;
+            if (column.isHasCollation()) {
+                long characters = prefixCharacters.get(column);
+                plannedColumn = column.withPrefixLength(characters < column.getCharacterMaxLength() ? (int) characters : 0);
+                plannedIndex.keyBytes += characters * bytesPerCharacter;
+                if (plannedColumn.getPrefixLength() > 0) {
+                    plannedIndex.cutColumns.add(plannedColumn);
+                }
+            }
+            plannedIndex.columns.add(plannedColumn);
+        }
+        return plannedIndex;
+    }
+
+    /*
+    SELECT MAX(CHAR_LENGTH(column_1)) AS longest_0, ...,
+    COUNT(DISTINCT LEFT(CONVERT(column_1 USING utf8mb4), 768) COLLATE utf8mb4_unicode_ci, column_2) AS distinct_0, SUM(column_1 IS NOT NULL AND column_2 IS NOT NULL) AS rows_0, ...
+    FROM table_name;
+    one pass over the table for all its cut indexes, rows with a NULL in the key never collide in a unique key
+    */
+    private void readData(String tableName, List<PlannedIndex> indexes, Map<PlannedIndex, String> notes, List<String> collidingKeys) throws SQLException {
+        List<String> cutColumns = new ArrayList<>();
+        List<PlannedIndex> uniqueKeys = new ArrayList<>();
+        List<String> expressions = new ArrayList<>();
+        for (PlannedIndex index : indexes) {
+            for (KeyDetail column : index.cutColumns) {
+                if (!cutColumns.contains(column.getColumnName())) {
+                    expressions.add("MAX(CHAR_LENGTH(" + column.getColumnName() + ")) AS longest_" + cutColumns.size());
+                    cutColumns.add(column.getColumnName());
+                }
+            }
+            if (index.indexType.equals("unique key")) {
+                List<String> keyExpressions = new ArrayList<>();
+                List<String> notNullConditions = new ArrayList<>();
+                for (KeyDetail column : index.columns) {
+                    String value = column.isHasCollation() ? "CONVERT(" + column.getColumnName() + " USING " + newCharset + ")" : column.getColumnName();
+                    if (column.getPrefixLength() > 0) {
+                        value = "LEFT(" + value + ", " + column.getPrefixLength() + ")";
+                    }
+                    keyExpressions.add(column.isHasCollation() ? value + " COLLATE " + newCollation : value);
+                    notNullConditions.add(column.getColumnName() + " IS NOT NULL");
+                }
+                expressions.add("COUNT(DISTINCT " + String.join(", ", keyExpressions) + ") AS distinct_" + uniqueKeys.size());
+                expressions.add("SUM(" + String.join(" AND ", notNullConditions) + ") AS rows_" + uniqueKeys.size());
+                uniqueKeys.add(index);
+            }
+        }
+
+        String query = "SELECT " + String.join(", ", expressions) + " FROM " + tableName + ";";
+        converter.appendToAllQueries(query);
+        Map<String, Long> longestValues = new HashMap<>();
+        try (Statement statement = myDBConnection.createStatement(); ResultSet resultSet = statement.executeQuery(query)) {
+            resultSet.next();
+            for (int columnNo = 0; columnNo < cutColumns.size(); columnNo++) {
+                longestValues.put(cutColumns.get(columnNo), resultSet.getLong("longest_" + columnNo));
+            }
+            for (int keyNo = 0; keyNo < uniqueKeys.size(); keyNo++) {
+                long noOfDistinctKeys = resultSet.getLong("distinct_" + keyNo);
+                long noOfRows = resultSet.getLong("rows_" + keyNo);
+                PlannedIndex uniqueKey = uniqueKeys.get(keyNo);
+                if (noOfDistinctKeys < noOfRows) {
+                    String keyName = tableName + "." + uniqueKey.columns.get(0).getConstraintName();
+                    collidingKeys.add(keyName);
+                    LOGGER.error("Unique key " + keyName + " has " + noOfDistinctKeys + " distinct keys for " + noOfRows + " rows within its prefix");
+                    notes.put(uniqueKey, (noOfRows - noOfDistinctKeys) + " rows collide within the prefix");
+                } else {
+                    notes.put(uniqueKey, "all " + noOfRows + " keys stay unique");
+                }
+            }
+        }
+
+        for (PlannedIndex index : indexes) {
+            List<String> columnNotes = new ArrayList<>();
+            for (KeyDetail column : index.cutColumns) {
+                long longestValue = longestValues.get(column.getColumnName());
+                columnNotes.add(column.getColumnName() + " has values up to " + longestValue + " characters" + (longestValue <= column.getPrefixLength() ? ", all kept whole" : ""));
+            }
+            notes.merge(index, String.join(", ", columnNotes), (uniqueNote, columnNote) -> columnNote + ", " + uniqueNote);
+        }
+    }
+
+    private void addDecision(KeyDetail index, String decision) {
+        decisions.computeIfAbsent(index.getTableName(), key -> new ArrayList<>()).add(index.getConstraintName() + " : " + decision);
+    }
+}
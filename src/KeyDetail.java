@@ -1,11 +1,26 @@
 /**
- * Created by KK48481 on 22-09-2017.
+ * One column of an index. Instances are immutable, so they can be shared by concurrent workers.
+ * Names repeat in many entries, so SchemaSnapshot.Builder passes the same instance of every name.
  */
-public class KeyDetail {
-    private String tableName, columnName, constraintName, referencedTableName, referencedColumnName, ordinalPosition, characterMaxLength;
-    boolean hasCollation;
 
-    public KeyDetail(String tableName, String columnName, String constraintName, String referencedTableName, String referencedColumnName, String ordinalPosition, String characterMaxLength, boolean hasCollation) {
+import java.util.Objects;
+
+public final class KeyDetail {
+
+    private final String tableName, columnName, constraintName, referencedTableName, referencedColumnName;
+    private final int ordinalPosition;
+    //0 when the column is not a character column
+    private final long characterMaxLength;
+    //number of characters indexed, 0 when the whole column is indexed
+    private final int prefixLength;
+    private final boolean hasCollation;
+    private final int hash;
+
+    public KeyDetail(String tableName, String columnName, String constraintName, String referencedTableName, String referencedColumnName, int ordinalPosition, long characterMaxLength, boolean hasCollation) {
+        this(tableName, columnName, constraintName, referencedTableName, referencedColumnName, ordinalPosition, characterMaxLength, 0, hasCollation);
+    }
+
+    public KeyDetail(String tableName, String columnName, String constraintName, String referencedTableName, String referencedColumnName, int ordinalPosition, long characterMaxLength, int prefixLength, boolean hasCollation) {
         this.tableName = tableName;
         this.columnName = columnName;
         this.constraintName = constraintName;
@@ -13,71 +28,65 @@ public class KeyDetail {
         this.referencedColumnName = referencedColumnName;
         this.ordinalPosition = ordinalPosition;
         this.characterMaxLength = characterMaxLength;
+        this.prefixLength = prefixLength;
         this.hasCollation = hasCollation;
+
+        int result = Objects.hashCode(this.tableName);
+        result = 31 * result + Objects.hashCode(this.columnName);
+        result = 31 * result + Objects.hashCode(this.constraintName);
+        result = 31 * result + Objects.hashCode(this.referencedTableName);
+        result = 31 * result + Objects.hashCode(this.referencedColumnName);
+        result = 31 * result + ordinalPosition;
+        result = 31 * result + Long.hashCode(characterMaxLength);
+        result = 31 * result + prefixLength;
+        result = 31 * result + (hasCollation ? 1 : 0);
+        this.hash = result;
     }
 
     public String getTableName() {
         return tableName;
     }
 
-    public void setTableName(String tableName) {
-        this.tableName = tableName;
-    }
-
     public String getColumnName() {
         return columnName;
     }
 
-    public void setColumnName(String columnName) {
-        this.columnName = columnName;
-    }
-
     public String getConstraintName() {
         return constraintName;
     }
 
-    public void setConstraintName(String constraintName) {
-        this.constraintName = constraintName;
-    }
-
     public String getReferencedTableName() {
         return referencedTableName;
     }
 
-    public void setReferencedTableName(String referencedTableName) {
-        this.referencedTableName = referencedTableName;
-    }
-
     public String getReferencedColumnName() {
         return referencedColumnName;
     }
 
-    public void setReferencedColumnName(String referencedColumnName) {
-        this.referencedColumnName = referencedColumnName;
-    }
-
-    public String getOrdinalPosition() {
+    public int getOrdinalPosition() {
         return ordinalPosition;
     }
 
-    public void setOrdinalPosition(String ordinalPosition) {
-        this.ordinalPosition = ordinalPosition;
-    }
-
-    public String getCharacterMaxLength() {
+    public long getCharacterMaxLength() {
         return characterMaxLength;
     }
 
-    public void setCharacterMaxLength(String characterMaxLength) {
-        this.characterMaxLength = characterMaxLength;
+    public int getPrefixLength() {
+        return prefixLength;
     }
 
     public boolean isHasCollation() {
         return hasCollation;
     }
 
-    public void setHasCollation(boolean hasCollation) {
-        this.hasCollation = hasCollation;
+    //same entry indexing only the first prefixLength characters of the column
+    public KeyDetail withPrefixLength(int prefixLength) {
+        return new KeyDetail(tableName, columnName, constraintName, referencedTableName, referencedColumnName, ordinalPosition, characterMaxLength, prefixLength, hasCollation);
+    }
+
+    //column_name or column_name(191) as used in an index definition
+    public String getIndexedColumn() {
+        return prefixLength > 0 ? columnName + "(" + prefixLength + ")" : columnName;
     }
 
     @Override
@@ -87,34 +96,21 @@ public class KeyDetail {
 
         KeyDetail keyDetail = (KeyDetail) o;
 
-        if (isHasCollation() != keyDetail.isHasCollation()) return false;
-        if (getTableName() != null ? !getTableName().equals(keyDetail.getTableName()) : keyDetail.getTableName() != null)
-            return false;
-        if (getColumnName() != null ? !getColumnName().equals(keyDetail.getColumnName()) : keyDetail.getColumnName() != null)
-            return false;
-        if (getConstraintName() != null ? !getConstraintName().equals(keyDetail.getConstraintName()) : keyDetail.getConstraintName() != null)
-            return false;
-        if (getReferencedTableName() != null ? !getReferencedTableName().equals(keyDetail.getReferencedTableName()) : keyDetail.getReferencedTableName() != null)
-            return false;
-        if (getReferencedColumnName() != null ? !getReferencedColumnName().equals(keyDetail.getReferencedColumnName()) : keyDetail.getReferencedColumnName() != null)
-            return false;
-        if (getOrdinalPosition() != null ? !getOrdinalPosition().equals(keyDetail.getOrdinalPosition()) : keyDetail.getOrdinalPosition() != null)
-            return false;
-        return !(getCharacterMaxLength() != null ? !getCharacterMaxLength().equals(keyDetail.getCharacterMaxLength()) : keyDetail.getCharacterMaxLength() != null);
-
+        return hash == keyDetail.hash
+                && ordinalPosition == keyDetail.ordinalPosition
+                && characterMaxLength == keyDetail.characterMaxLength
+                && prefixLength == keyDetail.prefixLength
+                && hasCollation == keyDetail.hasCollation
+                && Objects.equals(tableName, keyDetail.tableName)
+                && Objects.equals(columnName, keyDetail.columnName)
+                && Objects.equals(constraintName, keyDetail.constraintName)
+                && Objects.equals(referencedTableName, keyDetail.referencedTableName)
+                && Objects.equals(referencedColumnName, keyDetail.referencedColumnName);
     }
 
     @Override
     public int hashCode() {
-        int result = getTableName() != null ? getTableName().hashCode() : 0;
-        result = 31 * result + (getColumnName() != null ? getColumnName().hashCode() : 0);
-        result = 31 * result + (getConstraintName() != null ? getConstraintName().hashCode() : 0);
-        result = 31 * result + (getReferencedTableName() != null ? getReferencedTableName().hashCode() : 0);
-        result = 31 * result + (getReferencedColumnName() != null ? getReferencedColumnName().hashCode() : 0);
-        result = 31 * result + (getOrdinalPosition() != null ? getOrdinalPosition().hashCode() : 0);
-        result = 31 * result + (getCharacterMaxLength() != null ? getCharacterMaxLength().hashCode() : 0);
-        result = 31 * result + (isHasCollation() ? 1 : 0);
-        return result;
+        return hash;
     }
 
     @Override
@@ -125,8 +121,9 @@ public class KeyDetail {
                 ", constraintName='" + constraintName + '\'' +
                 ", referencedTableName='" + referencedTableName + '\'' +
                 ", referencedColumnName='" + referencedColumnName + '\'' +
-                ", ordinalPosition='" + ordinalPosition + '\'' +
-                ", characterMaxLength='" + characterMaxLength + '\'' +
+                ", ordinalPosition=" + ordinalPosition +
+                ", characterMaxLength=" + characterMaxLength +
+                ", prefixLength=" + prefixLength +
                 ", hasCollation=" + hasCollation +
                 '}';
     }
@@ -0,0 +1,439 @@
+/**
+ * Lets several converter processes, on one or many machines, share the tables of one database without any coordinator.
+ * The first process creates the work queue table _charset_conversion_queue in the database and inserts one item per table of its
+ * conversion plan, the other processes find the items already there. A worker claims an item with a conditional UPDATE, which
+ * succeeds in one process only, and holds a lease on it which a heartbeat thread extends while the process is alive. When a process
+ * crashes its leases expire and other processes take its tables over. A table claimed again is checked first, so that a rebuild or
+ * foreign keys completed just before the crash are not executed twice. Foreign keys of a table are added only once the table and all the
+ * tables it references are rebuilt, whichever process rebuilt them, and every process runs until all items are done.
+ *
+ * Leases are compared with the clock of the server, so the clocks of the machines running the processes do not matter.
+ * Items belong to a run id which is the same for all processes of one conversion, a new conversion of the database needs a new run id.
+ */
+
+import org.apache.log4j.Logger;
+
+import java.lang.management.ManagementFactory;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class LeaseWorkQueue {
+
+    private static final Logger LOGGER = Logger.getLogger(LeaseWorkQueue.class.getName());
+
+    public static final String QUEUE_TABLE = "_charset_conversion_queue";
+
+    //PENDING -> REBUILDING -> REBUILT -> ADDING_FOREIGN_KEYS -> DONE, tables without foreign keys go from REBUILDING to DONE
+    private static final String PENDING = "PENDING";
+    private static final String REBUILDING = "REBUILDING";
+    private static final String REBUILT = "REBUILT";
+    private static final String ADDING_FOREIGN_KEYS = "ADDING_FOREIGN_KEYS";
+    private static final String DONE = "DONE";
+    private static final String FAILED = "FAILED";
+
+    private static class WorkItem {
+        private String tableName;
+        private List<String> referencedTables;
+        private List<String> foreignKeyNames;
+        private String foreignKeyStatement;
+        private String state;
+        private String owner;
+        private boolean leaseExpired;
+        private int attempts;
+        private String error;
+    }
+
+    private DatabaseConverter converter;
+    private ConnectionPool databasePool;
+    private ConnectionPool queuePool;
+    private String runId;
+    private String owner;
+    private int noOfWorkers;
+    private Semaphore rebuildPermits;
+    private int leaseSeconds;
+    private long pollMillis;
+
+    private Map<String, TableConversionPlan> tablePlans;
+    private volatile Exception failure = null;
+
+    /*
+    databasePool is used for the conversion, queuePool for the work queue and the heartbeat and needs noOfWorkers + 1 connections,
+    so that polling the queue never waits for a rebuild
+    */
+    public LeaseWorkQueue(DatabaseConverter converter, ConnectionPool databasePool, ConnectionPool queuePool, String runId, int noOfWorkers, int maxConcurrentRebuilds,
+                          int leaseSeconds, long pollMillis) {
+        this.converter = converter;
+        this.databasePool = databasePool;
+        this.queuePool = queuePool;
+        this.runId = runId;
+        this.noOfWorkers = Math.max(1, noOfWorkers);
+        this.rebuildPermits = new Semaphore(Math.max(1, Math.min(maxConcurrentRebuilds, this.noOfWorkers)));
+        this.leaseSeconds = Math.max(3, leaseSeconds);
+        this.pollMillis = Math.max(1, pollMillis);
+        //process@host of this JVM, with a random suffix for processes started in the same JVM
+        this.owner = ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID().toString().substring(0, 8);
+    }
+
+    public void run(Map<String, TableConversionPlan> tablePlans) throws SQLException {
+        this.tablePlans = tablePlans;
+        createQueue(tablePlans);
+        LOGGER.info("\nConverting tables of work queue " + QUEUE_TABLE + " (run " + runId + ") as " + owner + " with " + noOfWorkers + " workers and "
+                + rebuildPermits.availablePermits() + " concurrent rebuilds\n");
+
+        ScheduledExecutorService heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "lease-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeatExecutor.scheduleAtFixedRate(this::heartbeat, leaseSeconds / 3, leaseSeconds / 3, TimeUnit.SECONDS);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(noOfWorkers);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int workerNo = 0; workerNo < noOfWorkers; workerNo++) {
+                workers.add(executorService.submit(this::work));
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = e;
+        } catch (ExecutionException e) {
+            failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } finally {
+            executorService.shutdownNow();
+            heartbeatExecutor.shutdownNow();
+        }
+
+        if (failure instanceof SQLException) {
+            throw (SQLException) failure;
+        } else if (failure != null) {
+            throw new SQLException("Table conversion failed", failure);
+        }
+    }
+
+    //the first process inserts the items, the items of the other processes are ignored
+    private void createQueue(Map<String, TableConversionPlan> tablePlans) throws SQLException {
+        Connection connection = queuePool.borrow();
+        try {
+            //the queue has the new charset already, so it is never converted itself
+            PreparedStatement preparedStatement = connection.prepareStatement("CREATE TABLE IF NOT EXISTS " + QUEUE_TABLE + " (run_id VARCHAR(64) NOT NULL, table_name VARCHAR(64) NOT NULL,"
+                    + " referenced_tables TEXT NOT NULL, foreign_key_names TEXT NOT NULL, foreign_key_statement MEDIUMTEXT NULL, estimated_seconds DOUBLE NOT NULL,"
+                    + " state VARCHAR(32) NOT NULL, owner VARCHAR(255) NULL, lease_expires DATETIME NULL, attempts INT NOT NULL DEFAULT 0, error TEXT NULL,"
+                    + " PRIMARY KEY (run_id, table_name)) ENGINE = InnoDB CHARACTER SET = ? COLLATE = ?;");
+            preparedStatement.setString(1, converter.getNewCharset());
+            preparedStatement.setString(2, converter.getNewCollation());
+            preparedStatement.executeUpdate();
+            preparedStatement.close();
+
+            connection.setAutoCommit(false);
+            try {
+                preparedStatement = connection.prepareStatement("INSERT IGNORE INTO " + QUEUE_TABLE + " (run_id, table_name, referenced_tables, foreign_key_names, foreign_key_statement,"
+                        + " estimated_seconds, state) VALUES (?, ?, ?, ?, ?, ?, ?);");
+                int noOfItems = 0;
+                for (TableConversionPlan tablePlan : tablePlans.values()) {
+                    if (!tablePlan.requiresRebuild() && !tablePlan.hasForeignKeys()) {
+                        continue;
+                    }
+                    preparedStatement.setString(1, runId);
+                    preparedStatement.setString(2, tablePlan.getTableName());
+                    preparedStatement.setString(3, String.join(",", tablePlan.getReferencedTables()));
+                    preparedStatement.setString(4, String.join(",", tablePlan.getForeignKeyNames()));
+                    preparedStatement.setString(5, tablePlan.hasForeignKeys() ? tablePlan.getForeignKeyStatement() : null);
+                    preparedStatement.setDouble(6, tablePlan.getEstimatedRebuildSeconds());
+                    preparedStatement.setString(7, tablePlan.requiresRebuild() ? PENDING : REBUILT);
+                    preparedStatement.addBatch();
+                    noOfItems++;
+                }
+                int noOfInsertedItems = 0;
+                for (int count : preparedStatement.executeBatch()) {
+                    noOfInsertedItems += Math.max(0, count);
+                }
+                preparedStatement.close();
+
+                //a run started again after a failure retries the failed tables, which are checked before they are changed again
+                preparedStatement = connection.prepareStatement("UPDATE " + QUEUE_TABLE + " SET state = ?, error = NULL WHERE run_id = ? AND state = ?;");
+                preparedStatement.setString(1, PENDING);
+                preparedStatement.setString(2, runId);
+                preparedStatement.setString(3, FAILED);
+                int noOfRetriedItems = preparedStatement.executeUpdate();
+                preparedStatement.close();
+                connection.commit();
+                LOGGER.info("Added " + noOfInsertedItems + " of " + noOfItems + " tables to work queue " + QUEUE_TABLE + (noOfRetriedItems > 0 ? ", retrying " + noOfRetriedItems + " failed tables" : ""));
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } finally {
+            queuePool.release(connection);
+        }
+    }
+
+    private Void work() throws SQLException, InterruptedException {
+        while (failure == null) {
+            List<WorkItem> items = loadItems();
+            boolean allDone = true;
+            for (WorkItem item : items) {
+                if (item.state.equals(FAILED)) {
+                    throw new SQLException("Table " + item.tableName + " failed in " + item.owner + " : " + item.error);
+                }
+                allDone &= item.state.equals(DONE);
+            }
+            if (allDone) {
+                return null;
+            }
+            if (!addForeignKeys(items) && !rebuildTable(items)) {
+                Thread.sleep(pollMillis);
+            }
+        }
+        return null;
+    }
+
+    //biggest tables first, the same order as the ConversionScheduler without foreign key priorities
+    private List<WorkItem> loadItems() throws SQLException {
+        List<WorkItem> items = new ArrayList<>();
+        Connection connection = queuePool.borrow();
+        try {
+            PreparedStatement preparedStatement = StatementCache.prepareStatement(connection, "SELECT table_name, referenced_tables, foreign_key_names, foreign_key_statement, state, owner,"
+                    + " lease_expires < NOW() AS lease_expired, attempts, error FROM " + QUEUE_TABLE + " WHERE run_id = ? ORDER BY estimated_seconds DESC, table_name;");
+            preparedStatement.setString(1, runId);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    WorkItem item = new WorkItem();
+                    item.tableName = resultSet.getString("table_name");
+                    item.referencedTables = split(resultSet.getString("referenced_tables"));
+                    item.foreignKeyNames = split(resultSet.getString("foreign_key_names"));
+                    item.foreignKeyStatement = resultSet.getString("foreign_key_statement");
+                    item.state = resultSet.getString("state");
+                    item.owner = resultSet.getString("owner");
+                    item.leaseExpired = resultSet.getBoolean("lease_expired");
+                    item.attempts = resultSet.getInt("attempts");
+                    item.error = resultSet.getString("error");
+                    items.add(item);
+                }
+            }
+        } finally {
+            queuePool.release(connection);
+        }
+        return items;
+    }
+
+    private static List<String> split(String values) {
+        return values.isEmpty() ? Collections.emptyList() : Arrays.asList(values.split(","));
+    }
+
+    //claims a table whose own rebuild and the rebuilds of all its referenced tables are done, false when there is none
+    private boolean addForeignKeys(List<WorkItem> items) throws SQLException {
+        Map<String, String> states = new HashMap<>();
+        for (WorkItem item : items) {
+            states.put(item.tableName, item.state);
+        }
+        for (WorkItem item : items) {
+            if (!(item.state.equals(REBUILT) || (item.state.equals(ADDING_FOREIGN_KEYS) && item.leaseExpired)) || !isRebuilt(item.referencedTables, states)
+                    || !claim(item, ADDING_FOREIGN_KEYS)) {
+                continue;
+            }
+            try {
+                //the foreign keys are added with a single ALTER TABLE, so a first constraint present means they were all added before a crash
+                if (item.attempts > 0 && !item.foreignKeyNames.isEmpty() && constraintExists(item.tableName, item.foreignKeyNames.get(0))) {
+                    LOGGER.info("Foreign keys of table " + item.tableName + " were already added by " + item.owner);
+                } else {
+                    Connection connection = databasePool.borrow();
+                    try {
+                        converter.createForeignKeys(connection, item.tableName, item.foreignKeyStatement);
+                    } finally {
+                        databasePool.release(connection);
+                    }
+                }
+                complete(item, DONE);
+            } catch (SQLException e) {
+                fail(item, e);
+                throw e;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean isRebuilt(List<String> referencedTables, Map<String, String> states) {
+        for (String referencedTableName : referencedTables) {
+            String state = states.get(referencedTableName);
+            //tables which are not in the queue are not rebuilt at all
+            if (state != null && !(state.equals(REBUILT) || state.equals(ADDING_FOREIGN_KEYS) || state.equals(DONE))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //claims the biggest pending table of the plan of this process while a rebuild slot is free, false when there is none
+    private boolean rebuildTable(List<WorkItem> items) throws SQLException {
+        if (!rebuildPermits.tryAcquire()) {
+            return false;
+        }
+        try {
+            for (WorkItem item : items) {
+                TableConversionPlan tablePlan = tablePlans.get(item.tableName);
+                //a process started after others have begun has no plan for the tables they have converted, it can only check them when they are retried
+                if ((tablePlan == null && item.attempts == 0) || !(item.state.equals(PENDING) || (item.state.equals(REBUILDING) && item.leaseExpired)) || !claim(item, REBUILDING)) {
+                    continue;
+                }
+                try {
+                    //the merged ALTER TABLE changes the table at once, so a table with the new collation was rebuilt before a crash
+                    if (tablePlan == null || !tablePlan.requiresRebuild() || (item.attempts > 0 && isConverted(item.tableName))) {
+                        if (tablePlan == null && !isConverted(item.tableName)) {
+                            throw new SQLException("Table " + item.tableName + " is not converted and has no conversion plan in this process");
+                        }
+                        LOGGER.info("Table " + item.tableName + " was already converted" + (item.owner != null ? " by " + item.owner : ""));
+                    } else {
+                        converter.acquireHostRebuildPermit();
+                        try {
+                            Connection connection = databasePool.borrow();
+                            try {
+                                LOGGER.info("Converting table " + item.tableName + " (" + tablePlan.getColumnCount() + " columns, " + tablePlan.getIndexCount() + " indexes)");
+                                converter.rebuildTable(connection, tablePlan);
+                            } finally {
+                                databasePool.release(connection);
+                            }
+                        } finally {
+                            converter.releaseHostRebuildPermit();
+                        }
+                    }
+                    complete(item, item.foreignKeyStatement != null ? REBUILT : DONE);
+                } catch (SQLException e) {
+                    fail(item, e);
+                    throw e;
+                }
+                return true;
+            }
+            return false;
+        } finally {
+            rebuildPermits.release();
+        }
+    }
+
+    //only one process can move the item out of the state it had when the queue was loaded
+    private boolean claim(WorkItem item, String newState) throws SQLException {
+        Connection connection = queuePool.borrow();
+        try {
+            PreparedStatement preparedStatement = StatementCache.prepareStatement(connection, "UPDATE " + QUEUE_TABLE + " SET state = ?, owner = ?, lease_expires = NOW() + INTERVAL ? SECOND,"
+                    + " attempts = attempts + 1 WHERE run_id = ? AND table_name = ? AND state = ? AND attempts = ? AND (? OR lease_expires < NOW());");
+            preparedStatement.setString(1, newState);
+            preparedStatement.setString(2, owner);
+            preparedStatement.setInt(3, leaseSeconds);
+            preparedStatement.setString(4, runId);
+            preparedStatement.setString(5, item.tableName);
+            preparedStatement.setString(6, item.state);
+            preparedStatement.setInt(7, item.attempts);
+            //an item in the state it is claimed for is taken over, which is only allowed once its lease has expired
+            preparedStatement.setBoolean(8, !item.state.equals(newState));
+            boolean claimed = preparedStatement.executeUpdate() == 1;
+            if (claimed && item.state.equals(newState)) {
+                LOGGER.warn("Took over table " + item.tableName + " from " + item.owner + " whose lease expired");
+            }
+            return claimed;
+        } finally {
+            queuePool.release(connection);
+        }
+    }
+
+    private void complete(WorkItem item, String newState) throws SQLException {
+        Connection connection = queuePool.borrow();
+        try {
+            PreparedStatement preparedStatement = StatementCache.prepareStatement(connection, "UPDATE " + QUEUE_TABLE + " SET state = ?, lease_expires = NULL"
+                    + " WHERE run_id = ? AND table_name = ? AND owner = ?;");
+            preparedStatement.setString(1, newState);
+            preparedStatement.setString(2, runId);
+            preparedStatement.setString(3, item.tableName);
+            preparedStatement.setString(4, owner);
+            if (preparedStatement.executeUpdate() == 0) {
+                //the other process finds the work done when it checks the table
+                LOGGER.warn("Lease on table " + item.tableName + " expired and was taken over by another process");
+            }
+        } finally {
+            queuePool.release(connection);
+        }
+    }
+
+    //stops every process, the cause is kept in the queue
+    private void fail(WorkItem item, Exception e) {
+        LOGGER.fatal("Exception " + e + " has occurred while converting table " + item.tableName);
+        failure = e;
+        try {
+            Connection connection = queuePool.borrow();
+            try {
+                PreparedStatement preparedStatement = StatementCache.prepareStatement(connection, "UPDATE " + QUEUE_TABLE + " SET state = ?, error = ?"
+                        + " WHERE run_id = ? AND table_name = ? AND owner = ?;");
+                preparedStatement.setString(1, FAILED);
+                preparedStatement.setString(2, e.toString());
+                preparedStatement.setString(3, runId);
+                preparedStatement.setString(4, item.tableName);
+                preparedStatement.setString(5, owner);
+                preparedStatement.executeUpdate();
+            } finally {
+                queuePool.release(connection);
+            }
+        } catch (SQLException s) {
+            LOGGER.error("Could not record failure of table " + item.tableName + " in work queue : " + s);
+        }
+    }
+
+    //extends the leases of all items of this process, runs every third of the lease time
+    private void heartbeat() {
+        try {
+            Connection connection = queuePool.borrow();
+            try {
+                PreparedStatement preparedStatement = StatementCache.prepareStatement(connection, "UPDATE " + QUEUE_TABLE + " SET lease_expires = NOW() + INTERVAL ? SECOND"
+                        + " WHERE run_id = ? AND owner = ? AND state IN (?, ?);");
+                preparedStatement.setInt(1, leaseSeconds);
+                preparedStatement.setString(2, runId);
+                preparedStatement.setString(3, owner);
+                preparedStatement.setString(4, REBUILDING);
+                preparedStatement.setString(5, ADDING_FOREIGN_KEYS);
+                preparedStatement.executeUpdate();
+            } finally {
+                queuePool.release(connection);
+            }
+        } catch (SQLException e) {
+            //the next heartbeat tries again, the leases last for three heartbeats
+            LOGGER.warn("Heartbeat of work queue failed : " + e);
+        }
+    }
+
+    private boolean isConverted(String tableName) throws SQLException {
+        Connection connection = queuePool.borrow();
+        try {
+            PreparedStatement preparedStatement = StatementCache.prepareStatement(connection, "SELECT (SELECT COUNT(*) FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ?"
+                    + " AND COLLATION_NAME IS NOT NULL AND COLLATION_NAME != ?) + (SELECT COUNT(*) FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ?"
+                    + " AND TABLE_COLLATION != ?) AS noOfUnconverted;");
+            preparedStatement.setString(1, tableName);
+            preparedStatement.setString(2, converter.getNewCollation());
+            preparedStatement.setString(3, tableName);
+            preparedStatement.setString(4, converter.getNewCollation());
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                return resultSet.next() && resultSet.getInt("noOfUnconverted") == 0;
+            }
+        } finally {
+            queuePool.release(connection);
+        }
+    }
+
+    private boolean constraintExists(String tableName, String constraintName) throws SQLException {
+        Connection connection = queuePool.borrow();
+        try {
+            PreparedStatement preparedStatement = StatementCache.prepareStatement(connection, "SELECT CONSTRAINT_NAME FROM INFORMATION_SCHEMA.TABLE_CONSTRAINTS WHERE TABLE_SCHEMA = DATABASE()"
+                    + " AND TABLE_NAME = ? AND CONSTRAINT_NAME = ? AND CONSTRAINT_TYPE = 'FOREIGN KEY';");
+            preparedStatement.setString(1, tableName);
+            preparedStatement.setString(2, constraintName);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                return resultSet.next();
+            }
+        } finally {
+            queuePool.release(connection);
+        }
+    }
+}
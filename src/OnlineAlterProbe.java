@@ -0,0 +1,164 @@
+/**
+ * Finds the least blocking ALGORITHM and LOCK clauses the server accepts for the ALTER TABLE of every table plan.
+ * Each candidate is tried on an empty copy of the table (CREATE TABLE ... LIKE), MySQL rejects an unsupported
+ * combination before doing any work, so the probe never touches the real table.
+ * Tables which have to fall back to a table copy are recorded in the plan and reported with their expected blocking time.
+ */
+
+import org.apache.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class OnlineAlterProbe {
+
+    private static final Logger LOGGER = Logger.getLogger(OnlineAlterProbe.class.getName());
+
+    //ER_ALTER_OPERATION_NOT_SUPPORTED and ER_ALTER_OPERATION_NOT_SUPPORTED_REASON
+    private static final int ALTER_OPERATION_NOT_SUPPORTED = 1845;
+    private static final int ALTER_OPERATION_NOT_SUPPORTED_REASON = 1846;
+
+    //ER_PARSE_ERROR of a server which does not know ALGORITHM=INSTANT
+    private static final int PARSE_ERROR = 1064;
+
+    private static final String PROBE_TABLE_PREFIX = "_probe_";
+
+    private Connection myDBConnection;
+    private int majorVersion;
+    private int minorVersion;
+    private int patchVersion;
+    private boolean mariaDb = false;
+
+    public OnlineAlterProbe(Connection myDBConnection) throws SQLException {
+        this.myDBConnection = myDBConnection;
+
+        Statement statement = myDBConnection.createStatement();
+        ResultSet resultSet = statement.executeQuery("SELECT VERSION();");
+        if (resultSet.next()) {
+            //5.7.19-log, 8.0.11 or 10.2.8-MariaDB
+            String[] version = resultSet.getString(1).split("[^0-9]+");
+            majorVersion = Integer.parseInt(version[0]);
+            minorVersion = version.length > 1 ? Integer.parseInt(version[1]) : 0;
+            patchVersion = version.length > 2 ? Integer.parseInt(version[2]) : 0;
+            mariaDb = resultSet.getString(1).contains("MariaDB");
+        }
+        statement.close();
+        LOGGER.info((mariaDb ? "MariaDB" : "MySQL") + " server version " + majorVersion + "." + minorVersion + "." + patchVersion);
+    }
+
+    //MySQL 5.6 and every MariaDB 10
+    public boolean supportsOnlineDdl() {
+        return mariaDb || majorVersion > 5 || (majorVersion == 5 && minorVersion >= 6);
+    }
+
+    //MySQL 8.0.12 and MariaDB 10.3
+    public boolean supportsInstantDdl() {
+        if (mariaDb) {
+            return majorVersion > 10 || (majorVersion == 10 && minorVersion >= 3);
+        }
+        return majorVersion > 8 || (majorVersion == 8 && (minorVersion > 0 || patchVersion >= 12));
+    }
+
+    //candidates from least to most blocking, copying the table with reads allowed blocks less than an in-place rebuild without any DML
+    public List<String[]> getCandidates() {
+        List<String[]> candidates = new ArrayList<>();
+        if (!supportsOnlineDdl()) {
+            return candidates;
+        }
+        if (supportsInstantDdl()) {
+            candidates.add(new String[]{"INSTANT", null});
+        }
+        candidates.add(new String[]{"INPLACE", "NONE"});
+        candidates.add(new String[]{"INPLACE", "SHARED"});
+        candidates.add(new String[]{"COPY", "SHARED"});
+        candidates.add(new String[]{"INPLACE", "EXCLUSIVE"});
+        candidates.add(new String[]{"COPY", "EXCLUSIVE"});
+        return candidates;
+    }
+
+    public void probe(Map<String, TableConversionPlan> tablePlans) throws SQLException {
+        if (!supportsOnlineDdl()) {
+            LOGGER.info("Online DDL is not supported by this server, all tables will be copied with the table locked.");
+        }
+
+        for (TableConversionPlan tablePlan : tablePlans.values()) {
+            //shadow copies never lock the table, their ALTER runs on the empty shadow table
+            if (tablePlan.requiresRebuild() && !tablePlan.isShadowCopy() && supportsOnlineDdl()) {
+                probe(tablePlan);
+            }
+            //with foreign key checks disabled, adding a foreign key only changes metadata
+            if (tablePlan.hasForeignKeys() && supportsOnlineDdl()) {
+                tablePlan.setForeignKeyAlgorithmAndLock("INPLACE", "NONE");
+            }
+        }
+        printBlockingTimes(tablePlans);
+    }
+
+    public void probe(TableConversionPlan tablePlan) throws SQLException {
+        String probeTableName = PROBE_TABLE_PREFIX + tablePlan.getTableName();
+        if (probeTableName.length() > 64) {
+            probeTableName = probeTableName.substring(0, 64);
+        }
+
+        Statement statement = myDBConnection.createStatement();
+        try {
+            statement.execute("DROP TABLE IF EXISTS " + probeTableName + ";");
+            //foreign keys are not copied by CREATE TABLE ... LIKE, dropping them is always in place
+            statement.execute("CREATE TABLE " + probeTableName + " LIKE " + tablePlan.getTableName() + ";");
+
+            for (String[] candidate : getCandidates()) {
+                try {
+                    statement.execute("ALTER TABLE " + probeTableName + " " + tablePlan.getAlterClauses(false) + TableConversionPlan.getAlgorithmClause(candidate[0], candidate[1]) + ";");
+                    tablePlan.setAlgorithmAndLock(candidate[0], candidate[1]);
+                    return;
+                } catch (SQLException e) {
+                    //a server version which is not recognized may not know INSTANT at all
+                    boolean unknownAlgorithm = e.getErrorCode() == PARSE_ERROR && "INSTANT".equals(candidate[0]);
+                    if (e.getErrorCode() != ALTER_OPERATION_NOT_SUPPORTED && e.getErrorCode() != ALTER_OPERATION_NOT_SUPPORTED_REASON && !unknownAlgorithm) {
+                        throw e;
+                    }
+                    LOGGER.debug("Table " + tablePlan.getTableName() + " does not support ALGORITHM=" + candidate[0] + ", LOCK=" + candidate[1] + " : " + e.getMessage());
+                }
+            }
+        } finally {
+            statement.execute("DROP TABLE IF EXISTS " + probeTableName + ";");
+            statement.close();
+        }
+    }
+
+    public void printBlockingTimes(Map<String, TableConversionPlan> tablePlans) {
+        LOGGER.info("\n============= ONLINE CONVERSION PLAN ===================\n");
+        for (TableConversionPlan tablePlan : tablePlans.values()) {
+            if (!tablePlan.requiresRebuild()) {
+                continue;
+            }
+            if (tablePlan.isShadowCopy()) {
+                LOGGER.info("Table : " + tablePlan.getTableName() + "\t\tshadow table copy\t\tno blocking except a short metadata lock while swapping");
+                continue;
+            }
+            LOGGER.info("Table : " + tablePlan.getTableName() + "\t\t" + describe(tablePlan));
+        }
+    }
+
+    //ALGORITHM=COPY, LOCK=SHARED (falls back to table copy), writes blocked for 00:12:00
+    public static String describe(TableConversionPlan tablePlan) {
+        String duration = DatabaseConverter.formatDuration(tablePlan.getEstimatedRebuildSeconds());
+
+        String blocking;
+        if ("INSTANT".equals(tablePlan.getAlgorithm()) || "NONE".equals(tablePlan.getLock())) {
+            blocking = "no blocking except a short metadata lock";
+        } else if ("SHARED".equals(tablePlan.getLock())) {
+            blocking = "writes blocked for " + duration;
+        } else {
+            blocking = "reads and writes blocked for " + duration;
+        }
+
+        String fallback = "COPY".equals(tablePlan.getAlgorithm()) || tablePlan.getAlgorithm() == null ? " (falls back to table copy)" : "";
+        return "ALGORITHM=" + tablePlan.getAlgorithm() + ", LOCK=" + tablePlan.getLock() + fallback + ", " + blocking;
+    }
+}
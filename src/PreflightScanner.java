@@ -0,0 +1,200 @@
+/**
+ * Scans the data of primary and unique keys before any DDL is executed, for the rows which would make the conversion fail hours later :
+ * values which become equal under the new collation or the planned prefix of the index, so that recreating the unique key fails
+ * with a duplicate key, and text values which do not fit in their column anymore once every character takes up to 4 bytes.
+ *
+ * Duplicates are grouped on the server by the collation weight of the converted and prefixed values, so only the colliding groups
+ * are sent back. Every key is grouped by a single query, which reads its table once, and the keys and columns are scanned concurrently,
+ * the biggest tables first. Every result is streamed through a server side cursor.
+ */
+
+import org.apache.log4j.Logger;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class PreflightScanner {
+
+    private static final Logger LOGGER = Logger.getLogger(PreflightScanner.class.getName());
+
+    //rows fetched at a time through the server side cursor
+    private static final int FETCH_SIZE = 1000;
+
+    //characters of colliding values kept for the report
+    private static final int MAX_VALUES_LENGTH = 500;
+
+    public static class Problem {
+        private String tableName;
+        private String name;
+        private String description;
+
+        private Problem(String tableName, String name, String description) {
+            this.tableName = tableName;
+            this.name = name;
+            this.description = description;
+        }
+
+        @Override
+        public String toString() {
+            return tableName + "." + name + " : " + description;
+        }
+    }
+
+    private DatabaseConverter converter;
+    private ConnectionPool connectionPool;
+    private String newCharset;
+    private String newCollation;
+    private int noOfWorkers;
+
+    private List<Problem> problems = Collections.synchronizedList(new ArrayList<>());
+
+    //the connections of the pool must use server side cursors (useCursorFetch=true)
+    public PreflightScanner(DatabaseConverter converter, ConnectionPool connectionPool, String newCharset, String newCollation, int noOfWorkers) {
+        this.converter = converter;
+        this.connectionPool = connectionPool;
+        this.newCharset = newCharset;
+        this.newCollation = newCollation;
+        this.noOfWorkers = Math.max(1, noOfWorkers);
+    }
+
+    /*
+    keyIndexes are the primary and unique key entries, tableSizes the DATA_LENGTH + INDEX_LENGTH of every table,
+    and textColumnBytes the maximum length in bytes of every TINYTEXT, TEXT and MEDIUMTEXT column (table.column -> bytes)
+    */
+    public List<Problem> scan(List<KeyDetail> keyIndexes, Map<String, Long> tableSizes, Map<String, Long> textColumnBytes) throws SQLException {
+        Set<String> collationColumns = new HashSet<>();
+        for (KeyDetail index : keyIndexes) {
+            if (index.isHasCollation()) {
+                collationColumns.add(index.getTableName() + "." + index.getColumnName());
+            }
+        }
+
+        //the biggest tables first, so that they do not finish last on a single worker
+        List<IndexDefinition> indexes = new ArrayList<>(IndexDefinition.group(keyIndexes, IndexDefinition.UNIQUE));
+        indexes.sort(Comparator.comparingLong((IndexDefinition index) -> tableSizes.getOrDefault(index.getTableName(), 0L)).reversed());
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        Set<String> scannedColumns = new HashSet<>();
+        for (IndexDefinition index : indexes) {
+            List<String> columnNames = index.getColumnNames();
+            boolean hasCollation = false;
+            for (String columnName : columnNames) {
+                hasCollation |= collationColumns.contains(index.getTableName() + "." + columnName);
+            }
+            //keys without character columns do not change
+            if (!hasCollation) {
+                continue;
+            }
+
+            tasks.add(() -> {
+                scanCollisions(index, collationColumns);
+                return null;
+            });
+
+            for (String columnName : columnNames) {
+                Long maxBytes = textColumnBytes.get(index.getTableName() + "." + columnName);
+                if (maxBytes != null && collationColumns.contains(index.getTableName() + "." + columnName) && scannedColumns.add(index.getTableName() + "." + columnName)) {
+                    tasks.add(() -> {
+                        scanOverflows(index.getTableName(), columnName, maxBytes);
+                        return null;
+                    });
+                }
+            }
+        }
+
+        LOGGER.info("\nPre-flight scan of " + tasks.size() + " keys and columns with " + noOfWorkers + " workers\n");
+        ExecutorService executorService = Executors.newFixedThreadPool(noOfWorkers);
+        try {
+            for (Future<Void> future : executorService.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Pre-flight scan interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException("Pre-flight scan failed", e.getCause());
+        } finally {
+            executorService.shutdownNow();
+        }
+        return problems;
+    }
+
+    /*
+    SELECT COUNT(*), LEFT(GROUP_CONCAT(DISTINCT CONCAT_WS(', ', code, name) SEPARATOR ' / '), 500) FROM table_name
+    WHERE code IS NOT NULL AND name IS NOT NULL GROUP BY key_1, key_2 HAVING COUNT(*) > 1
+    where key_n is the collation weight of the converted value, cut to the prefix length of the new index.
+    The whole table is grouped in one pass, only the colliding groups are streamed back.
+    Rows with a NULL in the key never collide in a unique key.
+    */
+    private void scanCollisions(IndexDefinition index, Set<String> collationColumns) throws SQLException {
+        List<String> columnNames = index.getColumnNames();
+        List<String> keyExpressions = new ArrayList<>();
+        List<String> notNullConditions = new ArrayList<>();
+        for (int columnNo = 0; columnNo < columnNames.size(); columnNo++) {
+            String columnName = columnNames.get(columnNo);
+            if (collationColumns.contains(index.getTableName() + "." + columnName)) {
+                keyExpressions.add(getCollationKey(columnName, index.getPrefixLength(columnNo)));
+            } else {
+                keyExpressions.add(columnName);
+            }
+            notNullConditions.add(columnName + " IS NOT NULL");
+        }
+        String keyList = String.join(", ", keyExpressions);
+
+        String query = "SELECT COUNT(*) AS noOfRows, LEFT(GROUP_CONCAT(DISTINCT CONCAT_WS(', ', " + String.join(", ", columnNames) + ") SEPARATOR ' / '), " + MAX_VALUES_LENGTH + ") AS collidingValues"
+                + " FROM " + index.getTableName() + " WHERE " + String.join(" AND ", notNullConditions)
+                + " GROUP BY " + keyList + " HAVING COUNT(*) > 1;";
+
+        forEachRow(query, resultSet -> problems.add(new Problem(index.getTableName(), index.getIndexName(), resultSet.getLong("noOfRows") + " rows collide under "
+                + newCollation + (index.getColumnList().contains("(") ? " and the index prefix (" + index.getColumnList() + ")" : "") + " : " + resultSet.getString("collidingValues"))));
+    }
+
+    //weight of the first prefixLength characters of the converted value, trailing spaces are ignored by PAD SPACE collations
+    private String getCollationKey(String columnName, int prefixLength) {
+        String value = "CONVERT(" + columnName + " USING " + newCharset + ")";
+        if (prefixLength > 0) {
+            value = "LEFT(" + value + ", " + prefixLength + ")";
+        }
+        //the 0900 collations of MySQL 8 are NO PAD, every older collation is PAD SPACE
+        if (!newCollation.contains("_0900_")) {
+            value = "TRIM(TRAILING ' ' FROM " + value + ")";
+        }
+        return "WEIGHT_STRING(" + value + " COLLATE " + newCollation + ")";
+    }
+
+    //text columns hold a number of bytes, not characters, so longer values do not fit anymore after the conversion
+    private void scanOverflows(String tableName, String columnName, long maxBytes) throws SQLException {
+        String convertedLength = "LENGTH(CONVERT(" + columnName + " USING " + newCharset + "))";
+        String query = "SELECT COUNT(*) AS noOfRows, MAX(" + convertedLength + ") AS maxLength FROM " + tableName + " WHERE " + convertedLength + " > " + maxBytes + ";";
+
+        forEachRow(query, resultSet -> {
+            if (resultSet.getLong("noOfRows") > 0) {
+                problems.add(new Problem(tableName, columnName, resultSet.getLong("noOfRows") + " values are longer than " + maxBytes + " bytes in "
+                        + newCharset + ", up to " + resultSet.getLong("maxLength") + " bytes"));
+            }
+        });
+    }
+
+    private interface RowHandler {
+        void handle(ResultSet resultSet) throws SQLException;
+    }
+
+    private void forEachRow(String query, RowHandler rowHandler) throws SQLException {
+        Connection connection = connectionPool.borrow();
+        try (Statement statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            statement.setFetchSize(FETCH_SIZE);
+            converter.appendToAllQueries(query);
+            try (ResultSet resultSet = statement.executeQuery(query)) {
+                while (resultSet.next()) {
+                    rowHandler.handle(resultSet);
+                }
+            }
+        } finally {
+            connectionPool.release(connection);
+        }
+    }
+}
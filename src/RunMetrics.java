@@ -0,0 +1,286 @@
+/**
+ * Timings of a conversion run : wall time of every phase and of every executed statement with its affected rows,
+ * rebuild time of every table and its size before and after the conversion, and the number of metadata queries.
+ * Every statement is written to a statements CSV as soon as it completes, only the slowest ones are kept in memory.
+ * At the end of the run everything else is written to a JSON report, and a CSV report with one line per table.
+ * While tables are rebuilt, a progress line with the estimated remaining time can be logged periodically.
+ */
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class RunMetrics {
+
+    private static final Logger LOGGER = Logger.getLogger(RunMetrics.class.getName());
+
+    //statements kept for the JSON report, slowest first
+    private static final int MAX_SLOWEST_STATEMENTS = 100;
+
+    private static class StatementMetric {
+        private String tableName;
+        private String query;
+        private long millis;
+        private long rowsAffected;
+    }
+
+    private static class TableMetric {
+        private long rebuildMillis = 0;
+        private int noOfStatements = 0;
+        private long statementMillis = 0;
+        private long rowsAffected = 0;
+        private long bytesBefore = -1;
+        private long bytesAfter = -1;
+    }
+
+    private String databaseName;
+    private long startTime = System.currentTimeMillis();
+    private long startNanos = System.nanoTime();
+    private long metadataQueries = 0;
+
+    private Map<String, Long> phases = new LinkedHashMap<>();
+    private int noOfStatements = 0;
+    private long statementMillis = 0;
+    private PriorityQueue<StatementMetric> slowestStatements = new PriorityQueue<>(Comparator.comparingLong((StatementMetric statement) -> statement.millis));
+    private BufferedWriter statementWriter = null;
+    private Path statementsFile = null;
+    private Map<String, TableMetric> tables = new TreeMap<>();
+
+    //progress of the table rebuilds, weighted by their estimated rebuild time
+    private ScheduledExecutorService progressExecutor = null;
+    private int noOfTables = 0;
+    private int noOfCompletedTables = 0;
+    private double estimatedSeconds = 0;
+    private double completedEstimatedSeconds = 0;
+    private long progressStartNanos = 0;
+
+    public RunMetrics(String databaseName) {
+        this.databaseName = databaseName;
+    }
+
+    //phaseStartNanos is the System.nanoTime() at the start of the phase, a phase run twice is added up
+    public synchronized void recordPhase(String phase, long phaseStartNanos) {
+        long millis = (System.nanoTime() - phaseStartNanos) / 1000000;
+        phases.merge(phase, millis, Long::sum);
+        LOGGER.info("Phase " + phase + " took " + millis + " ms");
+    }
+
+    //table,millis,rows_affected,query of every statement recorded from now on
+    public synchronized void openStatementsFile(Path csvFile) throws IOException {
+        statementsFile = csvFile;
+        statementWriter = Files.newBufferedWriter(csvFile, StandardCharsets.UTF_8);
+        statementWriter.write("table,millis,rows_affected,query\n");
+    }
+
+    public synchronized void recordStatement(String tableName, String query, long millis, long rowsAffected) {
+        StatementMetric statement = new StatementMetric();
+        statement.tableName = tableName;
+        statement.query = query.trim();
+        statement.millis = millis;
+        statement.rowsAffected = rowsAffected;
+        noOfStatements++;
+        statementMillis += millis;
+        slowestStatements.add(statement);
+        if (slowestStatements.size() > MAX_SLOWEST_STATEMENTS) {
+            slowestStatements.poll();
+        }
+        if (statementWriter != null) {
+            try {
+                statementWriter.write((tableName == null ? "" : tableName) + "," + millis + "," + rowsAffected + ",\"" + statement.query.replace("\"", "\"\"") + "\"\n");
+            } catch (IOException e) {
+                LOGGER.error("Could not write statement to " + statementsFile + ", no more statements are written : " + e);
+                closeStatementsFile();
+            }
+        }
+        if (tableName != null) {
+            TableMetric table = getTable(tableName);
+            table.noOfStatements++;
+            table.statementMillis += millis;
+            table.rowsAffected += Math.max(0, rowsAffected);
+        }
+    }
+
+    public synchronized void recordTableRebuild(String tableName, long rebuildStartNanos) {
+        getTable(tableName).rebuildMillis += (System.nanoTime() - rebuildStartNanos) / 1000000;
+    }
+
+    //table name -> DATA_LENGTH + INDEX_LENGTH
+    public synchronized void recordTableSizes(Map<String, Long> tableSizes, boolean beforeConversion) {
+        for (Map.Entry<String, Long> tableSize : tableSizes.entrySet()) {
+            if (beforeConversion) {
+                getTable(tableSize.getKey()).bytesBefore = tableSize.getValue();
+            } else {
+                getTable(tableSize.getKey()).bytesAfter = tableSize.getValue();
+            }
+        }
+    }
+
+    public synchronized int getNoOfStatements() {
+        return noOfStatements;
+    }
+
+    private void closeStatementsFile() {
+        if (statementWriter != null) {
+            try {
+                statementWriter.close();
+            } catch (IOException e) {
+                LOGGER.error("Could not close " + statementsFile + " : " + e);
+            }
+            statementWriter = null;
+        }
+    }
+
+    public synchronized void setMetadataQueries(long metadataQueries) {
+        this.metadataQueries = metadataQueries;
+    }
+
+    private TableMetric getTable(String tableName) {
+        return tables.computeIfAbsent(tableName, key -> new TableMetric());
+    }
+
+    //logs the progress every intervalSeconds until stopProgress, 0 disables the progress line
+    public synchronized void startProgress(int noOfTables, double estimatedSeconds, int intervalSeconds) {
+        this.noOfTables = noOfTables;
+        this.noOfCompletedTables = 0;
+        this.estimatedSeconds = estimatedSeconds;
+        this.completedEstimatedSeconds = 0;
+        this.progressStartNanos = System.nanoTime();
+        if (intervalSeconds > 0 && progressExecutor == null) {
+            progressExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "progress");
+                thread.setDaemon(true);
+                return thread;
+            });
+            progressExecutor.scheduleAtFixedRate(() -> LOGGER.info(getProgress()), intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    public synchronized void tableCompleted(double tableEstimatedSeconds) {
+        noOfCompletedTables++;
+        completedEstimatedSeconds += tableEstimatedSeconds;
+    }
+
+    public synchronized int getNoOfTables() {
+        return noOfTables;
+    }
+
+    public synchronized int getNoOfCompletedTables() {
+        return noOfCompletedTables;
+    }
+
+    public synchronized void stopProgress() {
+        if (progressExecutor != null) {
+            progressExecutor.shutdownNow();
+            progressExecutor = null;
+        }
+    }
+
+    //Converted 12/40 tables (35%), elapsed 00:10:02, remaining 00:18:40
+    public synchronized String getProgress() {
+        double elapsedSeconds = (System.nanoTime() - progressStartNanos) / 1e9;
+        double fraction = estimatedSeconds > 0 ? completedEstimatedSeconds / estimatedSeconds : (noOfTables > 0 ? (double) noOfCompletedTables / noOfTables : 1);
+        String remaining = fraction > 0 ? DatabaseConverter.formatDuration(elapsedSeconds * (1 - fraction) / fraction) : "unknown";
+        return "Converted " + noOfCompletedTables + "/" + noOfTables + " tables (" + Math.round(fraction * 100) + "%), elapsed "
+                + DatabaseConverter.formatDuration(elapsedSeconds) + ", remaining " + remaining;
+    }
+
+    public synchronized void writeReports(Path jsonFile, Path csvFile) throws IOException {
+        long totalMillis = (System.nanoTime() - startNanos) / 1000000;
+        closeStatementsFile();
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"database\": ").append(quote(databaseName)).append(",\n");
+        json.append("  \"startedAt\": ").append(quote(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").format(new Date(startTime)))).append(",\n");
+        json.append("  \"totalMillis\": ").append(totalMillis).append(",\n");
+        json.append("  \"metadataQueries\": ").append(metadataQueries).append(",\n");
+        json.append("  \"statements\": ").append(noOfStatements).append(",\n");
+        json.append("  \"statementMillis\": ").append(statementMillis).append(",\n");
+        json.append("  \"phases\": [");
+        String separator = "\n";
+        for (Map.Entry<String, Long> phase : phases.entrySet()) {
+            json.append(separator).append("    {\"name\": ").append(quote(phase.getKey())).append(", \"millis\": ").append(phase.getValue()).append("}");
+            separator = ",\n";
+        }
+        json.append("\n  ],\n");
+        json.append("  \"tables\": [");
+        separator = "\n";
+        for (Map.Entry<String, TableMetric> entry : tables.entrySet()) {
+            TableMetric table = entry.getValue();
+            json.append(separator).append("    {\"name\": ").append(quote(entry.getKey()))
+                    .append(", \"rebuildMillis\": ").append(table.rebuildMillis)
+                    .append(", \"statements\": ").append(table.noOfStatements)
+                    .append(", \"statementMillis\": ").append(table.statementMillis)
+                    .append(", \"rowsAffected\": ").append(table.rowsAffected)
+                    .append(", \"bytesBefore\": ").append(table.bytesBefore)
+                    .append(", \"bytesAfter\": ").append(table.bytesAfter).append("}");
+            separator = ",\n";
+        }
+        json.append("\n  ],\n");
+        List<StatementMetric> sortedStatements = new ArrayList<>(slowestStatements);
+        sortedStatements.sort(Comparator.comparingLong((StatementMetric statement) -> statement.millis).reversed());
+        json.append("  \"slowestStatements\": [");
+        separator = "\n";
+        for (StatementMetric statement : sortedStatements) {
+            json.append(separator).append("    {\"table\": ").append(statement.tableName == null ? "null" : quote(statement.tableName))
+                    .append(", \"millis\": ").append(statement.millis)
+                    .append(", \"rowsAffected\": ").append(statement.rowsAffected)
+                    .append(", \"query\": ").append(quote(statement.query)).append("}");
+            separator = ",\n";
+        }
+        json.append("\n  ]\n}\n");
+        Files.write(jsonFile, json.toString().getBytes(StandardCharsets.UTF_8));
+
+        //slowest tables first, so the tables dominating the run are at the top
+        List<Map.Entry<String, TableMetric>> sortedTables = new ArrayList<>(tables.entrySet());
+        sortedTables.sort(Comparator.comparingLong((Map.Entry<String, TableMetric> entry) -> Math.max(entry.getValue().rebuildMillis, entry.getValue().statementMillis)).reversed());
+        StringBuilder csv = new StringBuilder("table,rebuild_millis,statements,statement_millis,rows_affected,bytes_before,bytes_after\n");
+        for (Map.Entry<String, TableMetric> entry : sortedTables) {
+            TableMetric table = entry.getValue();
+            csv.append(entry.getKey()).append(',').append(table.rebuildMillis).append(',').append(table.noOfStatements).append(',').append(table.statementMillis)
+                    .append(',').append(table.rowsAffected).append(',').append(table.bytesBefore).append(',').append(table.bytesAfter).append('\n');
+        }
+        Files.write(csvFile, csv.toString().getBytes(StandardCharsets.UTF_8));
+
+        LOGGER.info("Stored run report in " + jsonFile + " and " + csvFile + (statementsFile != null ? " and every statement in " + statementsFile : "") + " files.");
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"':
+                    quoted.append("\\\"");
+                    break;
+                case '\\':
+                    quoted.append("\\\\");
+                    break;
+                case '\n':
+                    quoted.append("\\n");
+                    break;
+                case '\r':
+                    quoted.append("\\r");
+                    break;
+                case '\t':
+                    quoted.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ * Fingerprints of every table of a converted database : the table collation, the type and collation of every column and the
+ * definition of every index, hashed per table. The manifest of a successful run is stored next to the scripts, and an incremental
+ * run converts only the tables whose fingerprint changed since then, for example new tables or new columns with the old collation.
+ *
+ * Every line is tab separated : TABLE, SHA-256 of the table in hex, tableName
+ */
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+
+public class SchemaManifest {
+
+    private static final Logger LOGGER = Logger.getLogger(SchemaManifest.class.getName());
+
+    //separates the fields of the fingerprinted text, names cannot contain it
+    private static final char SEPARATOR = '\0';
+
+    private Path manifestFile;
+
+    //tableName -> fingerprint, in table order
+    private Map<String, String> fingerprints = new TreeMap<>();
+
+    private SchemaManifest(Path manifestFile) {
+        this.manifestFile = manifestFile;
+    }
+
+    //null when no run has completed yet
+    public static SchemaManifest load(Path manifestFile) throws SQLException {
+        if (!Files.exists(manifestFile)) {
+            return null;
+        }
+        SchemaManifest manifest = new SchemaManifest(manifestFile);
+        try {
+            for (String line : Files.readAllLines(manifestFile, StandardCharsets.UTF_8)) {
+                String[] fields = line.split("\t", 3);
+                if (fields.length == 3 && fields[0].equals("TABLE")) {
+                    manifest.fingerprints.put(fields[2], fields[1]);
+                } else if (!line.isEmpty()) {
+                    LOGGER.warn("Ignoring line of schema manifest : " + line);
+                }
+            }
+        } catch (IOException e) {
+            throw new SQLException("Could not read schema manifest " + manifestFile, e);
+        }
+        return manifest;
+    }
+
+    //fingerprints of the current tables, the indexes are taken from the snapshot
+    public static SchemaManifest create(Path manifestFile, DatabaseConverter converter, Connection informationSchemaConnection, SchemaSnapshot snapshot) throws SQLException {
+        Map<String, StringBuilder> tables = new TreeMap<>();
+
+        try (ResultSet resultSet = converter.getTables(informationSchemaConnection)) {
+            while (resultSet.next()) {
+                tables.computeIfAbsent(resultSet.getString("TABLE_NAME"), key -> new StringBuilder())
+                        .append("TABLE").append(SEPARATOR).append(resultSet.getString("TABLE_COLLATION")).append('\n');
+            }
+        }
+
+        PreparedStatement preparedStatement = StatementCache.prepareStatement(informationSchemaConnection, "SELECT TABLE_NAME, COLUMN_NAME, COLUMN_TYPE, COLLATION_NAME FROM COLUMNS WHERE TABLE_SCHEMA = ? ORDER BY TABLE_NAME, ORDINAL_POSITION;");
+        preparedStatement.setString(1, converter.getDatabaseName());
+        converter.appendToAllQueries(StatementCache.asSql(preparedStatement).replace("FROM COLUMNS", "FROM INFORMATION_SCHEMA.COLUMNS"));
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+            while (resultSet.next()) {
+                StringBuilder table = tables.get(resultSet.getString("TABLE_NAME"));
+                //columns of views are not converted
+                if (table != null) {
+                    table.append("COLUMN").append(SEPARATOR).append(resultSet.getString("COLUMN_NAME")).append(SEPARATOR).append(resultSet.getString("COLUMN_TYPE"))
+                            .append(SEPARATOR).append(resultSet.getString("COLLATION_NAME")).append('\n');
+                }
+            }
+        }
+
+        //index entries are sorted, so that the order of the snapshot does not change the fingerprint
+        Map<String, List<String>> indexes = new HashMap<>();
+        addIndexes(indexes, "PRIMARY", snapshot.getPrimaryKeyIndexes());
+        addIndexes(indexes, "UNIQUE", snapshot.getUniqueKeyIndexes());
+        addIndexes(indexes, "FOREIGN", snapshot.getForeignKeyIndexes());
+        addIndexes(indexes, "OTHER", snapshot.getOtherIndexes());
+
+        SchemaManifest manifest = new SchemaManifest(manifestFile);
+        for (Map.Entry<String, StringBuilder> table : tables.entrySet()) {
+            List<String> tableIndexes = indexes.getOrDefault(table.getKey(), Collections.emptyList());
+            Collections.sort(tableIndexes);
+            for (String index : tableIndexes) {
+                table.getValue().append(index).append('\n');
+            }
+            manifest.fingerprints.put(table.getKey(), sha256(table.getValue().toString()));
+        }
+        return manifest;
+    }
+
+    private static void addIndexes(Map<String, List<String>> indexes, String category, List<KeyDetail> keyDetails) {
+        for (KeyDetail index : keyDetails) {
+            indexes.computeIfAbsent(index.getTableName(), key -> new ArrayList<>()).add(String.join(String.valueOf(SEPARATOR), category, index.getConstraintName(),
+                    String.valueOf(index.getOrdinalPosition()), index.getColumnName(), String.valueOf(index.getPrefixLength()),
+                    String.valueOf(index.getReferencedTableName()), String.valueOf(index.getReferencedColumnName())));
+        }
+    }
+
+    private static String sha256(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            //every JVM supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public Path getManifestFile() {
+        return manifestFile;
+    }
+
+    //new tables and tables whose columns or indexes changed since this manifest was stored
+    public Set<String> getDriftedTables(SchemaManifest current) {
+        Set<String> driftedTables = new TreeSet<>();
+        for (Map.Entry<String, String> table : current.fingerprints.entrySet()) {
+            if (!table.getValue().equals(fingerprints.get(table.getKey()))) {
+                driftedTables.add(table.getKey());
+            }
+        }
+        return driftedTables;
+    }
+
+    //written to a temporary file first, so that a crash never leaves a partial manifest
+    public void save() throws SQLException {
+        StringBuilder data = new StringBuilder();
+        for (Map.Entry<String, String> table : fingerprints.entrySet()) {
+            data.append("TABLE\t").append(table.getValue()).append('\t').append(table.getKey()).append('\n');
+        }
+        try {
+            Path temporaryFile = Paths.get(manifestFile + ".tmp");
+            Files.write(temporaryFile, data.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temporaryFile, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new SQLException("Could not write schema manifest " + manifestFile, e);
+        }
+        LOGGER.info("Stored fingerprints of " + fingerprints.size() + " tables in " + manifestFile);
+    }
+}
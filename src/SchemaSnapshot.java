@@ -0,0 +1,556 @@
+/**
+ * Loads all the index metadata of a database with a handful of set based queries on INFORMATION_SCHEMA
+ * (COLUMNS, STATISTICS, KEY_COLUMN_USAGE, TABLE_CONSTRAINTS and REFERENTIAL_CONSTRAINTS) and joins them in memory
+ * into primary key, unique key, foreign key and other indexes.
+ *
+ * A snapshot is immutable once built, so the snapshot taken before the conversion stays as it was. After the conversion
+ * only the converted tables are loaded again and compared with the snapshot expected from the conversion.
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+
+public class SchemaSnapshot {
+
+    private List<KeyDetail> primaryKeyIndexes = new ArrayList<>();
+    private List<KeyDetail> uniqueKeyIndexes = new ArrayList<>();
+    private List<KeyDetail> foreignKeyIndexes = new ArrayList<>();
+    private List<KeyDetail> otherIndexes = new ArrayList<>();
+
+    //table.constraint -> " ON DELETE rule ON UPDATE rule" of every foreign key
+    private Map<String, String> foreignKeyRules = new HashMap<>();
+
+    //table.index of every index present in the database
+    private Set<String> indexNames = new HashSet<>();
+
+    //table.column -> collation of every indexed character column
+    private Map<String, String> columnCollations = new HashMap<>();
+
+    //tableName -> name and collation (null for other types) of every column in column order, empty in a snapshot restored from a journal
+    private Map<String, List<String[]>> tableColumns = new HashMap<>();
+
+    private SchemaSnapshot() {
+    }
+
+    //snapshot stored by an earlier run, for example in the checkpoint journal
+    public static SchemaSnapshot restore(List<KeyDetail> primaryKeyIndexes, List<KeyDetail> uniqueKeyIndexes, List<KeyDetail> foreignKeyIndexes, List<KeyDetail> otherIndexes,
+                                         Map<String, String> foreignKeyRules, Set<String> indexNames, Map<String, String> columnCollations) {
+        SchemaSnapshot snapshot = new SchemaSnapshot();
+        snapshot.primaryKeyIndexes = primaryKeyIndexes;
+        snapshot.uniqueKeyIndexes = uniqueKeyIndexes;
+        snapshot.foreignKeyIndexes = foreignKeyIndexes;
+        snapshot.otherIndexes = otherIndexes;
+        snapshot.foreignKeyRules = foreignKeyRules;
+        snapshot.indexNames = indexNames;
+        snapshot.columnCollations = columnCollations;
+        return snapshot.freeze();
+    }
+
+    public static SchemaSnapshot load(DatabaseConverter converter, Connection informationSchemaConnection) throws SQLException {
+        return load(converter, informationSchemaConnection, null);
+    }
+
+    //snapshot of only the given tables, or of all tables when tableNames is null
+    public static SchemaSnapshot load(DatabaseConverter converter, Connection informationSchemaConnection, Collection<String> tableNames) throws SQLException {
+        String databaseName = converter.getDatabaseName();
+        Builder builder = new Builder();
+        if (tableNames != null && tableNames.isEmpty()) {
+            return builder.build();
+        }
+        String tableFilter = getTableFilter(tableNames);
+
+        PreparedStatement preparedStatement = StatementCache.prepareStatement(informationSchemaConnection, "SELECT TABLE_NAME, COLUMN_NAME, INDEX_NAME, SEQ_IN_INDEX, SUB_PART FROM STATISTICS WHERE TABLE_SCHEMA = ?" + tableFilter + " ORDER BY TABLE_NAME, INDEX_NAME, SEQ_IN_INDEX;");
+        setParameters(preparedStatement, databaseName, tableNames);
+        converter.appendToAllQueries(StatementCache.asSql(preparedStatement).replace("FROM STATISTICS", "FROM INFORMATION_SCHEMA.STATISTICS"));
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+            while (resultSet.next()) {
+                builder.addIndexEntry(resultSet.getString("TABLE_NAME"), resultSet.getString("COLUMN_NAME"), resultSet.getString("INDEX_NAME"), resultSet.getString("SEQ_IN_INDEX"), resultSet.getString("SUB_PART"));
+            }
+        }
+
+        preparedStatement = StatementCache.prepareStatement(informationSchemaConnection, "SELECT TABLE_NAME, CONSTRAINT_NAME, CONSTRAINT_TYPE FROM TABLE_CONSTRAINTS WHERE TABLE_SCHEMA = ?" + tableFilter + ";");
+        setParameters(preparedStatement, databaseName, tableNames);
+        converter.appendToAllQueries(StatementCache.asSql(preparedStatement).replace("FROM TABLE_CONSTRAINTS", "FROM INFORMATION_SCHEMA.TABLE_CONSTRAINTS"));
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+            while (resultSet.next()) {
+                builder.addConstraint(resultSet.getString("TABLE_NAME"), resultSet.getString("CONSTRAINT_NAME"), resultSet.getString("CONSTRAINT_TYPE"));
+            }
+        }
+
+        preparedStatement = StatementCache.prepareStatement(informationSchemaConnection, "SELECT TABLE_NAME, CONSTRAINT_NAME, UPDATE_RULE, DELETE_RULE FROM REFERENTIAL_CONSTRAINTS WHERE CONSTRAINT_SCHEMA = ?" + tableFilter + ";");
+        setParameters(preparedStatement, databaseName, tableNames);
+        converter.appendToAllQueries(StatementCache.asSql(preparedStatement).replace("FROM REFERENTIAL_CONSTRAINTS", "FROM INFORMATION_SCHEMA.REFERENTIAL_CONSTRAINTS"));
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+            while (resultSet.next()) {
+                builder.addForeignKeyRule(resultSet.getString("TABLE_NAME"), resultSet.getString("CONSTRAINT_NAME"), resultSet.getString("DELETE_RULE"), resultSet.getString("UPDATE_RULE"));
+            }
+        }
+
+        preparedStatement = StatementCache.prepareStatement(informationSchemaConnection, "SELECT TABLE_NAME, COLUMN_NAME, CONSTRAINT_NAME, REFERENCED_TABLE_NAME, REFERENCED_COLUMN_NAME, ORDINAL_POSITION FROM KEY_COLUMN_USAGE WHERE TABLE_SCHEMA = ?" + tableFilter + " ORDER BY TABLE_NAME, CONSTRAINT_NAME, ORDINAL_POSITION;");
+        setParameters(preparedStatement, databaseName, tableNames);
+        converter.appendToAllQueries(StatementCache.asSql(preparedStatement).replace("FROM KEY_COLUMN_USAGE", "FROM INFORMATION_SCHEMA.KEY_COLUMN_USAGE"));
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+            while (resultSet.next()) {
+                builder.addKeyUsage(resultSet.getString("TABLE_NAME"), resultSet.getString("COLUMN_NAME"), resultSet.getString("CONSTRAINT_NAME"),
+                        resultSet.getString("REFERENCED_TABLE_NAME"), resultSet.getString("REFERENCED_COLUMN_NAME"), resultSet.getString("ORDINAL_POSITION"));
+            }
+        }
+
+        //columns come last, every column is classified as soon as it is read
+        preparedStatement = StatementCache.prepareStatement(informationSchemaConnection, "SELECT TABLE_NAME, COLUMN_NAME, COLLATION_NAME, CHARACTER_MAXIMUM_LENGTH FROM COLUMNS WHERE TABLE_SCHEMA = ?" + tableFilter + " ORDER BY TABLE_NAME, ORDINAL_POSITION;");
+        setParameters(preparedStatement, databaseName, tableNames);
+        converter.appendToAllQueries(StatementCache.asSql(preparedStatement).replace("FROM COLUMNS", "FROM INFORMATION_SCHEMA.COLUMNS"));
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+            while (resultSet.next()) {
+                builder.addColumn(resultSet.getString("TABLE_NAME"), resultSet.getString("COLUMN_NAME"), resultSet.getString("COLLATION_NAME"), resultSet.getLong("CHARACTER_MAXIMUM_LENGTH"));
+            }
+        }
+
+        return builder.build();
+    }
+
+    // AND TABLE_NAME IN (?, ?, ?)
+    private static String getTableFilter(Collection<String> tableNames) {
+        return tableNames == null ? "" : " AND TABLE_NAME IN (" + String.join(", ", Collections.nCopies(tableNames.size(), "?")) + ")";
+    }
+
+    private static void setParameters(PreparedStatement preparedStatement, String databaseName, Collection<String> tableNames) throws SQLException {
+        preparedStatement.setString(1, databaseName);
+        if (tableNames != null) {
+            int parameterIndex = 2;
+            for (String tableName : tableNames) {
+                preparedStatement.setString(parameterIndex++, tableName);
+            }
+        }
+    }
+
+    /**
+     * Joins the rows of the INFORMATION_SCHEMA views into a snapshot. Index entries, constraints, foreign key rules and key usages
+     * are added first, then every column is classified as soon as it is added, so that the columns can be streamed.
+     * Rows can come from the database or from any other source of metadata, for example a benchmark.
+     */
+    public static class Builder {
+
+        private SchemaSnapshot snapshot = new SchemaSnapshot();
+
+        //table.column -> index rows of that column, same rows as SHOW INDEX FROM table WHERE COLUMN_NAME = column
+        private Map<String, List<String[]>> indexesByColumn = new HashMap<>();
+
+        //table.constraint -> PRIMARY KEY, UNIQUE or FOREIGN KEY
+        private Map<String, String> constraintTypes = new HashMap<>();
+
+        //table.column -> key usage rows of that column
+        private Map<String, List<String[]>> keyUsagesByColumn = new HashMap<>();
+
+        //(table, constraint, column, position) of every index entry which is a primary key, unique key or foreign key
+        private Set<List<String>> claimedIndexEntries = new HashSet<>();
+
+        //the single instance of every name of this snapshot, dropped with the builder so that converting many databases does not keep them all
+        private Map<String, String> symbols = new HashMap<>();
+
+        private String symbol(String name) {
+            if (name == null) {
+                return null;
+            }
+            String symbol = symbols.putIfAbsent(name, name);
+            return symbol == null ? name : symbol;
+        }
+
+        //subPart is null when the whole column is indexed
+        public void addIndexEntry(String tableName, String columnName, String indexName, String seqInIndex, String subPart) {
+            snapshot.indexNames.add(columnKey(tableName, indexName));
+            indexesByColumn.computeIfAbsent(columnKey(tableName, columnName), k -> new ArrayList<>()).add(new String[]{symbol(indexName), seqInIndex, subPart});
+        }
+
+        public void addConstraint(String tableName, String constraintName, String constraintType) {
+            constraintTypes.put(columnKey(tableName, constraintName), constraintType);
+        }
+
+        public void addForeignKeyRule(String tableName, String constraintName, String deleteRule, String updateRule) {
+            snapshot.foreignKeyRules.put(columnKey(tableName, constraintName), " ON DELETE " + deleteRule + " ON UPDATE " + updateRule);
+        }
+
+        public void addKeyUsage(String tableName, String columnName, String constraintName, String referencedTableName, String referencedColumnName, String ordinalPosition) {
+            keyUsagesByColumn.computeIfAbsent(columnKey(tableName, columnName), k -> new ArrayList<>()).add(new String[]{symbol(constraintName), symbol(referencedTableName), symbol(referencedColumnName), ordinalPosition});
+        }
+
+        public void addColumn(String tableName, String columnName, String collationName, long characterMaxLength) {
+            tableName = symbol(tableName);
+            columnName = symbol(columnName);
+            collationName = symbol(collationName);
+            boolean hasCollation = collationName != null && !collationName.isEmpty();
+            String key = columnKey(tableName, columnName);
+            snapshot.tableColumns.computeIfAbsent(tableName, k -> new ArrayList<>()).add(new String[]{columnName, hasCollation ? collationName : null});
+
+            //(constraint, position) -> prefix length of every index entry of this column
+            List<String[]> indexes = indexesByColumn.getOrDefault(key, Collections.emptyList());
+            if (hasCollation && (!indexes.isEmpty() || keyUsagesByColumn.containsKey(key))) {
+                snapshot.columnCollations.put(key, collationName);
+            }
+            Map<List<String>, Integer> prefixLengths = new HashMap<>();
+            for (String[] index : indexes) {
+                prefixLengths.put(Arrays.asList(index[0], index[1]), index[2] == null ? 0 : Integer.parseInt(index[2]));
+            }
+
+            //primary key, unique key and foreign key entries of this column are claimed first, every other index entry of the column is an other index
+            for (String[] keyUsage : keyUsagesByColumn.getOrDefault(key, Collections.emptyList())) {
+                String constraintName = keyUsage[0];
+                String referencedTableName = keyUsage[1];
+                String referencedColumnName = keyUsage[2];
+                String ordinalPosition = keyUsage[3];
+                KeyDetail keyDetail = new KeyDetail(tableName, columnName, constraintName, referencedTableName, referencedColumnName, Integer.parseInt(ordinalPosition), characterMaxLength,
+                        prefixLengths.getOrDefault(Arrays.asList(constraintName, ordinalPosition), 0), hasCollation);
+
+                String constraintType = constraintTypes.get(columnKey(tableName, constraintName));
+                if ("PRIMARY KEY".equals(constraintType)) {
+                    snapshot.primaryKeyIndexes.add(keyDetail);
+                } else if ("FOREIGN KEY".equals(constraintType) || referencedTableName != null) {
+                    snapshot.foreignKeyIndexes.add(keyDetail);
+                } else if ("UNIQUE".equals(constraintType)) {
+                    snapshot.uniqueKeyIndexes.add(keyDetail);
+                } else {
+                    continue;
+                }
+                claimedIndexEntries.add(indexEntryKey(tableName, constraintName, columnName, ordinalPosition));
+            }
+
+            for (String[] index : indexes) {
+                if (!claimedIndexEntries.contains(indexEntryKey(tableName, index[0], columnName, index[1]))) {
+                    snapshot.otherIndexes.add(new KeyDetail(tableName, columnName, index[0], null, null, Integer.parseInt(index[1]), characterMaxLength,
+                            prefixLengths.get(Arrays.asList(index[0], index[1])), hasCollation));
+                }
+            }
+        }
+
+        public SchemaSnapshot build() {
+            return snapshot.freeze();
+        }
+    }
+
+    private static String columnKey(String tableName, String name) {
+        return tableName + "." + name;
+    }
+
+    //a list instead of a joined string, so that names containing the separator cannot collide
+    private static List<String> indexEntryKey(String tableName, String constraintName, String columnName, String position) {
+        return Arrays.asList(tableName, constraintName, columnName, position);
+    }
+
+    /*
+    Same snapshot with only the indexes which have to be dropped and recreated for the new collation : indexes with a column
+    whose collation changes, and foreign keys referencing such a column. Indexes of numeric and date columns, and of columns
+    which already have the new collation, are left alone. Primary keys are never dropped, they are all kept for copying and verifying rows in key order.
+    */
+    public SchemaSnapshot getAffectedIndexes(String newCollation) {
+        Set<String> affectedConstraints = new HashSet<>();
+        for (List<KeyDetail> indexes : Arrays.asList(uniqueKeyIndexes, foreignKeyIndexes, otherIndexes)) {
+            for (KeyDetail index : indexes) {
+                //columns of a foreign key have the same type as the referenced columns, so both are character columns or none
+                if (index.isHasCollation() && (isConverted(index.getTableName(), index.getColumnName(), newCollation)
+                        || (index.getReferencedTableName() != null && isConverted(index.getReferencedTableName(), index.getReferencedColumnName(), newCollation)))) {
+                    affectedConstraints.add(columnKey(index.getTableName(), index.getConstraintName()));
+                }
+            }
+        }
+
+        SchemaSnapshot snapshot = new SchemaSnapshot();
+        snapshot.primaryKeyIndexes = primaryKeyIndexes;
+        snapshot.uniqueKeyIndexes = filterIndexes(uniqueKeyIndexes, affectedConstraints);
+        snapshot.foreignKeyIndexes = filterIndexes(foreignKeyIndexes, affectedConstraints);
+        snapshot.otherIndexes = filterIndexes(otherIndexes, affectedConstraints);
+        snapshot.foreignKeyRules = foreignKeyRules;
+        snapshot.indexNames = indexNames;
+        snapshot.columnCollations = columnCollations;
+        snapshot.tableColumns = tableColumns;
+        return snapshot.freeze();
+    }
+
+    //same snapshot with other entries for the unique, foreign and other indexes, for example with their prefix lengths planned
+    public SchemaSnapshot withIndexes(List<KeyDetail> uniqueKeyIndexes, List<KeyDetail> foreignKeyIndexes, List<KeyDetail> otherIndexes) {
+        SchemaSnapshot snapshot = new SchemaSnapshot();
+        snapshot.primaryKeyIndexes = primaryKeyIndexes;
+        snapshot.uniqueKeyIndexes = uniqueKeyIndexes;
+        snapshot.foreignKeyIndexes = foreignKeyIndexes;
+        snapshot.otherIndexes = otherIndexes;
+        snapshot.foreignKeyRules = foreignKeyRules;
+        snapshot.indexNames = indexNames;
+        snapshot.columnCollations = columnCollations;
+        snapshot.tableColumns = tableColumns;
+        return snapshot.freeze();
+    }
+
+    /*
+    Same snapshot with every foreign key of the given full snapshot on or referencing one of the tables, whatever its columns.
+    A shadow copy is swapped with a RENAME, which moves these foreign keys onto the old table, so they are dropped and added back as well.
+    */
+    public SchemaSnapshot withForeignKeysOf(SchemaSnapshot fullSnapshot, Set<String> tableNames) {
+        Set<String> constraints = new HashSet<>();
+        for (KeyDetail index : foreignKeyIndexes) {
+            constraints.add(columnKey(index.getTableName(), index.getConstraintName()));
+        }
+        List<KeyDetail> foreignKeys = new ArrayList<>(foreignKeyIndexes);
+        for (KeyDetail index : fullSnapshot.foreignKeyIndexes) {
+            if ((tableNames.contains(index.getTableName()) || tableNames.contains(index.getReferencedTableName()))
+                    && !constraints.contains(columnKey(index.getTableName(), index.getConstraintName()))) {
+                foreignKeys.add(index);
+            }
+        }
+        return withIndexes(uniqueKeyIndexes, foreignKeys, otherIndexes);
+    }
+
+    private SchemaSnapshot freeze() {
+        primaryKeyIndexes = Collections.unmodifiableList(primaryKeyIndexes);
+        uniqueKeyIndexes = Collections.unmodifiableList(uniqueKeyIndexes);
+        foreignKeyIndexes = Collections.unmodifiableList(foreignKeyIndexes);
+        otherIndexes = Collections.unmodifiableList(otherIndexes);
+        foreignKeyRules = Collections.unmodifiableMap(foreignKeyRules);
+        indexNames = Collections.unmodifiableSet(indexNames);
+        columnCollations = Collections.unmodifiableMap(columnCollations);
+        tableColumns = Collections.unmodifiableMap(tableColumns);
+        return this;
+    }
+
+    /*
+    Snapshot of the tables as the conversion should leave them : the indexes of the affected snapshot recreated with the prefix length
+    of the new charset, all other indexes unchanged, and every character column of the converted tables with the new collation.
+    */
+    public SchemaSnapshot getExpectedTarget(SchemaSnapshot affectedIndexes, Set<String> convertedTables, String newCollation) {
+        //(table, constraint, column, position) -> prefix length planned for every entry of the recreated indexes
+        Map<List<String>, Integer> affectedConstraints = new HashMap<>();
+        for (List<KeyDetail> indexes : Arrays.asList(affectedIndexes.uniqueKeyIndexes, affectedIndexes.foreignKeyIndexes, affectedIndexes.otherIndexes)) {
+            for (KeyDetail index : indexes) {
+                affectedConstraints.put(indexEntryKey(index.getTableName(), index.getConstraintName(), index.getColumnName(), String.valueOf(index.getOrdinalPosition())), index.getPrefixLength());
+            }
+        }
+
+        SchemaSnapshot snapshot = new SchemaSnapshot();
+        snapshot.primaryKeyIndexes = primaryKeyIndexes;
+        snapshot.uniqueKeyIndexes = getRecreatedIndexes(uniqueKeyIndexes, affectedConstraints);
+        snapshot.foreignKeyIndexes = getRecreatedIndexes(foreignKeyIndexes, affectedConstraints);
+        snapshot.otherIndexes = getRecreatedIndexes(otherIndexes, affectedConstraints);
+        snapshot.foreignKeyRules = foreignKeyRules;
+        snapshot.indexNames = indexNames;
+        for (Map.Entry<String, String> collation : columnCollations.entrySet()) {
+            String tableName = collation.getKey().substring(0, collation.getKey().lastIndexOf('.'));
+            snapshot.columnCollations.put(collation.getKey(), convertedTables.contains(tableName) ? newCollation : collation.getValue());
+        }
+        for (Map.Entry<String, List<String[]>> table : tableColumns.entrySet()) {
+            List<String[]> columns = new ArrayList<>();
+            for (String[] column : table.getValue()) {
+                columns.add(new String[]{column[0], column[1] != null && convertedTables.contains(table.getKey()) ? newCollation : column[1]});
+            }
+            snapshot.tableColumns.put(table.getKey(), columns);
+        }
+        return snapshot.freeze();
+    }
+
+    //the index is recreated with the planned prefix length, the server indexes the whole column when the prefix covers it
+    private static List<KeyDetail> getRecreatedIndexes(List<KeyDetail> indexes, Map<List<String>, Integer> affectedConstraints) {
+        List<KeyDetail> recreatedIndexes = new ArrayList<>();
+        for (KeyDetail index : indexes) {
+            Integer prefixLength = affectedConstraints.get(indexEntryKey(index.getTableName(), index.getConstraintName(), index.getColumnName(), String.valueOf(index.getOrdinalPosition())));
+            if (prefixLength != null) {
+                recreatedIndexes.add(index.withPrefixLength(prefixLength >= index.getCharacterMaxLength() ? 0 : prefixLength));
+            } else {
+                recreatedIndexes.add(index);
+            }
+        }
+        return recreatedIndexes;
+    }
+
+    /*
+    Differences of the given tables between this expected snapshot and the actual one : indexes which are missing, whose columns,
+    column order, prefix lengths or references changed, columns which are missing or moved, and columns with another collation.
+    Indexes added by the server, for example for a foreign key, are not differences.
+    */
+    public List<String> diff(SchemaSnapshot actual, Collection<String> tableNames) {
+        Set<String> tables = new HashSet<>(tableNames);
+        Map<String, String> expectedIndexes = describeIndexes(tables);
+        Map<String, String> actualIndexes = actual.describeIndexes(tables);
+
+        List<String> differences = new ArrayList<>();
+        for (Map.Entry<String, String> index : expectedIndexes.entrySet()) {
+            String actualIndex = actualIndexes.get(index.getKey());
+            if (actualIndex == null) {
+                differences.add("Missing index " + index.getKey() + " : expected " + index.getValue());
+            } else if (!actualIndex.equals(index.getValue())) {
+                differences.add("Altered index " + index.getKey() + " : expected " + index.getValue() + " but found " + actualIndex);
+            }
+        }
+
+        for (String tableName : new TreeSet<>(tables)) {
+            List<String[]> expectedColumns = tableColumns.get(tableName);
+            List<String[]> actualColumns = actual.tableColumns.getOrDefault(tableName, Collections.emptyList());
+            //a snapshot restored from a journal has no columns, so only the collations of the indexed columns are compared
+            if (expectedColumns == null) {
+                continue;
+            }
+            if (!getColumnNames(expectedColumns).equals(getColumnNames(actualColumns))) {
+                differences.add("Altered columns of " + tableName + " : expected " + getColumnNames(expectedColumns) + " but found " + getColumnNames(actualColumns));
+                continue;
+            }
+            for (int columnNo = 0; columnNo < expectedColumns.size(); columnNo++) {
+                if (!Objects.equals(expectedColumns.get(columnNo)[1], actualColumns.get(columnNo)[1])) {
+                    differences.add("Altered collation of " + columnKey(tableName, expectedColumns.get(columnNo)[0]) + " : expected " + expectedColumns.get(columnNo)[1]
+                            + " but found " + actualColumns.get(columnNo)[1]);
+                }
+            }
+        }
+        for (Map.Entry<String, String> collation : columnCollations.entrySet()) {
+            String tableName = collation.getKey().substring(0, collation.getKey().lastIndexOf('.'));
+            if (tables.contains(tableName) && !tableColumns.containsKey(tableName) && !collation.getValue().equals(actual.columnCollations.get(collation.getKey()))) {
+                differences.add("Altered collation of " + collation.getKey() + " : expected " + collation.getValue() + " but found " + actual.columnCollations.get(collation.getKey()));
+            }
+        }
+        return differences;
+    }
+
+    private static List<String> getColumnNames(List<String[]> columns) {
+        List<String> columnNames = new ArrayList<>();
+        for (String[] column : columns) {
+            columnNames.add(column[0]);
+        }
+        return columnNames;
+    }
+
+    //table.index -> UNIQUE (column_1(191), column_2) of every index of the tables, FOREIGN (column -> table.column) for foreign keys
+    private Map<String, String> describeIndexes(Set<String> tableNames) {
+        Map<String, List<KeyDetail>> indexes = new TreeMap<>();
+        Map<String, String> categories = new HashMap<>();
+        String[] names = {"PRIMARY", "UNIQUE", "FOREIGN", "OTHER"};
+        List<List<KeyDetail>> lists = Arrays.asList(primaryKeyIndexes, uniqueKeyIndexes, foreignKeyIndexes, otherIndexes);
+        for (int listNo = 0; listNo < lists.size(); listNo++) {
+            for (KeyDetail index : lists.get(listNo)) {
+                if (tableNames.contains(index.getTableName())) {
+                    String key = columnKey(index.getTableName(), index.getConstraintName());
+                    indexes.computeIfAbsent(key, k -> new ArrayList<>()).add(index);
+                    categories.put(key, names[listNo]);
+                }
+            }
+        }
+
+        Map<String, String> descriptions = new TreeMap<>();
+        for (Map.Entry<String, List<KeyDetail>> index : indexes.entrySet()) {
+            List<KeyDetail> columns = new ArrayList<>(index.getValue());
+            columns.sort(Comparator.comparingInt(KeyDetail::getOrdinalPosition));
+            List<String> indexedColumns = new ArrayList<>();
+            for (KeyDetail column : columns) {
+                //the server indexes foreign key columns itself, so only their columns and references are compared
+                indexedColumns.add(column.getReferencedTableName() != null ? column.getColumnName() + " -> " + column.getReferencedTableName() + "." + column.getReferencedColumnName()
+                        : column.getIndexedColumn());
+            }
+            descriptions.put(index.getKey(), categories.get(index.getKey()) + " (" + String.join(", ", indexedColumns) + ")");
+        }
+        return descriptions;
+    }
+
+    //tables with at least one index or column in this snapshot
+    public Set<String> getTableNames() {
+        Set<String> tableNames = new TreeSet<>(tableColumns.keySet());
+        for (List<KeyDetail> indexes : Arrays.asList(primaryKeyIndexes, uniqueKeyIndexes, foreignKeyIndexes, otherIndexes)) {
+            for (KeyDetail index : indexes) {
+                tableNames.add(index.getTableName());
+            }
+        }
+        return tableNames;
+    }
+
+    //this snapshot with the indexes and columns of the given tables taken from the snapshot of these tables
+    public SchemaSnapshot withTables(SchemaSnapshot tables, Collection<String> tableNames) {
+        Set<String> replacedTables = new HashSet<>(tableNames);
+        SchemaSnapshot snapshot = new SchemaSnapshot();
+        snapshot.primaryKeyIndexes = mergeIndexes(primaryKeyIndexes, tables.primaryKeyIndexes, replacedTables);
+        snapshot.uniqueKeyIndexes = mergeIndexes(uniqueKeyIndexes, tables.uniqueKeyIndexes, replacedTables);
+        snapshot.foreignKeyIndexes = mergeIndexes(foreignKeyIndexes, tables.foreignKeyIndexes, replacedTables);
+        snapshot.otherIndexes = mergeIndexes(otherIndexes, tables.otherIndexes, replacedTables);
+        mergeEntries(foreignKeyRules, tables.foreignKeyRules, replacedTables, snapshot.foreignKeyRules);
+        mergeEntries(columnCollations, tables.columnCollations, replacedTables, snapshot.columnCollations);
+        for (String indexName : indexNames) {
+            if (!replacedTables.contains(indexName.substring(0, indexName.lastIndexOf('.')))) {
+                snapshot.indexNames.add(indexName);
+            }
+        }
+        snapshot.indexNames.addAll(tables.indexNames);
+        snapshot.tableColumns.putAll(tableColumns);
+        snapshot.tableColumns.keySet().removeAll(replacedTables);
+        snapshot.tableColumns.putAll(tables.tableColumns);
+        return snapshot.freeze();
+    }
+
+    private static List<KeyDetail> mergeIndexes(List<KeyDetail> indexes, List<KeyDetail> tableIndexes, Set<String> replacedTables) {
+        List<KeyDetail> mergedIndexes = new ArrayList<>();
+        for (KeyDetail index : indexes) {
+            if (!replacedTables.contains(index.getTableName())) {
+                mergedIndexes.add(index);
+            }
+        }
+        mergedIndexes.addAll(tableIndexes);
+        return mergedIndexes;
+    }
+
+    //entries are keyed by table.name
+    private static void mergeEntries(Map<String, String> entries, Map<String, String> tableEntries, Set<String> replacedTables, Map<String, String> mergedEntries) {
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            if (!replacedTables.contains(entry.getKey().substring(0, entry.getKey().lastIndexOf('.')))) {
+                mergedEntries.put(entry.getKey(), entry.getValue());
+            }
+        }
+        mergedEntries.putAll(tableEntries);
+    }
+
+    //a character column without a known collation, for example in a journal of an older version, is converted as well
+    private boolean isConverted(String tableName, String columnName, String newCollation) {
+        String collation = columnCollations.get(columnKey(tableName, columnName));
+        return collation == null || !collation.equals(newCollation);
+    }
+
+    private static List<KeyDetail> filterIndexes(List<KeyDetail> indexes, Set<String> constraints) {
+        List<KeyDetail> filteredIndexes = new ArrayList<>();
+        for (KeyDetail index : indexes) {
+            if (constraints.contains(columnKey(index.getTableName(), index.getConstraintName()))) {
+                filteredIndexes.add(index);
+            }
+        }
+        return filteredIndexes;
+    }
+
+    public Map<String, String> getColumnCollations() {
+        return columnCollations;
+    }
+
+    public List<KeyDetail> getPrimaryKeyIndexes() {
+        return primaryKeyIndexes;
+    }
+
+    public List<KeyDetail> getUniqueKeyIndexes() {
+        return uniqueKeyIndexes;
+    }
+
+    public List<KeyDetail> getForeignKeyIndexes() {
+        return foreignKeyIndexes;
+    }
+
+    public List<KeyDetail> getOtherIndexes() {
+        return otherIndexes;
+    }
+
+    public Map<String, String> getForeignKeyRules() {
+        return foreignKeyRules;
+    }
+
+    public String getForeignKeyRule(String tableName, String constraintName) {
+        return foreignKeyRules.get(columnKey(tableName, constraintName));
+    }
+
+    public Set<String> getIndexNames() {
+        return indexNames;
+    }
+
+    public boolean hasIndex(String tableName, String indexName) {
+        return indexNames.contains(columnKey(tableName, indexName));
+    }
+}
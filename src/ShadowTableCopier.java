@@ -0,0 +1,297 @@
+/**
+ * Converts a large table without rebuilding it in place, the same way as gh-ost and pt-online-schema-change.
+ * An empty shadow table _table_new is created with the target charset, collation and indexes, rows are copied into it
+ * in primary key ordered, throttled chunks by a ChunkCopier while triggers on the original table replay concurrent writes, and finally both
+ * tables are swapped with an atomic RENAME TABLE. Writes to the table stay available during the whole copy.
+ *
+ * The last copied primary key is stored in a progress file after every chunk, so an interrupted copy resumes where it stopped.
+ * Copying is paused while the pause file exists.
+ *
+ * Rows whose unique keys become equal under the new collation are skipped by INSERT IGNORE or overwritten by the REPLACE of the triggers,
+ * where an ALTER TABLE in place fails with a duplicate key. Both tables are therefore counted in one consistent snapshot before the swap,
+ * and the conversion fails with the shadow table kept when they differ.
+ */
+
+import com.mysql.jdbc.JDBC4PreparedStatement;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ShadowTableCopier {
+
+    private static final Logger LOGGER = Logger.getLogger(ShadowTableCopier.class.getName());
+
+    //first field of a progress file whose values are tagged with their type
+    private static final String PROGRESS_VERSION = "v2";
+
+    private DatabaseConverter converter;
+    private Connection myDBConnection;
+    private String databaseName;
+    private ChunkCopier chunkCopier;
+
+    public ShadowTableCopier(DatabaseConverter converter, Connection myDBConnection, ChunkCopier chunkCopier) {
+        this.converter = converter;
+        this.myDBConnection = myDBConnection;
+        this.databaseName = converter.getDatabaseName();
+        this.chunkCopier = chunkCopier;
+    }
+
+    public static String getShadowTableName(String tableName) {
+        return shortName("_" + tableName + "_new");
+    }
+
+    public static String getOldTableName(String tableName) {
+        return shortName("_" + tableName + "_old");
+    }
+
+    //table and trigger names cannot be longer than 64 characters
+    private static String shortName(String name) {
+        return name.length() > 64 ? name.substring(0, 64) : name;
+    }
+
+    public Path getProgressFile(String tableName) {
+        return converter.getOutputFile("-" + tableName + ".shadow");
+    }
+
+    public Path getPauseFile() {
+        return converter.getOutputFile("-shadow.pause");
+    }
+
+    public void convert(TableConversionPlan tablePlan, List<String> primaryKeyColumns) throws SQLException {
+        String tableName = tablePlan.getTableName();
+        String shadowTableName = getShadowTableName(tableName);
+        String oldTableName = getOldTableName(tableName);
+        List<String> columns = getColumns(tableName);
+        Path progressFile = getProgressFile(tableName);
+
+        List<Object> lastCopiedKey = readProgress(progressFile);
+        if (lastCopiedKey == null || !tableExists(shadowTableName)) {
+            LOGGER.info("Creating shadow table " + shadowTableName + " for table " + tableName);
+            execute(tableName, "DROP TABLE IF EXISTS " + shadowTableName + ";");
+            execute(tableName, "CREATE TABLE " + shadowTableName + " LIKE " + tableName + ";");
+            //the shadow table is empty, so converting it is instant
+            execute(tableName, "ALTER TABLE " + shadowTableName + " " + tablePlan.getAlterClauses(false) + ";");
+            lastCopiedKey = null;
+        } else {
+            LOGGER.info("Resuming copy of table " + tableName + " after primary key " + ChunkCopier.formatKey(lastCopiedKey));
+        }
+        createTriggers(tableName, shadowTableName, columns, primaryKeyColumns);
+
+        copyRows(tableName, shadowTableName, columns, primaryKeyColumns, lastCopiedKey, progressFile);
+        checkRowCounts(tableName, shadowTableName);
+
+        //swap both tables in one atomic statement, triggers move with the old table and are dropped with it
+        LOGGER.info("Swapping table " + tableName + " with " + shadowTableName);
+        execute(tableName, "RENAME TABLE " + tableName + " TO " + oldTableName + ", " + shadowTableName + " TO " + tableName + ";");
+        dropTriggers(tableName);
+        execute(tableName, "DROP TABLE " + oldTableName + ";");
+
+        try {
+            Files.deleteIfExists(progressFile);
+        } catch (IOException e) {
+            LOGGER.warn("Could not delete progress file " + progressFile + " : " + e);
+        }
+    }
+
+    public void copyRows(String tableName, String shadowTableName, List<String> columns, List<String> primaryKeyColumns, List<Object> lastCopiedKey, Path progressFile) throws SQLException {
+        long[] copiedChunks = {0};
+        //the charset of every column is converted by INSERT ... SELECT itself, so columns are selected as they are
+        long copiedRows = chunkCopier.copy(tableName, shadowTableName, columns, columns, primaryKeyColumns, lastCopiedKey, (lastKey, rows) -> {
+            writeProgress(progressFile, lastKey);
+            if (++copiedChunks[0] % 100 == 0) {
+                LOGGER.info("Copied " + rows + " rows of table " + tableName + ", last primary key " + ChunkCopier.formatKey(lastKey) + ", chunk size " + chunkCopier.getChunkSize());
+            }
+            waitWhilePaused();
+        });
+        LOGGER.info("Copied " + copiedRows + " rows of table " + tableName);
+    }
+
+    //the triggers write the shadow table in the transaction of every write, so both tables have the same rows in any consistent snapshot
+    public void checkRowCounts(String tableName, String shadowTableName) throws SQLException {
+        long noOfRows;
+        long noOfShadowRows;
+        boolean autoCommit = myDBConnection.getAutoCommit();
+        try (Statement statement = myDBConnection.createStatement()) {
+            myDBConnection.setAutoCommit(false);
+            statement.execute("START TRANSACTION WITH CONSISTENT SNAPSHOT;");
+            noOfRows = count(statement, tableName);
+            noOfShadowRows = count(statement, shadowTableName);
+            myDBConnection.commit();
+        } finally {
+            myDBConnection.setAutoCommit(autoCommit);
+        }
+        if (noOfRows != noOfShadowRows) {
+            throw new SQLException("Shadow table " + shadowTableName + " has " + noOfShadowRows + " rows but table " + tableName + " has " + noOfRows
+                    + ", rows with unique keys equal under the new collation were skipped or overwritten, table " + tableName + " is not swapped");
+        }
+        LOGGER.info("Shadow table " + shadowTableName + " has all " + noOfRows + " rows of table " + tableName);
+    }
+
+    private long count(Statement statement, String tableName) throws SQLException {
+        String query = "SELECT COUNT(*) FROM " + tableName + ";";
+        converter.appendToAllQueries(query);
+        try (ResultSet resultSet = statement.executeQuery(query)) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+
+    //replays inserts, updates and deletes on the shadow table while rows are being copied
+    public void createTriggers(String tableName, String shadowTableName, List<String> columns, List<String> primaryKeyColumns) throws SQLException {
+        List<String> existingTriggers = new ArrayList<>();
+        PreparedStatement preparedStatement = StatementCache.prepareStatement(myDBConnection, "SELECT TRIGGER_NAME FROM INFORMATION_SCHEMA.TRIGGERS WHERE TRIGGER_SCHEMA = ? AND EVENT_OBJECT_TABLE = ?;");
+        preparedStatement.setString(1, databaseName);
+        preparedStatement.setString(2, tableName);
+        ResultSet resultSet = preparedStatement.executeQuery();
+        while (resultSet.next()) {
+            existingTriggers.add(resultSet.getString("TRIGGER_NAME"));
+        }
+        resultSet.close();
+
+        String columnList = String.join(", ", columns);
+        List<String> newValues = new ArrayList<>();
+        for (String column : columns) {
+            newValues.add("NEW." + column);
+        }
+        List<String> oldKeyConditions = new ArrayList<>();
+        List<String> changedKeyConditions = new ArrayList<>();
+        for (String column : primaryKeyColumns) {
+            oldKeyConditions.add(shadowTableName + "." + column + " <=> OLD." + column);
+            changedKeyConditions.add("OLD." + column + " <=> NEW." + column);
+        }
+        String replaceNewRow = "REPLACE INTO " + shadowTableName + " (" + columnList + ") VALUES (" + String.join(", ", newValues) + ");";
+        String deleteOldRow = "DELETE IGNORE FROM " + shadowTableName + " WHERE " + String.join(" AND ", oldKeyConditions) + ";";
+
+        //triggers already exist when an interrupted copy is resumed, recreating them would lose the writes in between
+        if (!existingTriggers.contains(getTriggerName(tableName, "ins"))) {
+            execute(tableName, "CREATE TRIGGER " + getTriggerName(tableName, "ins") + " AFTER INSERT ON " + tableName + " FOR EACH ROW " + replaceNewRow);
+        }
+        if (!existingTriggers.contains(getTriggerName(tableName, "upd"))) {
+            execute(tableName, "CREATE TRIGGER " + getTriggerName(tableName, "upd") + " AFTER UPDATE ON " + tableName + " FOR EACH ROW BEGIN "
+                    + "DELETE IGNORE FROM " + shadowTableName + " WHERE !(" + String.join(" AND ", changedKeyConditions) + ") AND " + String.join(" AND ", oldKeyConditions) + "; "
+                    + replaceNewRow + " END");
+        }
+        if (!existingTriggers.contains(getTriggerName(tableName, "del"))) {
+            execute(tableName, "CREATE TRIGGER " + getTriggerName(tableName, "del") + " AFTER DELETE ON " + tableName + " FOR EACH ROW " + deleteOldRow);
+        }
+    }
+
+    public void dropTriggers(String tableName) throws SQLException {
+        execute(tableName, "DROP TRIGGER IF EXISTS " + getTriggerName(tableName, "ins") + ";");
+        execute(tableName, "DROP TRIGGER IF EXISTS " + getTriggerName(tableName, "upd") + ";");
+        execute(tableName, "DROP TRIGGER IF EXISTS " + getTriggerName(tableName, "del") + ";");
+    }
+
+    public static String getTriggerName(String tableName, String event) {
+        return shortName("_" + tableName + "_" + event);
+    }
+
+    public List<String> getColumns(String tableName) throws SQLException {
+        List<String> columns = new ArrayList<>();
+        PreparedStatement preparedStatement = StatementCache.prepareStatement(myDBConnection, "SELECT COLUMN_NAME FROM INFORMATION_SCHEMA.COLUMNS WHERE TABLE_SCHEMA = ? AND TABLE_NAME = ? ORDER BY ORDINAL_POSITION;");
+        preparedStatement.setString(1, databaseName);
+        preparedStatement.setString(2, tableName);
+        ResultSet resultSet = preparedStatement.executeQuery();
+        while (resultSet.next()) {
+            columns.add(resultSet.getString("COLUMN_NAME"));
+        }
+        resultSet.close();
+        return columns;
+    }
+
+    public boolean tableExists(String tableName) throws SQLException {
+        PreparedStatement preparedStatement = StatementCache.prepareStatement(myDBConnection, "SELECT TABLE_NAME FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_SCHEMA = ? AND TABLE_NAME = ?;");
+        preparedStatement.setString(1, databaseName);
+        preparedStatement.setString(2, tableName);
+        ResultSet resultSet = preparedStatement.executeQuery();
+        boolean exists = resultSet.next();
+        resultSet.close();
+        return exists;
+    }
+
+    private void execute(String tableName, String query) throws SQLException {
+        PreparedStatement preparedStatement = myDBConnection.prepareStatement(query);
+
+        converter.appendToAllQueries(((JDBC4PreparedStatement)preparedStatement).asSql());
+        converter.appendToRequiredQueries(((JDBC4PreparedStatement)preparedStatement).asSql());
+
+        preparedStatement.execute();
+        converter.queryCompleted(tableName, preparedStatement.getUpdateCount());
+        preparedStatement.close();
+    }
+
+    /*
+    v2, then every value tagged : u followed by the hex of the UTF-8 bytes of a value, so that tabs and line breaks in a key are kept,
+    or x followed by the hex of a binary value. Values tagged s hold the value itself. Progress of an older version has no v2 and only values.
+    */
+    private List<Object> readProgress(Path progressFile) {
+        try {
+            if (Files.exists(progressFile)) {
+                List<String> lines = Files.readAllLines(progressFile, StandardCharsets.UTF_8);
+                if (!lines.isEmpty()) {
+                    List<String> values = new ArrayList<>(Arrays.asList(lines.get(0).split("\t", -1)));
+                    boolean tagged = values.get(0).equals(PROGRESS_VERSION);
+                    if (tagged) {
+                        values.remove(0);
+                    }
+                    List<Object> key = new ArrayList<>();
+                    for (String value : values) {
+                        if (!tagged) {
+                            key.add(value);
+                        } else if (value.startsWith("x")) {
+                            key.add(ChunkCopier.fromHex(value.substring(1)));
+                        } else if (value.startsWith("u")) {
+                            key.add(new String(ChunkCopier.fromHex(value.substring(1)), StandardCharsets.UTF_8));
+                        } else {
+                            key.add(value.substring(1));
+                        }
+                    }
+                    return key;
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Could not read progress file " + progressFile + " : " + e);
+        }
+        return null;
+    }
+
+    private void writeProgress(Path progressFile, List<Object> lastCopiedKey) throws SQLException {
+        List<String> values = new ArrayList<>();
+        values.add(PROGRESS_VERSION);
+        for (Object value : lastCopiedKey) {
+            values.add(value instanceof byte[] ? "x" + ChunkCopier.toHex((byte[]) value) : "u" + ChunkCopier.toHex(String.valueOf(value).getBytes(StandardCharsets.UTF_8)));
+        }
+        try {
+            Files.write(progressFile, String.join("\t", values).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new SQLException("Could not write progress file " + progressFile, e);
+        }
+    }
+
+    private void waitWhilePaused() throws SQLException {
+        Path pauseFile = getPauseFile();
+        if (Files.exists(pauseFile)) {
+            LOGGER.info("Copying paused, delete " + pauseFile + " to resume");
+            while (Files.exists(pauseFile)) {
+                sleep(1000);
+            }
+            LOGGER.info("Copying resumed");
+        }
+    }
+
+    private void sleep(long millis) throws SQLException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while copying rows", e);
+        }
+    }
+}
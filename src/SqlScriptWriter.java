@@ -0,0 +1,145 @@
+/**
+ * Appends every query to an sql script file while the conversion is running, instead of keeping all queries in memory
+ * and writing them only after a successful run. Queries are buffered and written through a FileChannel, and synced to disk
+ * on every checkpoint, so the script of a failed run contains every query up to the failure.
+ *
+ * Optionally the script is gzip compressed, and every query is preceded by its number and start time and followed by its duration.
+ * The duration of every query is measured also without timestamps, and returned to the caller for the run metrics.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.zip.GZIPOutputStream;
+
+public class SqlScriptWriter {
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private Path scriptFile;
+    private boolean timestamps;
+    private FileChannel fileChannel;
+    private OutputStream outputStream;
+
+    private long noOfQueries = 0;
+    private SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+
+    //last query appended by every thread, until it is completed
+    private ThreadLocal<RunningQuery> runningQuery = new ThreadLocal<>();
+
+    public static class RunningQuery {
+        private long queryNo;
+        private long startNanos;
+        private String query;
+        private long millis = -1;
+
+        private RunningQuery(long queryNo, long startNanos, String query) {
+            this.queryNo = queryNo;
+            this.startNanos = startNanos;
+            this.query = query;
+        }
+
+        public String getQuery() {
+            return query;
+        }
+
+        //duration of a completed query
+        public long getMillis() {
+            return millis;
+        }
+    }
+
+    //append is used when a failed run is resumed, so that the script contains the queries of both runs
+    public SqlScriptWriter(Path scriptFile, boolean append, boolean gzip, boolean timestamps) throws SQLException {
+        this.scriptFile = scriptFile;
+        this.timestamps = timestamps;
+        try {
+            fileChannel = FileChannel.open(scriptFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+            outputStream = Channels.newOutputStream(fileChannel);
+            if (gzip) {
+                //sync flush makes every checkpoint readable, a resumed run appends another gzip member which gunzip reads as one stream
+                outputStream = new GZIPOutputStream(outputStream, BUFFER_SIZE, true);
+            }
+            outputStream = new BufferedOutputStream(outputStream, BUFFER_SIZE);
+        } catch (IOException e) {
+            throw new SQLException("Could not open sql script " + scriptFile, e);
+        }
+    }
+
+    public Path getScriptFile() {
+        return scriptFile;
+    }
+
+    public synchronized long getNoOfQueries() {
+        return noOfQueries;
+    }
+
+    public synchronized void append(String query) throws SQLException {
+        long queryNo = ++noOfQueries;
+        runningQuery.set(new RunningQuery(queryNo, System.nanoTime(), query));
+        if (timestamps) {
+            write("-- #" + queryNo + " " + dateFormat.format(new Date()) + "\n");
+        }
+        write(query);
+    }
+
+    //the last query appended by this thread with its duration, which is written when timestamps are enabled, null when there is none
+    public synchronized RunningQuery completed() throws SQLException {
+        RunningQuery query = runningQuery.get();
+        if (query != null) {
+            runningQuery.remove();
+            query.millis = (System.nanoTime() - query.startNanos) / 1000000;
+            if (timestamps) {
+                write("-- #" + query.queryNo + " took " + query.millis + " ms\n");
+            }
+        }
+        return query;
+    }
+
+    //makes every query appended so far durable
+    public synchronized void checkpoint() throws SQLException {
+        if (outputStream == null) {
+            return;
+        }
+        try {
+            outputStream.flush();
+            fileChannel.force(false);
+        } catch (IOException e) {
+            throw new SQLException("Could not sync sql script " + scriptFile, e);
+        }
+    }
+
+    public synchronized void close() throws SQLException {
+        if (outputStream == null) {
+            return;
+        }
+        checkpoint();
+        try {
+            //finishes the gzip stream and closes the channel
+            outputStream.close();
+        } catch (IOException e) {
+            throw new SQLException("Could not close sql script " + scriptFile, e);
+        }
+        outputStream = null;
+    }
+
+    private void write(String text) throws SQLException {
+        if (outputStream == null) {
+            throw new SQLException("Sql script " + scriptFile + " is closed");
+        }
+        try {
+            outputStream.write(text.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new SQLException("Could not write sql script " + scriptFile, e);
+        }
+    }
+}
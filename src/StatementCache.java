@@ -0,0 +1,100 @@
+/**
+ * Keeps the prepared statements of the fixed metadata queries open for every connection, so that a query executed
+ * thousands of times (once per table or index) is prepared only once per connection.
+ * The statements are prepared on the server whatever useServerPrepStmts is, so the server parses every query once and
+ * only the parameters are sent with every execution. Other statements of the connection stay client side.
+ * Every connection has its own least recently used cache, the least recently used statement is closed when the cache is full.
+ *
+ * Cached statements are owned by the cache : callers close their result sets but never the statement.
+ * A connection is used by one thread at a time, so a cached statement is never shared between threads.
+ */
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class StatementCache {
+
+    //ER_UNSUPPORTED_PS, the statement cannot be prepared on the server
+    private static final int UNSUPPORTED_PS = 1295;
+
+    private static final Map<Connection, StatementCache> CACHES = new ConcurrentHashMap<>();
+
+    private static volatile int maxStatements = 32;
+
+    private Map<String, PreparedStatement> statements;
+
+    private StatementCache() {
+        statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() > maxStatements) {
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public static void setMaxStatements(int maxStatements) {
+        StatementCache.maxStatements = Math.max(1, maxStatements);
+    }
+
+    //prepared statement of this query on this connection, prepared on first use
+    public static PreparedStatement prepareStatement(Connection connection, String query) throws SQLException {
+        StatementCache statementCache = CACHES.computeIfAbsent(connection, key -> new StatementCache());
+        synchronized (statementCache) {
+            PreparedStatement preparedStatement = statementCache.statements.get(query);
+            if (preparedStatement == null || preparedStatement.isClosed()) {
+                preparedStatement = serverPrepareStatement(connection, query);
+                statementCache.statements.put(query, preparedStatement);
+            } else {
+                preparedStatement.clearParameters();
+            }
+            return preparedStatement;
+        }
+    }
+
+    private static PreparedStatement serverPrepareStatement(Connection connection, String query) throws SQLException {
+        if (connection.isWrapperFor(com.mysql.jdbc.Connection.class)) {
+            try {
+                return connection.unwrap(com.mysql.jdbc.Connection.class).serverPrepareStatement(query);
+            } catch (SQLException e) {
+                if (e.getErrorCode() != UNSUPPORTED_PS) {
+                    throw e;
+                }
+            }
+        }
+        return connection.prepareStatement(query);
+    }
+
+    //query with its parameters for the sql scripts, of server and client prepared statements alike
+    public static String asSql(PreparedStatement preparedStatement) throws SQLException {
+        return ((com.mysql.jdbc.PreparedStatement) preparedStatement).asSql();
+    }
+
+    //closes all cached statements of the connection, called before the connection is closed
+    public static void close(Connection connection) {
+        StatementCache statementCache = CACHES.remove(connection);
+        if (statementCache != null) {
+            synchronized (statementCache) {
+                for (PreparedStatement preparedStatement : statementCache.statements.values()) {
+                    closeQuietly(preparedStatement);
+                }
+                statementCache.statements.clear();
+            }
+        }
+    }
+
+    private static void closeQuietly(PreparedStatement preparedStatement) {
+        try {
+            preparedStatement.close();
+        } catch (SQLException e) {
+            //the statement is not used anymore
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/**
+ * All the changes required on a single table, compiled into one ALTER TABLE so that the table is rebuilt only once.
+ * Foreign keys are added back with a separate ALTER TABLE once the referenced tables are converted, as a constraint
+ * cannot be dropped and added with the same name in one statement. With foreign key checks disabled it does not copy the table.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+public class TableConversionPlan {
+
+    private String tableName;
+
+    private List<String> dropForeignKeys = new ArrayList<>();
+    private List<String> dropIndexes = new ArrayList<>();
+    private List<String> modifyColumns = new ArrayList<>();
+    private String tableCharset = null;
+    private List<String> addIndexes = new ArrayList<>();
+    private List<String> addForeignKeys = new ArrayList<>();
+    private Set<String> referencedTables = new LinkedHashSet<>();
+    private List<String> foreignKeyNames = new ArrayList<>();
+
+    //prefix length chosen for every recreated index and why, written to the plan
+    private List<String> indexDecisions = Collections.emptyList();
+
+    //size of the table from INFORMATION_SCHEMA.TABLES and estimated time of its rebuild
+    private long dataLength = 0;
+    private long indexLength = 0;
+    private long tableRows = 0;
+    private double estimatedRebuildSeconds = 0;
+
+    //ALGORITHM and LOCK clauses of online mode, null when the server default is used
+    private String algorithm = null;
+    private String lock = null;
+    private String foreignKeyAlgorithm = null;
+    private String foreignKeyLock = null;
+
+    //large tables are converted by copying rows into a shadow table instead of rebuilding them in place
+    private boolean shadowCopy = false;
+    private boolean foreignKeysDropped = false;
+
+    //steps already completed by an earlier run according to the checkpoint journal
+    private boolean rebuildDone = false;
+    private boolean foreignKeysCreated = false;
+
+    public TableConversionPlan(String tableName) {
+        this.tableName = tableName;
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    public void dropForeignKey(String constraintName) {
+        dropForeignKeys.add("DROP FOREIGN KEY " + constraintName);
+    }
+
+    public void dropIndex(String indexName) {
+        dropIndexes.add("DROP INDEX " + indexName);
+    }
+
+    //MODIFY column_name VARCHAR(191) CHARACTER SET utf8mb4 COLLATE utf8mb4_unicode_ci NOT NULL DEFAULT 'value'
+    public void modifyColumn(String columnName, String columnType, String newCharset, String newCollation, String notNull, String defaultValue) {
+        modifyColumns.add("MODIFY " + columnName + " " + columnType + " CHARACTER SET " + newCharset + " COLLATE " + newCollation + notNull + defaultValue);
+    }
+
+    public void changeTableCharset(String newCharset, String newCollation) {
+        tableCharset = "CHARACTER SET = " + newCharset + " COLLATE = " + newCollation;
+    }
+
+    public void addUniqueIndex(String constraintName, String columns) {
+        addIndexes.add("ADD UNIQUE " + constraintName + "(" + columns + ")");
+    }
+
+    public void addIndex(String constraintName, String columns) {
+        addIndexes.add("ADD KEY " + constraintName + "(" + columns + ")");
+    }
+
+    public void addForeignKey(String constraintName, String columns, String referencedTableName, String referencedColumns, String foreignKeyRule) {
+        referencedTables.add(referencedTableName);
+        foreignKeyNames.add(constraintName);
+        addForeignKeys.add("ADD CONSTRAINT " + constraintName + " FOREIGN KEY (" + columns + ") REFERENCES " + referencedTableName + "(" + referencedColumns + ")" + foreignKeyRule);
+    }
+
+    public boolean requiresRebuild() {
+        return !rebuildDone && (hasForeignKeyDrops() || !dropIndexes.isEmpty() || !modifyColumns.isEmpty() || tableCharset != null || !addIndexes.isEmpty());
+    }
+
+    public boolean hasForeignKeys() {
+        return !foreignKeysCreated && !addForeignKeys.isEmpty();
+    }
+
+    public void setRebuildDone(boolean rebuildDone) {
+        this.rebuildDone = rebuildDone;
+    }
+
+    public void setForeignKeysCreated(boolean foreignKeysCreated) {
+        this.foreignKeysCreated = foreignKeysCreated;
+    }
+
+    //tables which must be converted before foreign keys of this table can be added back
+    public Set<String> getReferencedTables() {
+        return referencedTables;
+    }
+
+    public void setTableSize(long dataLength, long indexLength, long tableRows) {
+        this.dataLength = dataLength;
+        this.indexLength = indexLength;
+        this.tableRows = tableRows;
+    }
+
+    public long getDataLength() {
+        return dataLength;
+    }
+
+    public long getIndexLength() {
+        return indexLength;
+    }
+
+    public long getTableRows() {
+        return tableRows;
+    }
+
+    public double getEstimatedRebuildSeconds() {
+        return estimatedRebuildSeconds;
+    }
+
+    public void setEstimatedRebuildSeconds(double estimatedRebuildSeconds) {
+        this.estimatedRebuildSeconds = estimatedRebuildSeconds;
+    }
+
+    public List<String> getIndexDecisions() {
+        return indexDecisions;
+    }
+
+    public void setIndexDecisions(List<String> indexDecisions) {
+        this.indexDecisions = indexDecisions;
+    }
+
+    public int getColumnCount() {
+        return modifyColumns.size();
+    }
+
+    public int getIndexCount() {
+        return addIndexes.size();
+    }
+
+    public boolean hasColumnChanges() {
+        return !modifyColumns.isEmpty();
+    }
+
+    public boolean hasTableCharsetChange() {
+        return tableCharset != null;
+    }
+
+    public boolean isShadowCopy() {
+        return shadowCopy;
+    }
+
+    public void setShadowCopy(boolean shadowCopy) {
+        this.shadowCopy = shadowCopy;
+    }
+
+    public boolean hasForeignKeyDrops() {
+        return !dropForeignKeys.isEmpty() && !foreignKeysDropped;
+    }
+
+    public void setForeignKeysDropped(boolean foreignKeysDropped) {
+        this.foreignKeysDropped = foreignKeysDropped;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public String getLock() {
+        return lock;
+    }
+
+    public void setAlgorithmAndLock(String algorithm, String lock) {
+        this.algorithm = algorithm;
+        this.lock = lock;
+    }
+
+    public void setForeignKeyAlgorithmAndLock(String foreignKeyAlgorithm, String foreignKeyLock) {
+        this.foreignKeyAlgorithm = foreignKeyAlgorithm;
+        this.foreignKeyLock = foreignKeyLock;
+    }
+
+    //DROP INDEX ..., MODIFY ..., CHARACTER SET = ... COLLATE = ..., ADD UNIQUE ..., ADD KEY ... with or without dropping the foreign keys
+    public String getAlterClauses(boolean withForeignKeys) {
+        List<String> clauses = new ArrayList<>();
+        if (withForeignKeys && !foreignKeysDropped) {
+            clauses.addAll(dropForeignKeys);
+        }
+        clauses.addAll(dropIndexes);
+        clauses.addAll(modifyColumns);
+        if (tableCharset != null) {
+            clauses.add(tableCharset);
+        }
+        clauses.addAll(addIndexes);
+        return String.join(", ", clauses);
+    }
+
+    //ALTER TABLE table_name DROP FOREIGN KEY ..., DROP INDEX ..., MODIFY ..., CHARACTER SET = ... COLLATE = ..., ADD UNIQUE ..., ADD KEY ...;
+    public String getAlterStatement() {
+        return "ALTER TABLE " + tableName + " " + getAlterClauses(true) + getAlgorithmClause(algorithm, lock) + ";";
+    }
+
+    //ALTER TABLE table_name DROP FOREIGN KEY ..., DROP FOREIGN KEY ...;
+    public String getDropForeignKeysStatement() {
+        return "ALTER TABLE " + tableName + " " + String.join(", ", dropForeignKeys) + getAlgorithmClause(foreignKeyAlgorithm, foreignKeyLock) + ";";
+    }
+
+    //constraint names of the foreign keys added back by getForeignKeyStatement
+    public List<String> getForeignKeyNames() {
+        return foreignKeyNames;
+    }
+
+    //ALTER TABLE table_name ADD CONSTRAINT ... FOREIGN KEY (...) REFERENCES ...(...), ADD CONSTRAINT ...;
+    public String getForeignKeyStatement() {
+        return "ALTER TABLE " + tableName + " " + String.join(", ", addForeignKeys) + getAlgorithmClause(foreignKeyAlgorithm, foreignKeyLock) + ";";
+    }
+
+    /*
+    Statements of the steps of the step by step conversion merged into one ALTER TABLE per step : drop foreign keys and indexes,
+    modify columns, change the table charset and add indexes. Steps without any change are null. The conversion itself runs one
+    ALTER TABLE per foreign key, index and column and drops all foreign keys, so these only approximate it for the plan.
+    */
+    public List<String> getStepStatements() {
+        List<String> dropClauses = new ArrayList<>(dropForeignKeys);
+        dropClauses.addAll(dropIndexes);
+        List<String> statements = new ArrayList<>();
+        statements.add(getStatement(dropClauses));
+        statements.add(getStatement(modifyColumns));
+        statements.add(tableCharset == null ? null : getStatement(Collections.singletonList(tableCharset)));
+        statements.add(getStatement(addIndexes));
+        return statements;
+    }
+
+    private String getStatement(List<String> clauses) {
+        return clauses.isEmpty() ? null : "ALTER TABLE " + tableName + " " + String.join(", ", clauses) + ";";
+    }
+
+    public static String getAlgorithmClause(String algorithm, String lock) {
+        String clause = "";
+        if (algorithm != null) {
+            clause += ", ALGORITHM=" + algorithm;
+        }
+        if (lock != null) {
+            clause += ", LOCK=" + lock;
+        }
+        return clause;
+    }
+}